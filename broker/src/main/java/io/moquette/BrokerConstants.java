@@ -24,6 +24,8 @@ public final class BrokerConstants {
     public static final String BROKER_INTERCEPTOR_THREAD_POOL_SIZE = "intercept.thread_pool.size";
     public static final String PERSISTENT_STORE_PROPERTY_NAME = "persistent_store";
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
+    public static final String SUBSCRIPTIONS_SNAPSHOT_INTERVAL_PROPERTY_NAME = "subscriptions_snapshot_interval";
+    public static final int DEFAULT_SUBSCRIPTIONS_SNAPSHOT_INTERVAL = 300;
     public static final String PASSWORD_FILE_PROPERTY_NAME = "password_file";
     public static final String PORT_PROPERTY_NAME = "port";
     public static final String HOST_PROPERTY_NAME = "host";
@@ -36,6 +38,104 @@ public final class BrokerConstants {
     public static final String WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME = "websocket_max_frame_size";
     public static final String SESSION_QUEUE_SIZE = "session_queue_size";
 
+    /**
+     * Number of session event loops, defaults to the number of available processors.
+     */
+    public static final String SESSION_LOOPS = "session_loops";
+
+    /**
+     * Implementation of the session command queues, "array_blocking" (default) or "ring_buffer".
+     */
+    public static final String SESSION_QUEUE_TYPE = "session_queue_type";
+    public static final String SESSION_QUEUE_TYPE_ARRAY_BLOCKING = "array_blocking";
+    public static final String SESSION_QUEUE_TYPE_RING_BUFFER = "ring_buffer";
+
+    /**
+     * How an idle session loop waits on a "ring_buffer" queue: "spin", "yield" or "park" (default).
+     */
+    public static final String SESSION_QUEUE_WAIT_STRATEGY = "session_queue_wait_strategy";
+
+    /**
+     * Fill level of a session queue, in percent of its size, over which the reads from the publishers that
+     * route messages to it are suspended, defaults to 75.
+     */
+    public static final String SESSION_QUEUE_HIGH_WATERMARK = "session_queue_high_watermark";
+
+    /**
+     * Fill level of a session queue, in percent of its size, under which the suspended publishers are
+     * resumed, defaults to 25.
+     */
+    public static final String SESSION_QUEUE_LOW_WATERMARK = "session_queue_low_watermark";
+
+    /**
+     * Min number of subscribers of a publish to route them to their session loops in chunks, while they are still
+     * being grouped, instead of grouping them all before routing. 0 disables it, defaults to 10000.
+     */
+    public static final String CHUNKED_FANOUT_THRESHOLD = "chunked_fanout_threshold";
+
+    /**
+     * Max number of topics whose matching subscriptions are cached, 0 disables the cache, defaults to 10000.
+     */
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE = "subscriptions_match_cache_size";
+
+    /**
+     * Min number of stored wildcard subscriptions to rebuild the subscriptions tree in parallel at startup,
+     * 0 disables it, defaults to 100000.
+     */
+    public static final String SUBSCRIPTIONS_PARALLEL_LOAD_THRESHOLD = "subscriptions_parallel_load_threshold";
+
+    /**
+     * How a message is assigned to a member of a shared subscription group: round_robin, topic_hash or
+     * least_inflight, defaults to round_robin.
+     */
+    public static final String SHARED_SUBSCRIPTIONS_STRATEGY = "shared_subscriptions_strategy";
+
+    /**
+     * Slots of the table of the interned topic names, rounded up to a power of 2, defaults to 16384. The table is
+     * JVM-wide, a broker starting with a different capacity replaces it also for the other brokers of the JVM.
+     */
+    public static final String INTERNED_TOPICS_CAPACITY = "interned_topics_capacity";
+
+    /**
+     * Slots of the table of the interned topic levels, rounded up to a power of 2, defaults to 16384. The table is
+     * JVM-wide like the one of the topic names.
+     */
+    public static final String INTERNED_TOKENS_CAPACITY = "interned_tokens_capacity";
+
+    /**
+     * Max bytes of pooled direct memory for the payloads of the retained messages kept in memory, the payloads
+     * over it are kept on the heap. 0 keeps them all on the heap, the default.
+     */
+    public static final String RETAINED_OFFHEAP_BUDGET = "retained_offheap_budget";
+
+    /**
+     * Max number of QoS 1 and 2 messages sent to a client and not yet acknowledged, defaults to 10.
+     */
+    public static final String INFLIGHT_WINDOW_SIZE_PROPERTY_NAME = "inflight_window_size";
+
+    /**
+     * Inflight window of specific clients in place of inflight_window_size, as a comma separated list of
+     * clientId:size.
+     */
+    public static final String INFLIGHT_WINDOW_PER_CLIENT = "inflight_window_per_client";
+
+    /**
+     * When true the inflight window of a session grows by one every window of prompt acknowledges and is halved
+     * when messages have to be retransmitted, between inflight_window_min and inflight_window_max. Defaults to
+     * false.
+     */
+    public static final String INFLIGHT_WINDOW_ADAPTIVE = "inflight_window_adaptive";
+
+    /**
+     * Size under which an adaptive inflight window doesn't shrink, defaults to 1.
+     */
+    public static final String INFLIGHT_WINDOW_MIN = "inflight_window_min";
+
+    /**
+     * Size over which an adaptive inflight window doesn't grow, defaults to 100.
+     */
+    public static final String INFLIGHT_WINDOW_MAX = "inflight_window_max";
+
     /**
      * Defines the SSL implementation to use, default to "JDK".
      * @see io.netty.handler.ssl.SslProvider#name()
@@ -70,6 +170,11 @@ public final class BrokerConstants {
     public static final String NETTY_SO_KEEPALIVE_PROPERTY_NAME = "netty.so_keepalive";
     public static final String NETTY_CHANNEL_TIMEOUT_SECONDS_PROPERTY_NAME = "netty.channel_timeout.seconds";
     public static final String NETTY_EPOLL_PROPERTY_NAME = "netty.epoll";
+    /**
+     * When true the sessions are processed by the Netty event loops of their channels instead of the dedicated
+     * session loops, defaults to false.
+     */
+    public static final String SESSION_LOOPS_ON_NETTY_PROPERTY_NAME = "netty.session_loops";
     public static final String NETTY_MAX_BYTES_PROPERTY_NAME = "netty.mqtt.message_size";
     public static final int DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE = 8092;
     public static final String IMMEDIATE_BUFFER_FLUSH_PROPERTY_NAME = "immediate_buffer_flush";
@@ -87,6 +192,7 @@ public final class BrokerConstants {
 
     public static final int FLIGHT_BEFORE_RESEND_MS = 5_000;
     public static final int INFLIGHT_WINDOW_SIZE = 10;
+    public static final int DEFAULT_INFLIGHT_WINDOW_MAX = 100;
 
     private BrokerConstants() {
     }
@@ -7,11 +7,13 @@ public class ClientDescriptor {
     private final String clientID;
     private final String address;
     private final int port;
+    private final int inflightWindow;
 
-    ClientDescriptor(String clientID, String address, int port) {
+    ClientDescriptor(String clientID, String address, int port, int inflightWindow) {
         this.clientID = clientID;
         this.address = address;
         this.port = port;
+        this.inflightWindow = inflightWindow;
     }
 
     public String getClientID() {
@@ -26,6 +28,13 @@ public class ClientDescriptor {
         return port;
     }
 
+    /**
+     * @return the max number of messages in flight to the client, when it has been listed.
+     * */
+    public int getInflightWindow() {
+        return inflightWindow;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -47,6 +56,7 @@ public class ClientDescriptor {
             "clientID='" + clientID + '\'' +
             ", address='" + address + '\'' +
             ", port=" + port +
+            ", inflightWindow=" + inflightWindow +
             '}';
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the connections written by a loop and flushes each of them once, at the end of the batch of work
+ * that wrote them, instead of a flush per message or a timer per channel.
+ * <p>
+ * A session loop flushes at the end of every batch of commands, a Netty event loop once it has processed the
+ * current round of reads and tasks. A batch that keeps writing for longer than the max delay is flushed
+ * meanwhile, so a long batch doesn't hold back the first messages.
+ * <p>
+ * Not thread safe, it's accessed only by the thread of its loop, that is bound to it with {@link #bind()}.
+ */
+final class FlushConsolidator {
+
+    static final long DEFAULT_MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final FastThreadLocal<FlushConsolidator> CURRENT = new FastThreadLocal<>();
+
+    private final EventLoop driver;
+    private final long maxDelayNanos;
+    private final Runnable flushTask = this::scheduledFlush;
+    // a connection can be written by more loops, each consolidator tracks its own pending ones
+    private Set<MQTTConnection> pending = newConnectionSet();
+    private Set<MQTTConnection> flushing = newConnectionSet();
+    private long firstPendingNanos;
+    private boolean flushScheduled;
+    private boolean flushingNow;
+
+    FlushConsolidator() {
+        this(null, DEFAULT_MAX_DELAY_NANOS);
+    }
+
+    /**
+     * @param driver the event loop that flushes the connections with a task, scheduled after the first write.
+     * @param maxDelayNanos max time a written connection waits for the flush while the batch goes on.
+     * */
+    FlushConsolidator(EventLoop driver, long maxDelayNanos) {
+        this.driver = driver;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    private static Set<MQTTConnection> newConnectionSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Bind a consolidator, that flushes with a task, to each of the event loops.
+     * */
+    static void bindTo(EventLoopGroup eventLoops) {
+        for (EventExecutor executor : eventLoops) {
+            final EventLoop loop = (EventLoop) executor;
+            loop.execute(() -> new FlushConsolidator(loop, DEFAULT_MAX_DELAY_NANOS).bind());
+        }
+    }
+
+    /**
+     * Make this the consolidator of the writes done by the current thread.
+     * */
+    void bind() {
+        CURRENT.set(this);
+    }
+
+    /**
+     * Stop consolidating the writes of the current thread, the ones already collected are flushed.
+     * */
+    void unbind() {
+        if (CURRENT.getIfExists() == this) {
+            CURRENT.remove();
+        }
+        flushAll();
+    }
+
+    /**
+     * @return the consolidator of the loop running on the current thread, null if the thread has none.
+     * */
+    static FlushConsolidator current() {
+        return CURRENT.getIfExists();
+    }
+
+    /**
+     * The connection has been written and has to be flushed.
+     * */
+    void add(MQTTConnection connection) {
+        if (pending.isEmpty()) {
+            firstPendingNanos = System.nanoTime();
+            if (driver != null && !flushScheduled) {
+                flushScheduled = true;
+                driver.execute(flushTask);
+            }
+        }
+        // also a connection already written in this batch, the batch could be writing only to it
+        pending.add(connection);
+        if (!flushingNow && System.nanoTime() - firstPendingNanos >= maxDelayNanos) {
+            flushAll();
+        }
+    }
+
+    private void scheduledFlush() {
+        flushScheduled = false;
+        flushAll();
+    }
+
+    /**
+     * Flush the connections written since the last flush.
+     *
+     * @return the number of connections flushed.
+     * */
+    int flushAll() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        // a flush can make a channel writable, whose session then writes again in the other set
+        final Set<MQTTConnection> toFlush = pending;
+        pending = flushing;
+        flushing = toFlush;
+        final int flushed = toFlush.size();
+        flushingNow = true;
+        try {
+            for (MQTTConnection connection : toFlush) {
+                connection.flush();
+            }
+        } finally {
+            flushingNow = false;
+            toFlush.clear();
+        }
+        if (!pending.isEmpty() && driver != null && !flushScheduled) {
+            flushScheduled = true;
+            driver.execute(flushTask);
+        }
+        return flushed;
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+}
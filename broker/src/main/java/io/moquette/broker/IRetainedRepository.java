@@ -29,4 +29,19 @@ public interface IRetainedRepository {
     boolean isEmpty();
 
     List<RetainedMessage> retainedOnTopic(String topic);
+
+    /**
+     * @return the topics with a retained message that match the filter, without reading the messages.
+     * */
+    List<Topic> retainedTopics(String topicFilter);
+
+    /**
+     * @return the message retained on the topic, null if there is none.
+     * */
+    RetainedMessage retainedOn(Topic topic);
+
+    /**
+     * Give back the resources held by the stored messages, invoked when the broker stops.
+     * */
+    void close();
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Messages by packet id, an open addressed table of primitive ids with linear probing, sized to the inflight
+ * window, so tracking a message doesn't box its id nor allocate an entry.
+ * <p>
+ * Packet ids are 1..65535 and the ids in flight are mostly consecutive, so the id itself is the hash and the
+ * slots are filled in order. Removals shift back the following entries instead of leaving tombstones.
+ * Every message can have a retransmission deadline, kept in the same slot, 0 if it has none.
+ * Not thread safe, it's accessed only by the loop of the session.
+ */
+final class InflightWindow<T> {
+
+    private static final int FREE = 0;
+
+    private int[] ids;
+    private Object[] values;
+    private long[] deadlines;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize the number of messages in flight at the same time, the table grows beyond it.
+     * */
+    InflightWindow(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        // at most half full
+        return Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        ids = new int[capacity];
+        values = new Object[capacity];
+        deadlines = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slotOf(int packetId) {
+        int idx = packetId & mask;
+        while (ids[idx] != FREE && ids[idx] != packetId) {
+            idx = (idx + 1) & mask;
+        }
+        return idx;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int packetId) {
+        final int idx = slotOf(packetId);
+        return ids[idx] == packetId ? (T) values[idx] : null;
+    }
+
+    boolean contains(int packetId) {
+        return ids[slotOf(packetId)] == packetId;
+    }
+
+    /**
+     * @return the message that was in flight with the same id, or null.
+     * */
+    @SuppressWarnings("unchecked")
+    T put(int packetId, T value) {
+        if (packetId == FREE) {
+            throw new IllegalArgumentException("Packet id must be in 1..65535");
+        }
+        int idx = slotOf(packetId);
+        if (ids[idx] == packetId) {
+            final T old = (T) values[idx];
+            values[idx] = value;
+            deadlines[idx] = 0;
+            return old;
+        }
+        if ((size + 1) * 2 > ids.length) {
+            grow();
+            idx = slotOf(packetId);
+        }
+        ids[idx] = packetId;
+        values[idx] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * @return the deadline of the message, 0 if it has none or isn't in flight.
+     * */
+    long deadline(int packetId) {
+        final int idx = slotOf(packetId);
+        return ids[idx] == packetId ? deadlines[idx] : 0;
+    }
+
+    /**
+     * @param deadline when the message has to be sent again if not acknowledged.
+     * */
+    void setDeadline(int packetId, long deadline) {
+        final int idx = slotOf(packetId);
+        if (ids[idx] == packetId) {
+            deadlines[idx] = deadline;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T remove(int packetId) {
+        int idx = slotOf(packetId);
+        if (ids[idx] != packetId) {
+            return null;
+        }
+        final T removed = (T) values[idx];
+        // shift back the entries of the same run that probed past the freed slot
+        int next = (idx + 1) & mask;
+        while (ids[next] != FREE) {
+            final int home = ids[next] & mask;
+            if (((next - home) & mask) >= ((next - idx) & mask)) {
+                ids[idx] = ids[next];
+                values[idx] = values[next];
+                deadlines[idx] = deadlines[next];
+                idx = next;
+            }
+            next = (next + 1) & mask;
+        }
+        ids[idx] = FREE;
+        values[idx] = null;
+        deadlines[idx] = 0;
+        size--;
+        return removed;
+    }
+
+    private void grow() {
+        final int[] oldIds = ids;
+        final Object[] oldValues = values;
+        final long[] oldDeadlines = deadlines;
+        allocate(oldIds.length * 2);
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != FREE) {
+                final int idx = slotOf(oldIds[i]);
+                ids[idx] = oldIds[i];
+                values[idx] = oldValues[i];
+                deadlines[idx] = oldDeadlines[i];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(Consumer<? super T> action) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != FREE) {
+                action.accept((T) values[i]);
+            }
+        }
+    }
+
+    interface ExpiredConsumer<T> {
+        void accept(int packetId, T value);
+    }
+
+    /**
+     * Pass to the consumer the messages whose deadline is expired, moving their deadline forward. The consumer
+     * must not change the window.
+     *
+     * @return the number of expired messages.
+     * */
+    @SuppressWarnings("unchecked")
+    int forEachExpired(long now, long nextDeadline, ExpiredConsumer<? super T> consumer) {
+        int expired = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != FREE && deadlines[i] != 0 && deadlines[i] <= now) {
+                deadlines[i] = nextDeadline;
+                consumer.accept(ids[i], (T) values[i]);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return the earliest deadline of the messages, 0 if none has a deadline.
+     * */
+    long earliestDeadline() {
+        long earliest = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != FREE && deadlines[i] != 0 && (earliest == 0 || deadlines[i] < earliest)) {
+                earliest = deadlines[i];
+            }
+        }
+        return earliest;
+    }
+
+    void clear() {
+        Arrays.fill(ids, FREE);
+        Arrays.fill(values, null);
+        Arrays.fill(deadlines, 0);
+        size = 0;
+    }
+}
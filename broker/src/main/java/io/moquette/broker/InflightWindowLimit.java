@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Max number of messages a session keeps in flight. When adaptive, it's increased by one every window of
+ * prompt acknowledges and halved when messages have to be retransmitted, like the congestion window of TCP.
+ * <p>
+ * Changed only by the loop of the session, the size can be read by any thread. The limits created for the sessions
+ * of a registry update its {@link Counters}, for the metrics.
+ */
+public final class InflightWindowLimit {
+
+    /**
+     * Totals of the open limits of the sessions of a registry.
+     */
+    public static final class Counters {
+        private final AtomicLong totalSize = new AtomicLong();
+        private final LongAdder limits = new LongAdder();
+        private final LongAdder grown = new LongAdder();
+        private final LongAdder shrunk = new LongAdder();
+
+        /**
+         * @return the average size of the inflight windows of the sessions.
+         * */
+        public double averageSize() {
+            final long open = limits.sum();
+            return open == 0 ? 0 : (double) totalSize.get() / open;
+        }
+
+        /**
+         * @return the number of limits not yet closed.
+         * */
+        public long open() {
+            return limits.sum();
+        }
+
+        public long grown() {
+            return grown.sum();
+        }
+
+        public long shrunk() {
+            return shrunk.sum();
+        }
+    }
+
+    private final Counters counters;
+    private final int min;
+    private final int max;
+    private final boolean adaptive;
+    private volatile int size;
+    private int promptAcks;
+    private boolean closed;
+
+    static InflightWindowLimit fixed(int size) {
+        return new InflightWindowLimit(size, size, size, false);
+    }
+
+    /**
+     * A limit counted only by itself, like the one of a session not yet configured by its registry.
+     * */
+    InflightWindowLimit(int size, int min, int max, boolean adaptive) {
+        this(size, min, max, adaptive, new Counters());
+    }
+
+    /**
+     * @param size the initial size, between min and max.
+     * @param adaptive when false the size doesn't change.
+     * @param counters the totals updated by this limit until it's closed.
+     * */
+    InflightWindowLimit(int size, int min, int max, boolean adaptive, Counters counters) {
+        if (min < 1 || size < min || size > max) {
+            throw new IllegalArgumentException("Inflight window must satisfy 1 <= min <= size <= max, were: " +
+                                               min + ", " + size + ", " + max);
+        }
+        this.size = size;
+        this.min = min;
+        this.max = max;
+        this.adaptive = adaptive;
+        this.counters = counters;
+        counters.totalSize.addAndGet(size);
+        counters.limits.increment();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * A message in flight has been acknowledged.
+     *
+     * @param promptly if it has been acknowledged well before its retransmission.
+     * @return the change of the size.
+     * */
+    int acknowledged(boolean promptly) {
+        if (!adaptive || !promptly || size == max) {
+            return 0;
+        }
+        // one more message per window of prompt acknowledges
+        if (++promptAcks < size) {
+            return 0;
+        }
+        promptAcks = 0;
+        counters.grown.increment();
+        return resize(size + 1);
+    }
+
+    /**
+     * Messages in flight had to be retransmitted.
+     *
+     * @return the change of the size.
+     * */
+    int retransmitted() {
+        if (!adaptive) {
+            return 0;
+        }
+        promptAcks = 0;
+        final int halved = Math.max(min, size / 2);
+        if (halved == size) {
+            return 0;
+        }
+        counters.shrunk.increment();
+        return resize(halved);
+    }
+
+    private int resize(int newSize) {
+        final int delta = newSize - size;
+        size = newSize;
+        if (!closed) {
+            counters.totalSize.addAndGet(delta);
+        }
+        return delta;
+    }
+
+    /**
+     * The session doesn't use anymore this limit.
+     * */
+    void close() {
+        if (!closed) {
+            closed = true;
+            counters.totalSize.addAndGet(-size);
+            counters.limits.decrement();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sizing of the inflight windows of the sessions, the same for all the clients except the ones with a size of
+ * their own.
+ */
+final class InflightWindowPolicy {
+
+    private final int size;
+    private final int min;
+    private final int max;
+    private final boolean adaptive;
+    private final Map<String, Integer> sizeByClient;
+
+    static InflightWindowPolicy fixed(int size) {
+        return new InflightWindowPolicy(size, size, size, false, Collections.emptyMap());
+    }
+
+    /**
+     * @param size the initial size of the windows.
+     * @param min the size under which an adaptive window doesn't shrink.
+     * @param max the size over which an adaptive window doesn't grow.
+     * @param sizeByClient the initial size of the windows of some clients, in place of size.
+     * */
+    InflightWindowPolicy(int size, int min, int max, boolean adaptive, Map<String, Integer> sizeByClient) {
+        if (size < 1 || min < 1 || min > max) {
+            throw new IllegalArgumentException("Inflight window must satisfy size >= 1 and 1 <= min <= max, were: " +
+                                               size + ", " + min + ", " + max);
+        }
+        this.size = size;
+        this.min = min;
+        this.max = max;
+        this.adaptive = adaptive;
+        this.sizeByClient = sizeByClient;
+    }
+
+    InflightWindowLimit limitFor(String clientId) {
+        return limitFor(clientId, new InflightWindowLimit.Counters());
+    }
+
+    /**
+     * @param counters the totals of the sessions of the registry that asks the limit.
+     * */
+    InflightWindowLimit limitFor(String clientId, InflightWindowLimit.Counters counters) {
+        final int clientSize = sizeByClient.getOrDefault(clientId, size);
+        if (!adaptive) {
+            return new InflightWindowLimit(clientSize, clientSize, clientSize, false, counters);
+        }
+        // the bounds widen to include a client size out of them
+        return new InflightWindowLimit(clientSize, Math.min(min, clientSize), Math.max(max, clientSize), true,
+                                       counters);
+    }
+
+    /**
+     * @param perClient comma separated list of clientId:size, the client id is up to the last colon.
+     * */
+    static Map<String, Integer> parseSizeByClient(String perClient) {
+        if (perClient == null || perClient.trim().isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Integer> sizes = new HashMap<>();
+        for (String entry : perClient.split(",")) {
+            final int separator = entry.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Inflight window of a client must be clientId:size, was: " + entry);
+            }
+            sizes.put(entry.substring(0, separator).trim(), Integer.parseInt(entry.substring(separator + 1).trim()));
+        }
+        return sizes;
+    }
+}
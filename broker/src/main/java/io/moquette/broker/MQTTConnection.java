@@ -31,8 +31,8 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
 
 import static io.netty.channel.ChannelFutureListener.CLOSE_ON_FAILURE;
 import static io.netty.channel.ChannelFutureListener.FIRE_EXCEPTION_ON_FAILURE;
@@ -68,16 +68,16 @@ final class MQTTConnection {
         LOG.debug("Received MQTT message, type: {}", messageType);
         switch (messageType) {
             case CONNECT:
-                processConnect((MqttConnectMessage) msg);
+                processConnect((MqttConnectMessage) msg, false);
                 break;
             case SUBSCRIBE:
-                processSubscribe((MqttSubscribeMessage) msg);
+                processSubscribe((MqttSubscribeMessage) msg, false);
                 break;
             case UNSUBSCRIBE:
                 processUnsubscribe((MqttUnsubscribeMessage) msg);
                 break;
             case PUBLISH:
-                processPublish((MqttPublishMessage) msg);
+                processPublish((MqttPublishMessage) msg, false);
                 break;
             case PUBREC:
                 processPubRec(msg);
@@ -89,7 +89,7 @@ final class MQTTConnection {
                 processPubRel(msg);
                 break;
             case DISCONNECT:
-                processDisconnect(msg);
+                processDisconnect(msg, false);
                 break;
             case PUBACK:
                 processPubAck(msg);
@@ -108,18 +108,20 @@ final class MQTTConnection {
 
     private void processPubComp(MqttMessage msg) {
         final int messageID = ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
-        this.postOffice.routeCommand(bindedSession.getClientID(), "PUBCOMP", () -> {
-            bindedSession.processPubComp(messageID);
-            return bindedSession.getClientID();
-        });
+        this.postOffice.routeCommand(SessionCommand.pubComp(this, bindedSession.getClientID(), messageID));
+    }
+
+    void executePubComp(int messageID) {
+        bindedSession.processPubComp(messageID);
     }
 
     private void processPubRec(MqttMessage msg) {
         final int messageID = ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
-        this.postOffice.routeCommand(bindedSession.getClientID(), "PUBREC", () -> {
-            bindedSession.processPubRec(messageID);
-            return null;
-        });
+        this.postOffice.routeCommand(SessionCommand.pubRec(this, bindedSession.getClientID(), messageID));
+    }
+
+    void executePubRec(int messageID) {
+        bindedSession.processPubRec(messageID);
     }
 
     static MqttMessage pubrel(int messageID) {
@@ -130,13 +132,22 @@ final class MQTTConnection {
     private void processPubAck(MqttMessage msg) {
         final int messageID = ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
         final String clientId = getClientId();
-        this.postOffice.routeCommand(clientId, "PUB ACK", () -> {
-            bindedSession.pubAckReceived(messageID);
-            return null;
-        });
+        this.postOffice.routeCommand(SessionCommand.pubAck(this, clientId, messageID));
+    }
+
+    void executePubAck(int messageID) {
+        bindedSession.pubAckReceived(messageID);
     }
 
     PostOffice.RouteResult processConnect(MqttConnectMessage msg) {
+        return processConnect(msg, true);
+    }
+
+    /**
+     * @param trackCompletion when true the result carries a future completed after the execution on the
+     *                        session loop.
+     * */
+    private PostOffice.RouteResult processConnect(MqttConnectMessage msg, boolean trackCompletion) {
         MqttConnectPayload payload = msg.payload();
         String clientId = payload.clientIdentifier();
         final String username = payload.userName();
@@ -172,23 +183,24 @@ final class MQTTConnection {
             return PostOffice.RouteResult.failed(clientId);
         }
 
-        final String sessionId = clientId;
-        return postOffice.routeCommand(clientId, "CONN", () -> {
-            executeConnect(msg, sessionId);
-            return null;
-        });
+        return postOffice.routeCommand(track(SessionCommand.connect(this, clientId, msg), trackCompletion));
+    }
+
+    private static SessionCommand track(SessionCommand cmd, boolean trackCompletion) {
+        return trackCompletion ? cmd.withCompletion() : cmd;
     }
 
     /**
      * Invoked by the Session's event loop.
      * */
-    private void executeConnect(MqttConnectMessage msg, String clientId) {
+    void executeConnect(MqttConnectMessage msg, String clientId) {
         final SessionRegistry.SessionCreationResult result;
         try {
             LOG.trace("Binding MQTTConnection to session");
             result = sessionRegistry.createOrReopenSession(msg, clientId, this.getUsername());
             result.session.bind(this);
             bindedSession = result.session;
+            postOffice.pinSessionToChannelLoop(clientId, channel);
         } catch (SessionCorruptedException scex) {
             LOG.warn("MQTT session for client ID {} cannot be created", clientId);
             abortConnection(CONNECTION_REFUSED_SERVER_UNAVAILABLE);
@@ -218,10 +230,11 @@ final class MQTTConnection {
 
                         if (result.mode == SessionRegistry.CreationModeEnum.REOPEN_EXISTING) {
                             result.session.sendQueuedMessagesWhileOffline();
+                            // the messages left in flight by the previous connection are resent by the session loop
+                            postOffice.routeCommand(SessionCommand.resend(MQTTConnection.this, clientIdUsed));
                         }
 
                         initializeKeepAliveTimeout(channel, msg, clientIdUsed);
-                        setupInflightResender(channel);
 
                         postOffice.dispatchConnection(msg);
                         LOG.trace("dispatch connection: {}", msg);
@@ -237,11 +250,6 @@ final class MQTTConnection {
         });
     }
 
-    private void setupInflightResender(Channel channel) {
-        channel.pipeline()
-            .addFirst("inflightResender", new InflightResender(5_000, TimeUnit.MILLISECONDS));
-    }
-
     private void initializeKeepAliveTimeout(Channel channel, MqttConnectMessage msg, String clientId) {
         int keepAlive = msg.variableHeader().keepAliveTimeSeconds();
         NettyUtils.keepAlive(channel, keepAlive);
@@ -303,15 +311,16 @@ final class MQTTConnection {
         }
         // this must not be done on the netty thread
         LOG.debug("Notifying connection lost event");
-        postOffice.routeCommand(clientID, "CONN LOST", () -> {
-            if (isBoundToSession() || isSessionUnbound()) {
-                LOG.debug("Cleaning {}", clientID);
-                processConnectionLost(clientID);
-            } else {
-                LOG.debug("NOT Cleaning {}, bound to other connection.", clientID);
-            }
-            return null;
-        });
+        postOffice.routeCommand(SessionCommand.connectionLost(this, clientID));
+    }
+
+    void executeConnectionLost(String clientID) {
+        if (isBoundToSession() || isSessionUnbound()) {
+            LOG.debug("Cleaning {}", clientID);
+            processConnectionLost(clientID);
+        } else {
+            LOG.debug("NOT Cleaning {}, bound to other connection.", clientID);
+        }
     }
 
     private void processConnectionLost(String clientID) {
@@ -325,6 +334,7 @@ final class MQTTConnection {
             bindedSession.disconnect();
         }
         connected = false;
+        postOffice.unpinSession(clientID);
         //dispatch connection lost to intercept.
         String userName = NettyUtils.userName(channel);
         postOffice.dispatchConnectionLost(clientID,userName);
@@ -340,6 +350,10 @@ final class MQTTConnection {
     }
 
     PostOffice.RouteResult processDisconnect(MqttMessage msg) {
+        return processDisconnect(msg, true);
+    }
+
+    private PostOffice.RouteResult processDisconnect(MqttMessage msg, boolean trackCompletion) {
         final String clientID = NettyUtils.clientID(channel);
         LOG.trace("Start DISCONNECT");
         if (!connected) {
@@ -347,22 +361,28 @@ final class MQTTConnection {
             return PostOffice.RouteResult.success(clientID, CompletableFuture.completedFuture(null));
         }
 
-        return this.postOffice.routeCommand(clientID, "DISCONN", () -> {
-            if (!isBoundToSession()) {
-                LOG.debug("NOT processing disconnect {}, not bound.", clientID);
-                return null;
-            }
-            bindedSession.disconnect();
-            connected = false;
-            channel.close().addListener(FIRE_EXCEPTION_ON_FAILURE);
-            String userName = NettyUtils.userName(channel);
-            postOffice.clientDisconnected(clientID, userName);
-            LOG.trace("dispatch disconnection userName={}", userName);
-            return null;
-        });
+        return this.postOffice.routeCommand(track(SessionCommand.disconnect(this, clientID), trackCompletion));
+    }
+
+    void executeDisconnect(String clientID) {
+        if (!isBoundToSession()) {
+            LOG.debug("NOT processing disconnect {}, not bound.", clientID);
+            return;
+        }
+        bindedSession.disconnect();
+        connected = false;
+        postOffice.unpinSession(clientID);
+        channel.close().addListener(FIRE_EXCEPTION_ON_FAILURE);
+        String userName = NettyUtils.userName(channel);
+        postOffice.clientDisconnected(clientID, userName);
+        LOG.trace("dispatch disconnection userName={}", userName);
     }
 
     PostOffice.RouteResult processSubscribe(MqttSubscribeMessage msg) {
+        return processSubscribe(msg, true);
+    }
+
+    private PostOffice.RouteResult processSubscribe(MqttSubscribeMessage msg, boolean trackCompletion) {
         final String clientID = NettyUtils.clientID(channel);
         if (!connected) {
             LOG.warn("SUBSCRIBE received on already closed connection");
@@ -370,11 +390,13 @@ final class MQTTConnection {
             return PostOffice.RouteResult.success(clientID, CompletableFuture.completedFuture(null));
         }
         final String username = NettyUtils.userName(channel);
-        return postOffice.routeCommand(clientID, "SUB", () -> {
-            if (isBoundToSession())
-                postOffice.subscribeClientToTopics(msg, clientID, username, this);
-            return null;
-        });
+        return postOffice.routeCommand(track(SessionCommand.subscribe(this, clientID, username, msg),
+                                             trackCompletion));
+    }
+
+    void executeSubscribe(MqttSubscribeMessage msg, String clientID, String username) {
+        if (isBoundToSession())
+            postOffice.subscribeClientToTopics(msg, clientID, username, this);
     }
 
     void sendSubAckMessage(int messageID, MqttSubAckMessage ackMessage) {
@@ -383,17 +405,17 @@ final class MQTTConnection {
     }
 
     private void processUnsubscribe(MqttUnsubscribeMessage msg) {
-        List<String> topics = msg.payload().topics();
         final String clientID = NettyUtils.clientID(channel);
-        final int messageId = msg.variableHeader().messageId();
+        postOffice.routeCommand(SessionCommand.unsubscribe(this, clientID, msg));
+    }
 
-        postOffice.routeCommand(clientID, "UNSUB", () -> {
-            if (!isBoundToSession())
-                return null;
-            LOG.trace("Processing UNSUBSCRIBE message. topics: {}", topics);
-            postOffice.unsubscribe(topics, this, messageId);
-            return null;
-        });
+    void executeUnsubscribe(MqttUnsubscribeMessage msg) {
+        if (!isBoundToSession())
+            return;
+        List<String> topics = msg.payload().topics();
+        final int messageId = msg.variableHeader().messageId();
+        LOG.trace("Processing UNSUBSCRIBE message. topics: {}", topics);
+        postOffice.unsubscribe(topics, this, messageId);
     }
 
     void sendUnsubAckMessage(List<String> topics, String clientID, int messageID) {
@@ -407,56 +429,62 @@ final class MQTTConnection {
     }
 
     PostOffice.RouteResult processPublish(MqttPublishMessage msg) {
+        return processPublish(msg, true);
+    }
+
+    private PostOffice.RouteResult processPublish(MqttPublishMessage msg, boolean trackCompletion) {
         final MqttQoS qos = msg.fixedHeader().qosLevel();
         final String username = NettyUtils.userName(channel);
         final String topicName = msg.variableHeader().topicName();
         final String clientId = getClientId();
         final int messageID = msg.variableHeader().packetId();
         LOG.trace("Processing PUBLISH message, topic: {}, messageId: {}, qos: {}", topicName, messageID, qos);
-        final Topic topic = new Topic(topicName);
+        final Topic topic = Topic.intern(topicName);
         if (!topic.isValid()) {
             LOG.debug("Drop connection because of invalid topic format");
             dropConnection();
         }
+        if (qos == FAILURE) {
+            LOG.error("Unknown QoS-Type:{}", qos);
+            return PostOffice.RouteResult.failed(clientId, "Unknown QoS-");
+        }
 
         // retain else msg is cleaned by the NewNettyMQTTHandler and is not available
         // in execution by SessionEventLoop
         msg.retain();
-        switch (qos) {
+        final PostOffice.RouteResult result = postOffice.routeCommand(
+            track(SessionCommand.publish(this, clientId, username, topic, msg), trackCompletion));
+        if (!result.isSuccess()) {
+            msg.release();
+            LOG.trace("Failed to enqueue PUB {} to session loop for  {}", qos, clientId);
+        }
+        return result;
+    }
+
+    /**
+     * Invoked by the Session's event loop, owns the reference to the message retained when routed.
+     * */
+    void executePublish(MqttPublishMessage msg, Topic topic, String username) {
+        if (!isBoundToSession()) {
+            msg.release();
+            return;
+        }
+        final String clientId = getClientId();
+        switch (msg.fixedHeader().qosLevel()) {
             case AT_MOST_ONCE:
-                return postOffice.routeCommand(clientId, "PUB QoS0", () -> {
-                    if (!isBoundToSession())
-                        return null;
-                    postOffice.receivedPublishQos0(topic, username, clientId, msg);
-                    return null;
-                }).ifFailed(msg::release);
+                postOffice.receivedPublishQos0(channel, topic, username, clientId, msg);
+                break;
             case AT_LEAST_ONCE:
-                return postOffice.routeCommand(clientId, "PUB QoS1", () -> {
-                    if (!isBoundToSession())
-                        return null;
-                    postOffice.receivedPublishQos1(this, topic, username, messageID, msg);
-                    return null;
-                }).ifFailed(msg::release);
-            case EXACTLY_ONCE: {
-                final PostOffice.RouteResult firstStepResult = postOffice.routeCommand(clientId, "PUB QoS2", () -> {
-                    if (!isBoundToSession())
-                        return null;
-                    bindedSession.receivedPublishQos2(messageID, msg);
-                    return null;
-                });
-                if (!firstStepResult.isSuccess()) {
-                    msg.release();
-                    LOG.trace("Failed to enqueue PUB QoS2 to session loop for  {}", clientId);
-                    return firstStepResult;
-                }
-                firstStepResult.completableFuture().thenRun(() ->
-                    postOffice.receivedPublishQos2(this, msg, username).completableFuture()
-                );
-                return firstStepResult;
-            }
+                postOffice.receivedPublishQos1(this, topic, username, msg.variableHeader().packetId(), msg, false);
+                break;
+            case EXACTLY_ONCE:
+                bindedSession.receivedPublishQos2(msg.variableHeader().packetId(), msg);
+                postOffice.receivedPublishQos2(this, msg, username, false);
+                break;
             default:
-                LOG.error("Unknown QoS-Type:{}", qos);
-                return PostOffice.RouteResult.failed(clientId, "Unknown QoS-");
+                LOG.error("Unknown QoS-Type:{}", msg.fixedHeader().qosLevel());
+                msg.release();
+                break;
         }
     }
 
@@ -470,13 +498,10 @@ final class MQTTConnection {
 
     private void processPubRel(MqttMessage msg) {
         final int messageID = ((MqttMessageIdVariableHeader) msg.variableHeader()).messageId();
-        postOffice.routeCommand(bindedSession.getClientID(), "PUBREL", () -> {
-            executePubRel(messageID);
-            return null;
-        });
+        postOffice.routeCommand(SessionCommand.pubRel(this, bindedSession.getClientID(), messageID));
     }
 
-    private void executePubRel(int messageID) {
+    void executePubRel(int messageID) {
         bindedSession.receivedPubRelQos2(messageID);
         sendPubCompMessage(messageID);
     }
@@ -494,6 +519,25 @@ final class MQTTConnection {
         sendIfWritableElseDrop(publishMsg);
     }
 
+    /**
+     * Write the shared, already encoded, frame of a PUBLISH.
+     * */
+    void sendEncodedPublish(PublishFrames frames, MqttQoS qos, int packetId) {
+        LOG.debug("Sending encoded PUBLISH({}) message. MessageId={}", qos, packetId);
+        if (!channel.isWritable()) {
+            return;
+        }
+        final ByteBuf frame = frames.retainedFrame(qos, packetId);
+        final ChannelFuture channelFuture;
+        if (brokerConfig.isImmediateBufferFlush()) {
+            channelFuture = channel.writeAndFlush(frame);
+        } else {
+            channelFuture = channel.write(frame);
+            flushLater();
+        }
+        channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
+    }
+
     void sendIfWritableElseDrop(MqttMessage msg) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("OUT {}", msg.fixedHeader().messageType());
@@ -512,14 +556,35 @@ final class MQTTConnection {
                 channelFuture = channel.writeAndFlush(retainedDup);
             } else {
                 channelFuture = channel.write(retainedDup);
+                flushLater();
             }
             channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
         }
     }
 
+    /**
+     * Flush at the end of the batch of work of the current loop, together with the other channels it wrote.
+     * */
+    private void flushLater() {
+        final FlushConsolidator consolidator = FlushConsolidator.current();
+        if (consolidator != null) {
+            consolidator.add(this);
+        } else {
+            // not written by a loop, flushed by the channel's loop after the write
+            channel.eventLoop().execute(this::flush);
+        }
+    }
+
     public void writabilityChanged() {
-        if (channel.isWritable()) {
+        if (channel.isWritable() && bindedSession != null) {
             LOG.debug("Channel is again writable");
+            // the session is accessed only by its loop
+            postOffice.routeCommand(SessionCommand.writable(this, bindedSession.getClientID()));
+        }
+    }
+
+    void executeWritable() {
+        if (isBoundToSession()) {
             bindedSession.writabilityChanged();
         }
     }
@@ -584,12 +649,41 @@ final class MQTTConnection {
         return new MqttPublishMessage(fixedHeader, varHeader, message);
     }
 
-    public void resendNotAckedPublishes() {
-        bindedSession.resendInflightNotAcked();
+    /**
+     * A retransmission deadline of the messages in flight on this connection is expired, invoked by the
+     * retransmission wheel of a session loop.
+     * */
+    void retransmissionDue() {
+        final Session session = bindedSession;
+        if (session != null) {
+            postOffice.routeCommand(SessionCommand.resend(this, session.getClientID()));
+        }
+    }
+
+    void executeResend() {
+        if (isBoundToSession()) {
+            bindedSession.resendInflightNotAcked();
+        }
     }
 
     int nextPacketId() {
-        return lastPacketId.updateAndGet(v -> v == 65535 ? 1 : v + 1);
+        return nextPacketId(packetId -> false);
+    }
+
+    /**
+     * @param inUse the ids of the messages still in flight, that are skipped so that an acknowledge can't be
+     *              mistaken for another message's.
+     * */
+    int nextPacketId(IntPredicate inUse) {
+        int packetId = lastPacketId.get();
+        for (int attempts = 0; attempts < 65535; attempts++) {
+            packetId = packetId == 65535 ? 1 : packetId + 1;
+            if (!inUse.test(packetId)) {
+                lastPacketId.set(packetId);
+                return packetId;
+            }
+        }
+        throw new IllegalStateException("All the packet ids are in flight");
     }
 
     @Override
@@ -16,12 +16,10 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
-import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -31,19 +29,42 @@ import java.util.concurrent.ConcurrentMap;
 final class MemoryRetainedRepository implements IRetainedRepository {
 
     private final ConcurrentMap<Topic, RetainedMessage> storage = new ConcurrentHashMap<>();
+    // changed together with the storage, inside the compute of the topic
+    private final RetainedTopicsIndex index = new RetainedTopicsIndex();
+    private final RetainedPayloads payloads;
+
+    MemoryRetainedRepository() {
+        this(new RetainedPayloads(0));
+    }
+
+    /**
+     * @param payloads the storage of the retained payloads, in direct memory as long as they fit in its budget.
+     * */
+    MemoryRetainedRepository(RetainedPayloads payloads) {
+        this.payloads = payloads;
+    }
 
     @Override
     public void cleanRetained(Topic topic) {
-        storage.remove(topic);
+        final RetainedMessage[] cleaned = new RetainedMessage[1];
+        storage.computeIfPresent(topic, (t, retained) -> {
+            cleaned[0] = retained;
+            index.remove(t);
+            return null;
+        });
+        payloads.release(cleaned[0]);
     }
 
     @Override
     public void retain(Topic topic, MqttPublishMessage msg) {
-        final ByteBuf payload = msg.content();
-        byte[] rawPayload = new byte[payload.readableBytes()];
-        payload.getBytes(0, rawPayload);
-        final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload);
-        storage.put(topic, toStore);
+        final RetainedMessage toStore = payloads.store(topic, msg.fixedHeader().qosLevel(), msg.content());
+        final RetainedMessage[] replaced = new RetainedMessage[1];
+        storage.compute(topic, (t, retained) -> {
+            replaced[0] = retained;
+            index.add(t);
+            return toStore;
+        });
+        payloads.release(replaced[0]);
     }
 
     @Override
@@ -53,14 +74,42 @@ final class MemoryRetainedRepository implements IRetainedRepository {
 
     @Override
     public List<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
         final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : storage.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
+        for (Topic matched : retainedTopics(topic)) {
+            final RetainedMessage retained = storage.get(matched);
+            if (retained != null) {
+                matchingMessages.add(retained);
             }
         }
         return matchingMessages;
     }
+
+    @Override
+    public List<Topic> retainedTopics(String topicFilter) {
+        final Topic filter = new Topic(topicFilter);
+        final List<Topic> matchingTopics = new ArrayList<>();
+        if (RetainedTopicsIndex.isLiteral(filter)) {
+            if (storage.containsKey(filter)) {
+                matchingTopics.add(filter);
+            }
+            return matchingTopics;
+        }
+        index.match(filter, matchingTopics::add);
+        return matchingTopics;
+    }
+
+    @Override
+    public RetainedMessage retainedOn(Topic topic) {
+        return storage.get(topic);
+    }
+
+    /**
+     * Release the payloads of all the stored messages, the pooled direct buffers aren't reclaimed by the GC.
+     * */
+    @Override
+    public void close() {
+        for (Topic topic : storage.keySet()) {
+            cleanRetained(topic);
+        }
+    }
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free, multi-producer single-consumer queue backed by a preallocated ring buffer.
+ * <p>
+ * Producers claim a slot with a CAS on the producer index and then publish the element into it, the consumer
+ * never takes a lock, it just reads the slots in order. When the consumer has nothing to do it follows the
+ * configured {@link WaitStrategy}, producers pay an unpark only when the consumer is effectively parked.
+ * <p>
+ * All the consuming methods ({@code poll}, {@code take}, {@code drainTo}, {@code peek}) must be invoked by the
+ * same single thread, the one that owns the queue. The iterator is weakly consistent and can be used by any
+ * thread, but it can't remove elements, so neither can {@code remove(Object)}.
+ */
+final class MpscRingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    /**
+     * What the consumer does when it finds the queue empty.
+     */
+    enum WaitStrategy {
+        /**
+         * Busy spin, lowest latency but burns a core per idle consumer.
+         */
+        SPIN,
+        /**
+         * Yield the CPU to other threads between polls.
+         */
+        YIELD,
+        /**
+         * Yield for a short while, then park until a producer wakes up the consumer.
+         */
+        PARK;
+
+        static WaitStrategy fromConfig(String value) {
+            return WaitStrategy.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private static final int YIELDS_BEFORE_PARK = 64;
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final int capacity;
+    private final WaitStrategy waitStrategy;
+    private final AtomicLong producerIndex = new AtomicLong();
+    // written only by the consumer thread
+    private volatile long consumerIndex;
+    private volatile Thread parkedConsumer;
+
+    MpscRingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, was: " + capacity);
+        }
+        this.capacity = capacity;
+        final int slots = roundToPowerOfTwo(capacity);
+        this.buffer = new AtomicReferenceArray<>(slots);
+        this.mask = slots - 1;
+        this.waitStrategy = Objects.requireNonNull(waitStrategy, "waitStrategy can't be null");
+    }
+
+    private static int roundToPowerOfTwo(int value) {
+        final int highest = Integer.highestOneBit(value);
+        return highest == value ? value : highest << 1;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Objects.requireNonNull(e);
+        long claimed;
+        do {
+            claimed = producerIndex.get();
+            if (claimed - consumerIndex >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(claimed, claimed + 1));
+        buffer.lazySet(slot(claimed), e);
+        wakeUpConsumer();
+        return true;
+    }
+
+    private void wakeUpConsumer() {
+        final Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    @Override
+    public E poll() {
+        final long current = consumerIndex;
+        final int offset = slot(current);
+        E e = buffer.get(offset);
+        if (e == null) {
+            if (current == producerIndex.get()) {
+                return null;
+            }
+            // a producer claimed the slot but didn't yet publish the element, it's a matter of few instructions
+            do {
+                e = buffer.get(offset);
+            } while (e == null);
+        }
+        buffer.lazySet(offset, null);
+        consumerIndex = current + 1;
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        final long current = consumerIndex;
+        final int offset = slot(current);
+        E e = buffer.get(offset);
+        while (e == null && current != producerIndex.get()) {
+            e = buffer.get(offset);
+        }
+        return e;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!offer(e)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        E e;
+        int idleCount = 0;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            idle(idleCount++, 0L);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        E e;
+        int idleCount = 0;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            idle(idleCount++, remaining);
+        }
+        return e;
+    }
+
+    /**
+     * @param maxParkNanos upper bound for the park, 0 means until a producer wakes up the consumer.
+     * */
+    private void idle(int idleCount, long maxParkNanos) {
+        switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                if (idleCount < YIELDS_BEFORE_PARK) {
+                    Thread.yield();
+                    break;
+                }
+                parkedConsumer = Thread.currentThread();
+                // re-check after the publication of the parked thread, a producer could have offered in between
+                if (isEmpty()) {
+                    if (maxParkNanos > 0) {
+                        LockSupport.parkNanos(this, maxParkNanos);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                parkedConsumer = null;
+                break;
+            default:
+                throw new IllegalStateException("Unknown wait strategy " + waitStrategy);
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        Objects.requireNonNull(c);
+        if (c == this) {
+            throw new IllegalArgumentException("Can't drain a queue into itself");
+        }
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of elements in the queue, it's the depth of the queue and is safe to be read
+     * from any thread.
+     * */
+    @Override
+    public int size() {
+        // read the consumer first, so that the difference can't be negative
+        final long consumed = consumerIndex;
+        final long produced = producerIndex.get();
+        return (int) Math.min(produced - consumed, capacity);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return consumerIndex == producerIndex.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    /**
+     * @return an iterator over the elements between the consumer and the producer indexes when it's created.
+     * It doesn't return the elements consumed meanwhile, nor the ones still being published by their producer.
+     * */
+    @Override
+    public Iterator<E> iterator() {
+        return new Itr();
+    }
+
+    /**
+     * Only the consumer can take elements out of the ring, and only from its head.
+     * */
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("Only the head of the ring buffer can be removed, by its consumer");
+    }
+
+    private final class Itr implements Iterator<E> {
+        private final long end;
+        private long index;
+        private E next;
+
+        Itr() {
+            // read the consumer first, so that the range can't be negative
+            index = consumerIndex;
+            end = producerIndex.get();
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (index < end) {
+                final E e = buffer.get(slot(index));
+                // read after the slot, while the consumer hasn't passed the index the slot can't be reused
+                final long consumed = consumerIndex;
+                if (consumed > index) {
+                    index = consumed;
+                    continue;
+                }
+                index++;
+                if (e != null) {
+                    next = e;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            final E e = next;
+            if (e == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return e;
+        }
+    }
+
+    private int slot(long index) {
+        return (int) index & mask;
+    }
+}
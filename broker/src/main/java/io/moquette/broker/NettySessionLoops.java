@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executes the sessions' commands directly on the Netty event loops, instead of dedicated session threads.
+ * <p>
+ * A session is owned by the event loop of the channel of its connection, so the packets read from the
+ * channel are processed inline, without any thread hop; commands coming from other threads, like the
+ * deliveries of a publish to the subscribers, are submitted to the owner loop. Sessions without a connection
+ * are owned by the loop that first routes a command to them.
+ * <p>
+ * The ownership of a session moves when a client connects on a channel of another loop. The new owner holds
+ * the session's commands until the previous one has executed all the commands already submitted to it, so
+ * a session is never accessed by two threads and its commands keep their order.
+ */
+final class NettySessionLoops {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NettySessionLoops.class);
+
+    static final class SessionOwner {
+
+        private final EventLoop loop;
+        // count of routings in progress that selected this owner
+        private final LongAdder routers = new LongAdder();
+        private volatile boolean retired;
+        private volatile boolean drained;
+        private volatile SessionOwner successor;
+
+        // accessed only by the loop's thread
+        private boolean holding;
+        private final Deque<SessionCommand> held = new ArrayDeque<>();
+
+        SessionOwner(EventLoop loop, boolean holding) {
+            this.loop = loop;
+            this.holding = holding;
+        }
+
+        /**
+         * Invoked by the owner loop.
+         * */
+        void process(SessionCommand command) {
+            if (holding) {
+                held.add(command);
+            } else {
+                SessionEventLoop.executeCommand(command);
+            }
+        }
+
+        private void handOver(SessionOwner successor) {
+            this.successor = successor;
+            if (drained) {
+                successor.loop.execute(successor::release);
+            }
+        }
+
+        /**
+         * Invoked by the owner loop once the previous owner has executed all its commands, could be invoked
+         * more than once.
+         * */
+        private void release() {
+            // still holding while draining, so that the commands routed inline queue up after the held ones
+            while (!held.isEmpty()) {
+                SessionEventLoop.executeCommand(held.poll());
+            }
+            holding = false;
+        }
+    }
+
+    private final ConcurrentMap<String, SessionOwner> owners = new ConcurrentHashMap<>();
+    private final EventLoopGroup eventLoops;
+
+    NettySessionLoops(EventLoopGroup eventLoops) {
+        this.eventLoops = eventLoops;
+        for (EventExecutor executor : eventLoops) {
+            // every loop ticks the retransmission deadlines of its sessions
+            final EventLoop loop = (EventLoop) executor;
+            loop.execute(() -> new RetransmissionWheel(loop).bind());
+        }
+    }
+
+    /**
+     * Execute the command inline when already on the owner loop of the session, else submit to it.
+     *
+     * @param preferredLoop the loop that will own the session if no one owns it yet, or null for any loop.
+     * @return false if the owner loop rejected the command.
+     * */
+    boolean route(SessionCommand command, EventLoop preferredLoop) {
+        final String clientId = command.getSessionId();
+        while (true) {
+            SessionOwner owner = owners.get(clientId);
+            if (owner == null) {
+                final SessionOwner created = new SessionOwner(loopOrAny(preferredLoop), false);
+                owner = owners.putIfAbsent(clientId, created);
+                if (owner == null) {
+                    owner = created;
+                }
+            }
+            if (owner.retired) {
+                // the previous owner is leaving the session, the new one has to wait for it
+                final SessionOwner successor = new SessionOwner(loopOrAny(preferredLoop), true);
+                if (owners.replace(clientId, owner, successor)) {
+                    owner.handOver(successor);
+                }
+                continue;
+            }
+            owner.routers.increment();
+            try {
+                if (owner.retired) {
+                    // raced with a change of ownership
+                    continue;
+                }
+                if (owner.loop.inEventLoop()) {
+                    owner.process(command);
+                    return true;
+                }
+                command.assignOwner(owner);
+                owner.loop.execute(command);
+                return true;
+            } catch (RejectedExecutionException rex) {
+                LOG.warn("Event loop rejected command {}", command, rex);
+                return false;
+            } finally {
+                owner.routers.decrement();
+            }
+        }
+    }
+
+    private EventLoop loopOrAny(EventLoop preferredLoop) {
+        return preferredLoop != null ? preferredLoop : eventLoops.next();
+    }
+
+    /**
+     * Move the session to the given loop, must be invoked by a command executing on the current owner.
+     * */
+    void pinSession(String clientId, EventLoop loop) {
+        final SessionOwner owner = owners.get(clientId);
+        if (isActiveOwner(owner) && owner.loop != loop) {
+            LOG.debug("Moving session {} to the event loop of its channel", clientId);
+            retire(clientId, owner, loop);
+        }
+    }
+
+    /**
+     * Release the ownership of the session, must be invoked by a command executing on the current owner.
+     * */
+    void unpinSession(String clientId) {
+        final SessionOwner owner = owners.get(clientId);
+        if (isActiveOwner(owner)) {
+            retire(clientId, owner, null);
+        }
+    }
+
+    private static boolean isActiveOwner(SessionOwner owner) {
+        // a stale command, executing on a previous owner, can't change the ownership
+        return owner != null && owner.loop.inEventLoop() && !owner.retired && !owner.holding;
+    }
+
+    private void retire(String clientId, SessionOwner owner, EventLoop successorLoop) {
+        owner.retired = true;
+        if (successorLoop != null) {
+            final SessionOwner successor = new SessionOwner(successorLoop, true);
+            if (owners.replace(clientId, owner, successor)) {
+                owner.handOver(successor);
+            }
+        }
+        owner.loop.execute(() -> awaitRouters(clientId, owner));
+    }
+
+    private void awaitRouters(String clientId, SessionOwner owner) {
+        if (owner.routers.sum() != 0) {
+            owner.loop.execute(() -> awaitRouters(clientId, owner));
+            return;
+        }
+        // no more routings in progress, the last commands are already queued before this one
+        owner.loop.execute(() -> {
+            owner.drained = true;
+            final SessionOwner successor = owner.successor;
+            if (successor != null) {
+                successor.loop.execute(successor::release);
+            } else {
+                // nobody is waiting for the session, if someone comes later will find nothing to wait for
+                owners.remove(clientId, owner);
+            }
+        });
+    }
+}
@@ -148,23 +148,14 @@ class NewNettyAcceptor {
         maxBytesInMessage = props.intProp(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME,
                 BrokerConstants.DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE);
 
-        boolean epoll = props.boolProp(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, false);
-        if (epoll) {
-            LOG.info("Netty is using Epoll");
-            bossGroup = new EpollEventLoopGroup();
-            workerGroup = new EpollEventLoopGroup();
-            channelClass = EpollServerSocketChannel.class;
-        } else {
-            LOG.info("Netty is using NIO");
-            bossGroup = new NioEventLoopGroup();
-            workerGroup = new NioEventLoopGroup();
-            channelClass = NioServerSocketChannel.class;
+        if (workerGroup == null) {
+            createEventLoopGroups(props);
         }
 
         final boolean useFineMetrics = props.boolProp(METRICS_ENABLE_PROPERTY_NAME, false);
         if (useFineMetrics) {
             DropWizardMetricsHandler metricsHandler = new DropWizardMetricsHandler();
-            metricsHandler.init(props);
+            metricsHandler.init(props, mqttHandler.sessionRegistry());
             this.metrics = Optional.of(metricsHandler);
         } else {
             this.metrics = Optional.empty();
@@ -191,6 +182,30 @@ class NewNettyAcceptor {
         }
     }
 
+    /**
+     * Create the event loops of the acceptor, could be invoked before {@link #initialize} to share the worker
+     * loops with the broker.
+     * */
+    void createEventLoopGroups(IConfig props) {
+        boolean epoll = props.boolProp(BrokerConstants.NETTY_EPOLL_PROPERTY_NAME, false);
+        if (epoll) {
+            LOG.info("Netty is using Epoll");
+            bossGroup = new EpollEventLoopGroup();
+            workerGroup = new EpollEventLoopGroup();
+            channelClass = EpollServerSocketChannel.class;
+        } else {
+            LOG.info("Netty is using NIO");
+            bossGroup = new NioEventLoopGroup();
+            workerGroup = new NioEventLoopGroup();
+            channelClass = NioServerSocketChannel.class;
+        }
+        FlushConsolidator.bindTo(workerGroup);
+    }
+
+    EventLoopGroup workerGroup() {
+        return workerGroup;
+    }
+
     private boolean securityPortsConfigured(IConfig props) {
         String sslTcpPortProp = props.getProperty(BrokerConstants.SSL_PORT_PROPERTY_NAME);
         String wssPortProp = props.getProperty(BrokerConstants.WSS_PORT_PROPERTY_NAME);
@@ -269,7 +284,6 @@ class NewNettyAcceptor {
             pipeline.addLast("bugsnagCatcher", errorsCather.get());
         }
         pipeline.addFirst("bytemetrics", new BytesMetricsHandler(bytesMetricsCollector));
-        pipeline.addLast("autoflush", new AutoFlushHandler(1, TimeUnit.SECONDS));
         pipeline.addLast("decoder", new MqttDecoder(maxBytesInMessage));
         pipeline.addLast("encoder", MqttEncoder.INSTANCE);
         pipeline.addLast("metrics", new MessageMetricsHandler(metricsCollector));
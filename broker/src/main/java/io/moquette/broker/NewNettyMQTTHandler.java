@@ -42,6 +42,10 @@ public class NewNettyMQTTHandler extends ChannelInboundHandlerAdapter {
         this.connectionFactory = connectionFactory;
     }
 
+    SessionRegistry sessionRegistry() {
+        return connectionFactory.sessionRegistry();
+    }
+
     private static void mqttConnection(Channel channel, MQTTConnection connection) {
         channel.attr(ATTR_KEY_CONNECTION).set(connection);
     }
@@ -105,13 +109,4 @@ public class NewNettyMQTTHandler extends ChannelInboundHandlerAdapter {
         ctx.fireChannelWritabilityChanged();
     }
 
-    @Override
-    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
-        if (evt instanceof InflightResender.ResendNotAckedPublishes) {
-            final MQTTConnection mqttConnection = mqttConnection(ctx.channel());
-            mqttConnection.resendNotAckedPublishes();
-        }
-        ctx.fireUserEventTriggered(evt);
-    }
-
 }
@@ -18,11 +18,14 @@ package io.moquette.broker;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.SubscriptionsCollector;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,7 +37,6 @@ import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.*;
-import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static io.moquette.broker.Utils.messageId;
@@ -153,6 +155,9 @@ class PostOffice {
             if (status == Status.FAIL) {
                 throw new IllegalArgumentException("Accessing completable future on a failed result");
             }
+            if (queuedFuture == null) {
+                throw new IllegalStateException("Completion was not requested when routing the command");
+            }
             return queuedFuture;
         }
 
@@ -172,44 +177,89 @@ class PostOffice {
 
     private static final Set<String> NO_FILTER = new HashSet<>();
 
+    /**
+     * Fan-out from which a publish is encoded once and the same frames are written to all the subscribers,
+     * under it the encoding of the single messages costs less than composing the shared buffers.
+     */
+    static final int SHARED_FRAMES_MIN_SUBSCRIBERS = 8;
+
+    public static final int DEFAULT_CHUNKED_FANOUT_THRESHOLD = 10_000;
+    static final int DEFAULT_CHUNKED_FANOUT_SIZE = 1_024;
+
+    // every thread that publishes reuses its own collector of the matching subscriptions
+    private static final FastThreadLocal<SubscriptionsCollector> MATCHING_SUBSCRIPTIONS =
+        new FastThreadLocal<SubscriptionsCollector>() {
+            @Override
+            protected SubscriptionsCollector initialValue() {
+                return new SubscriptionsCollector();
+            }
+        };
+
     private final Authorizator authorizator;
     private final ISubscriptionsDirectory subscriptions;
     private final IRetainedRepository retainedRepository;
     private SessionRegistry sessionRegistry;
     private BrokerInterceptor interceptor;
 
-    private final Thread[] sessionExecutors;
-    private final BlockingQueue<FutureTask<String>>[] sessionQueues;
-    private final int eventLoops = Runtime.getRuntime().availableProcessors();
+    // exactly one of the two is used, dedicated session threads or the Netty event loops
+    private final SessionEventLoopGroup sessionLoops;
+    private final NettySessionLoops nettySessionLoops;
     private final FailedPublishCollection failedPublishes = new FailedPublishCollection();
+    private int chunkedFanoutThreshold = DEFAULT_CHUNKED_FANOUT_THRESHOLD;
+    private int chunkedFanoutSize = DEFAULT_CHUNKED_FANOUT_SIZE;
 
     PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
                SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator, int sessionQueueSize) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator,
+             new SessionEventLoopGroup(Runtime.getRuntime().availableProcessors(),
+                                       () -> new ArrayBlockingQueue<>(sessionQueueSize)));
+    }
+
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               SessionEventLoopGroup sessionLoops) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, sessionLoops, null);
+    }
+
+    /**
+     * Sessions are processed by the Netty event loops that own their channels.
+     * */
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               NettySessionLoops nettySessionLoops) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, null,
+             nettySessionLoops);
+    }
+
+    private PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+                       SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+                       SessionEventLoopGroup sessionLoops, NettySessionLoops nettySessionLoops) {
         this.authorizator = authorizator;
         this.subscriptions = subscriptions;
         this.retainedRepository = retainedRepository;
         this.sessionRegistry = sessionRegistry;
         this.interceptor = interceptor;
-
-        this.sessionQueues = new BlockingQueue[eventLoops];
-        for (int i = 0; i < eventLoops; i++) {
-            this.sessionQueues[i] = new ArrayBlockingQueue<>(sessionQueueSize);
-        }
-        this.sessionExecutors = new Thread[eventLoops];
-        for (int i = 0; i < eventLoops; i++) {
-            this.sessionExecutors[i] = new Thread(new SessionEventLoop(this.sessionQueues[i]));
-            this.sessionExecutors[i].setName("Session Executor " + i);
-            this.sessionExecutors[i].start();
-        }
+        this.sessionLoops = sessionLoops;
+        this.nettySessionLoops = nettySessionLoops;
     }
 
     public void init(SessionRegistry sessionRegistry) {
         this.sessionRegistry = sessionRegistry;
     }
 
+    /**
+     * @param threshold min number of subscribers of a publish to route them in chunks while they are grouped by
+     *                  session loop, 0 to always group them all before routing.
+     * @param chunkSize number of subscribers of the same session loop routed together.
+     * */
+    void configureChunkedFanout(int threshold, int chunkSize) {
+        this.chunkedFanoutThreshold = threshold;
+        this.chunkedFanoutSize = chunkSize;
+    }
+
     public void fireWill(Session.Will will) {
         // MQTT 3.1.2.8-17
-        publish2Subscribers(will.payload, new Topic(will.topic), will.qos);
+        publish2Subscribers(null, will.payload, Topic.intern(will.topic), will.qos, false);
     }
 
     public void subscribeClientToTopics(MqttSubscribeMessage msg, String clientID, String username,
@@ -220,11 +270,13 @@ class PostOffice {
         MqttSubAckMessage ackMessage = doAckMessageFromValidateFilters(ackTopics, messageID);
 
         // store topics subscriptions in session
+        Session session = sessionRegistry.retrieve(clientID);
+        final int clientHandle = session.clientHandle;
         List<Subscription> newSubscriptions = ackTopics.stream()
             .filter(req -> req.qualityOfService() != FAILURE)
             .map(req -> {
                 final Topic topic = new Topic(req.topicName());
-                return new Subscription(clientID, topic, req.qualityOfService());
+                return new Subscription(clientID, topic, req.qualityOfService(), clientHandle);
             }).collect(Collectors.toList());
 
         for (Subscription subscription : newSubscriptions) {
@@ -232,7 +284,6 @@ class PostOffice {
         }
 
         // add the subscriptions to Session
-        Session session = sessionRegistry.retrieve(clientID);
         session.addSubscriptions(newSubscriptions);
 
         // send ack message
@@ -249,21 +300,9 @@ class PostOffice {
         Session targetSession = this.sessionRegistry.retrieve(clientID);
         for (Subscription subscription : newSubscriptions) {
             final String topicFilter = subscription.getTopicFilter().toString();
-            final List<RetainedMessage> retainedMsgs = retainedRepository.retainedOnTopic(topicFilter);
-
-            if (retainedMsgs.isEmpty()) {
-                // not found
-                continue;
-            }
-            for (RetainedMessage retainedMsg : retainedMsgs) {
-                final MqttQoS retainedQos = retainedMsg.qosLevel();
-                MqttQoS qos = lowerQosToTheSubscriptionDesired(subscription, retainedQos);
-
-                final ByteBuf payloadBuf = Unpooled.wrappedBuffer(retainedMsg.getPayload());
-                targetSession.sendRetainedPublishOnSessionAtQos(retainedMsg.getTopic(), qos, payloadBuf);
-                // We made the buffer, we must release it.
-                payloadBuf.release();
-            }
+            final List<Topic> retainedTopics = retainedRepository.retainedTopics(topicFilter);
+            // flow controlled by the session, that resumes it on the next writability change or acknowledge
+            targetSession.deliverRetained(subscription, retainedRepository, retainedTopics);
         }
     }
 
@@ -316,12 +355,22 @@ class PostOffice {
     }
 
     CompletableFuture<Void> receivedPublishQos0(Topic topic, String username, String clientID, MqttPublishMessage msg) {
+        return receivedPublishQos0(null, topic, username, clientID, msg);
+    }
+
+    /**
+     * @param publisher the channel the message was read from, suspended when the subscribers' loops are
+     *                  congested, null if the message doesn't come from a client.
+     * */
+    CompletableFuture<Void> receivedPublishQos0(Channel publisher, Topic topic, String username, String clientID,
+                                                MqttPublishMessage msg) {
         if (!authorizator.canWrite(topic, username, clientID)) {
             LOG.error("client is not authorized to publish on topic: {}", topic);
             ReferenceCountUtil.release(msg);
             return CompletableFuture.completedFuture(null);
         }
-        final RoutingResults publishResult = publish2Subscribers(msg.payload(), topic, AT_MOST_ONCE);
+        final RoutingResults publishResult = publish2Subscribers(publisher, msg.payload(), topic, AT_MOST_ONCE,
+                                                                 true);
         if (publishResult.isAllFailed()) {
             LOG.info("No one publish was successfully enqueued to session loops");
             ReferenceCountUtil.release(msg);
@@ -341,6 +390,15 @@ class PostOffice {
 
     RoutingResults receivedPublishQos1(MQTTConnection connection, Topic topic, String username, int messageID,
                                                 MqttPublishMessage msg) {
+        return receivedPublishQos1(connection, topic, username, messageID, msg, true);
+    }
+
+    /**
+     * @param trackCompletion when true the returned result carries a future completed once all the
+     *                        subscriber's session loops executed the publish.
+     * */
+    RoutingResults receivedPublishQos1(MQTTConnection connection, Topic topic, String username, int messageID,
+                                       MqttPublishMessage msg, boolean trackCompletion) {
         // verify if topic can be written
         topic.getTokens();
         if (!topic.isValid()) {
@@ -360,9 +418,10 @@ class PostOffice {
         final RoutingResults routes;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            routes = publish2Subscribers(payload, topic, AT_LEAST_ONCE, failedClients);
+            routes = publish2Subscribers(connection.channel, payload, topic, AT_LEAST_ONCE, failedClients,
+                                         trackCompletion);
         } else {
-            routes = publish2Subscribers(payload, topic, AT_LEAST_ONCE);
+            routes = publish2Subscribers(connection.channel, payload, topic, AT_LEAST_ONCE, trackCompletion);
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("subscriber routes: {}", routes);
@@ -395,128 +454,251 @@ class PostOffice {
         }
     }
 
-    private RoutingResults publish2Subscribers(ByteBuf payload, Topic topic, MqttQoS publishingQos) {
-        return publish2Subscribers(payload, topic, publishingQos, NO_FILTER);
+    private RoutingResults publish2Subscribers(Channel publisher, ByteBuf payload, Topic topic,
+                                               MqttQoS publishingQos, boolean trackCompletion) {
+        return publish2Subscribers(publisher, payload, topic, publishingQos, NO_FILTER, trackCompletion);
     }
 
+    /**
+     * Groups the subscriptions by the session loop that owns their client, all decided on the same ring.
+     * Without a ring, when the sessions run on the Netty event loops, every subscription is routed by itself
+     * to the loop of its session.
+     * <p>
+     * A batch that reaches the chunk size is routed at once, so that its session loop starts delivering while the
+     * rest of the subscriptions is still being grouped; the batches for the loop of the current thread are kept
+     * to the end, they're executed inline.
+     * */
     private class BatchingPublishesCollector {
-        final List<Subscription>[] subscriptions;
-        private final int eventLoops;
-
-        BatchingPublishesCollector(int eventLoops) {
-            subscriptions = new List[eventLoops];
-            this.eventLoops = eventLoops;
+        private final SessionEventLoopGroup.Ring ring;
+        private final SessionEventLoopGroup.Migration migration;
+        // during a migration a batch can't mix sessions with different previous owners
+        private final int stride;
+        private final List<Subscription>[] batchesByKey;
+        private final List<List<Subscription>> singleBatches = new ArrayList<>();
+        private final Channel publisher;
+        private final int chunkSize;
+        // the routed batches and their results, in the same order
+        private final List<List<Subscription>> routedBatches = new ArrayList<>();
+        final List<RouteResult> publishResults = new ArrayList<>();
+        private ByteBuf payload;
+        private PublishFrames frames;
+        private Topic topic;
+        private MqttQoS publishingQos;
+        private boolean trackCompletion;
+
+        /**
+         * @param chunkSize size over which a batch is routed before all the subscriptions are collected,
+         *                  Integer.MAX_VALUE to route them all at the end.
+         * */
+        BatchingPublishesCollector(SessionEventLoopGroup.Ring ring, SessionEventLoopGroup.Migration migration,
+                                   Channel publisher, int chunkSize) {
+            this.ring = ring;
+            this.migration = migration;
+            this.publisher = publisher;
+            this.chunkSize = chunkSize;
+            this.stride = migration == null ? 1 : migration.from.size();
+            this.batchesByKey = ring == null ? null : new List[ring.size() * stride];
+        }
+
+        /**
+         * Set what's routed, must be invoked before the first batch can reach the chunk size.
+         * */
+        void prepareRouting(ByteBuf payload, PublishFrames frames, Topic topic, MqttQoS publishingQos,
+                            boolean trackCompletion) {
+            this.payload = payload;
+            this.frames = frames;
+            this.topic = topic;
+            this.publishingQos = publishingQos;
+            this.trackCompletion = trackCompletion;
         }
 
         public void add(Subscription sub) {
-            final int targetQueueId = subscriberEventLoop(sub.getClientId());
-            if (subscriptions[targetQueueId] == null) {
-                subscriptions[targetQueueId] = new ArrayList<>();
+            if (ring == null) {
+                singleBatches.add(Collections.singletonList(sub));
+                return;
+            }
+            final int loopId = ring.loopFor(sub.getClientId());
+            final int key = migration == null ? loopId : loopId * stride + migration.from.loopFor(sub.getClientId());
+            List<Subscription> batch = batchesByKey[key];
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batchesByKey[key] = batch;
+            }
+            batch.add(sub);
+            if (batch.size() >= chunkSize && !ring.loop(loopId).isLoopThread()) {
+                batchesByKey[key] = null;
+                route(batch);
             }
-            subscriptions[targetQueueId].add(sub);
-        }
-
-        private int subscriberEventLoop(String clientId) {
-            return Math.abs(clientId.hashCode()) % this.eventLoops;
         }
 
-        List<RouteResult> routeBatchedPublishes(Consumer<List<Subscription>> action) {
-            List<RouteResult> publishResults = new ArrayList<>(this.eventLoops);
-
-            for (List<Subscription> subscriptionsBatch : subscriptions) {
-                if (subscriptionsBatch == null) {
-                    continue;
+        /**
+         * Route to every session loop the batches not yet routed.
+         * */
+        void routeRemaining() {
+            if (ring == null) {
+                for (List<Subscription> batch : singleBatches) {
+                    route(batch);
                 }
-                final String clientId = subscriptionsBatch.get(0).getClientId();
-                if (LOG.isTraceEnabled()) {
-                    final String subscriptionsDetails = subscriptionsBatch.stream()
-                        .map(Subscription::toString)
-                        .collect(Collectors.joining(",\n"));
-                    final int loopId = subscriberEventLoop(clientId);
-                    LOG.trace("Routing PUBLISH to eventLoop {}  for subscriptions [{}]", loopId, subscriptionsDetails);
+                singleBatches.clear();
+                return;
+            }
+            for (int key = 0; key < batchesByKey.length; key++) {
+                final List<Subscription> batch = batchesByKey[key];
+                if (batch != null) {
+                    batchesByKey[key] = null;
+                    route(batch);
                 }
-                publishResults.add(routeCommand(clientId, "batched PUB", () -> {
-                    action.accept(subscriptionsBatch);
-                    return null;
-                }));
             }
-            return publishResults;
         }
 
-        Collection<String> subscriberIdsByEventLoop(String clientId) {
-            final int targetQueueId = subscriberEventLoop(clientId);
-            return subscriptions[targetQueueId].stream().map(Subscription::getClientId).collect(Collectors.toList());
+        /**
+         * Every routed batch owns a reference count of the payload and of the frames.
+         * */
+        private void route(List<Subscription> subscriptionsBatch) {
+            final String clientId = subscriptionsBatch.get(0).getClientId();
+            payload.retain();
+            if (frames != null) {
+                frames.retain();
+            }
+            final SessionCommand cmd = SessionCommand.routePublish(PostOffice.this, clientId, payload, frames,
+                                                                   topic, publishingQos, subscriptionsBatch);
+            if (trackCompletion) {
+                cmd.withCompletion();
+            }
+            routedBatches.add(subscriptionsBatch);
+            if (ring == null) {
+                publishResults.add(routeOnNettyLoop(cmd));
+                return;
+            }
+            final int loopId = ring.loopFor(clientId);
+            if (LOG.isTraceEnabled()) {
+                final String subscriptionsDetails = subscriptionsBatch.stream()
+                    .map(Subscription::toString)
+                    .collect(Collectors.joining(",\n"));
+                LOG.trace("Routing PUBLISH to eventLoop {}  for subscriptions [{}]", loopId, subscriptionsDetails);
+            }
+            publishResults.add(routeCommand(ring, loopId, cmd, publisher));
         }
 
-        public int countBatches() {
-            int count = 0;
-            for (List<Subscription> subscriptionsBatch : subscriptions) {
-                if (subscriptionsBatch == null) {
-                    continue;
-                }
-                count ++;
-            }
-            return count;
+        Collection<String> subscriberIds(int batchIndex) {
+            return routedBatches.get(batchIndex).stream().map(Subscription::getClientId).collect(Collectors.toList());
         }
     }
 
-    private RoutingResults publish2Subscribers(ByteBuf payload, Topic topic, MqttQoS publishingQos,
-                                               Set<String> filterTargetClients) {
-        Set<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
+    /**
+     * @param publisher the channel of the client that sent the message, suspended when a subscribers' session
+     *                  loop is congested, null for messages not coming from a client.
+     * */
+    private RoutingResults publish2Subscribers(Channel publisher, ByteBuf payload, Topic topic,
+                                               MqttQoS publishingQos, Set<String> filterTargetClients,
+                                               boolean trackCompletion) {
+        final SubscriptionsCollector topicMatchingSubscriptions = MATCHING_SUBSCRIPTIONS.get();
+        try {
+            subscriptions.matchQosSharpening(topic, topicMatchingSubscriptions);
+        } catch (RuntimeException ex) {
+            topicMatchingSubscriptions.clear();
+            throw ex;
+        }
         if (topicMatchingSubscriptions.isEmpty()) {
             // no matching subscriptions, clean exit
             LOG.trace("No matching subscriptions for topic: {}", topic);
             return new RoutingResults(Collections.emptyList(), Collections.emptyList(), CompletableFuture.completedFuture(null));
         }
 
-        final BatchingPublishesCollector collector = new BatchingPublishesCollector(eventLoops);
-
-        for (final Subscription sub : topicMatchingSubscriptions) {
-            if (filterTargetClients == NO_FILTER || filterTargetClients.contains(sub.getClientId())) {
-                collector.add(sub);
+        final SessionEventLoopGroup.Ring ring = sessionLoops != null ? sessionLoops.enterRing() : null;
+        final List<RouteResult> publishResults;
+        final BatchingPublishesCollector collector;
+        PublishFrames frames = null;
+        try {
+            final boolean chunked = ring != null && chunkedFanoutThreshold > 0
+                && topicMatchingSubscriptions.size() >= chunkedFanoutThreshold;
+            collector = new BatchingPublishesCollector(ring, ring != null ? sessionLoops.migration() : null,
+                                                       publisher, chunked ? chunkedFanoutSize : Integer.MAX_VALUE);
+            if (chunked) {
+                // the chunks are routed before knowing the QoS of all the targets, prepare the ones they can get
+                frames = new PublishFrames(ByteBufAllocator.DEFAULT, topic.toString(), payload,
+                                           (2 << publishingQos.value()) - 1);
+                collector.prepareRouting(payload, frames, topic, publishingQos, trackCompletion);
+            }
+            int targets = 0;
+            int qosLevels = 0;
+            try {
+                for (int i = 0; i < topicMatchingSubscriptions.size(); i++) {
+                    final Subscription sub = topicMatchingSubscriptions.get(i);
+                    if (filterTargetClients == NO_FILTER || filterTargetClients.contains(sub.getClientId())) {
+                        collector.add(sub);
+                        targets++;
+                        qosLevels |= 1 << lowerQosToTheSubscriptionDesired(sub, publishingQos).value();
+                    }
+                }
+            } finally {
+                // free before routing, a command executed inline may publish again on this thread
+                topicMatchingSubscriptions.clear();
+            }
+            if (!chunked) {
+                if (targets >= SHARED_FRAMES_MIN_SUBSCRIBERS) {
+                    frames = new PublishFrames(ByteBufAllocator.DEFAULT, topic.toString(), payload, qosLevels);
+                }
+                collector.prepareRouting(payload, frames, topic, publishingQos, trackCompletion);
+            }
+            collector.routeRemaining();
+            publishResults = collector.publishResults;
+        } finally {
+            if (ring != null) {
+                sessionLoops.exitRing(ring);
             }
         }
-        payload.retain(collector.countBatches());
 
-        List<RouteResult> publishResults = collector.routeBatchedPublishes((batch) -> {
-            publishToSession(payload, topic, batch, publishingQos);
-            payload.release();
-        });
-
-        final CompletableFuture[] publishFutures = publishResults.stream()
-            .filter(RouteResult::isSuccess)
-            .map(RouteResult::completableFuture).toArray(CompletableFuture[]::new);
-        final CompletableFuture<Void> publishes = CompletableFuture.allOf(publishFutures);
+        CompletableFuture<Void> publishes = null;
+        if (trackCompletion) {
+            final CompletableFuture[] publishFutures = publishResults.stream()
+                .filter(RouteResult::isSuccess)
+                .map(RouteResult::completableFuture).toArray(CompletableFuture[]::new);
+            publishes = CompletableFuture.allOf(publishFutures);
+        }
 
         final List<String> failedRoutings = new ArrayList<>();
         final List<String> successedRoutings = new ArrayList<>();
-        for (RouteResult rr : publishResults) {
-            Collection<String> subscibersIds = collector.subscriberIdsByEventLoop(rr.clientId);
+        for (int i = 0; i < publishResults.size(); i++) {
+            final RouteResult rr = publishResults.get(i);
+            Collection<String> subscibersIds = collector.subscriberIds(i);
             if (rr.status == RouteResult.Status.FAIL) {
                 failedRoutings.addAll(subscibersIds);
                 payload.release();
+                if (frames != null) {
+                    frames.release();
+                }
             } else {
                 successedRoutings.addAll(subscibersIds);
             }
         }
+        if (frames != null) {
+            // the frames are owned by the routed commands
+            frames.release();
+        }
         return new RoutingResults(successedRoutings, failedRoutings, publishes);
     }
 
-    private void publishToSession(ByteBuf payload, Topic topic, Collection<Subscription> subscriptions, MqttQoS publishingQos) {
+    /**
+     * @param frames the shared encoded frames of the message, or null to encode it for every subscriber.
+     * */
+    void publishToSession(ByteBuf payload, PublishFrames frames, Topic topic, Collection<Subscription> subscriptions,
+                          MqttQoS publishingQos) {
         for (Subscription sub : subscriptions) {
             MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            publishToSession(payload, topic, sub, qos);
+            publishToSession(payload, frames, topic, sub, qos);
         }
     }
 
-    private void publishToSession(ByteBuf payload, Topic topic, Subscription sub, MqttQoS qos) {
-        Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
+    private void publishToSession(ByteBuf payload, PublishFrames frames, Topic topic, Subscription sub,
+                                  MqttQoS qos) {
+        Session targetSession = this.sessionRegistry.retrieve(sub);
 
         boolean isSessionPresent = targetSession != null;
         if (isSessionPresent) {
             LOG.debug("Sending PUBLISH message to active subscriber CId: {}, topicFilter: {}, qos: {}",
                       sub.getClientId(), sub.getTopicFilter(), qos);
-            targetSession.sendNotRetainedPublishOnSessionAtQos(topic, qos, payload);
+            targetSession.sendNotRetainedPublishOnSessionAtQos(topic, qos, payload, frames);
         } else {
             // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
             // destination.
@@ -531,8 +713,13 @@ class PostOffice {
      * @return
      */
     RoutingResults receivedPublishQos2(MQTTConnection connection, MqttPublishMessage msg, String username) {
+        return receivedPublishQos2(connection, msg, username, true);
+    }
+
+    RoutingResults receivedPublishQos2(MQTTConnection connection, MqttPublishMessage msg, String username,
+                                       boolean trackCompletion) {
         LOG.trace("Processing PUB QoS2 message on connection: {}", connection);
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.intern(msg.variableHeader().topicName());
         final ByteBuf payload = msg.payload();
 
         final String clientId = connection.getClientId();
@@ -547,9 +734,11 @@ class PostOffice {
         final RoutingResults publishRoutings;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            publishRoutings = publish2Subscribers(payload, topic, EXACTLY_ONCE, failedClients);
+            publishRoutings = publish2Subscribers(connection.channel, payload, topic, EXACTLY_ONCE, failedClients,
+                                                  trackCompletion);
         } else {
-            publishRoutings = publish2Subscribers(payload, topic, EXACTLY_ONCE);
+            publishRoutings = publish2Subscribers(connection.channel, payload, topic, EXACTLY_ONCE,
+                                                  trackCompletion);
         }
         if (publishRoutings.isAllSuccess()) {
             // QoS2 PUB message was enqueued successfully to every event loop
@@ -589,11 +778,11 @@ class PostOffice {
      */
     public RoutingResults internalPublish(MqttPublishMessage msg) {
         final MqttQoS qos = msg.fixedHeader().qosLevel();
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.intern(msg.variableHeader().topicName());
         final ByteBuf payload = msg.payload();
         LOG.info("Sending internal PUBLISH message Topic={}, qos={}", topic, qos);
 
-        final RoutingResults publishResult = publish2Subscribers(payload, topic, qos);
+        final RoutingResults publishResult = publish2Subscribers(null, payload, topic, qos, true);
         LOG.trace("after routed publishes: {}", publishResult);
 
         if (!msg.fixedHeader().isRetain()) {
@@ -625,39 +814,97 @@ class PostOffice {
     }
 
     /**
-     * Route the command to the owning SessionEventLoop
+     * Route the command to the owning SessionEventLoop. The command must not be accessed after this call,
+     * the future to wait for its execution, if requested, is carried by the result.
      * */
-    public RouteResult routeCommand(String clientId, String actionDescription, Callable<String> action) {
-        SessionCommand cmd = new SessionCommand(clientId, action);
-        final int targetQueueId = Math.abs(cmd.getSessionId().hashCode()) % this.eventLoops;
-        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, cmd.getSessionId(), targetQueueId);
-        final FutureTask<String> task = new FutureTask<>(() -> {
-            cmd.execute();
-            cmd.complete();
-            return cmd.getSessionId();
-        });
-        if (Thread.currentThread() == sessionExecutors[targetQueueId]) {
-            SessionEventLoop.executeTask(task);
-            return RouteResult.success(clientId, cmd.completableFuture());
+    public RouteResult routeCommand(SessionCommand cmd) {
+        if (nettySessionLoops != null) {
+            return routeOnNettyLoop(cmd);
+        }
+        // a client that floods the broker with publishes is slowed down, the other packets are always welcome
+        final Channel publisher = cmd.type() == SessionCommand.Type.PUBLISH ? cmd.channel() : null;
+        final SessionEventLoopGroup.Ring ring = sessionLoops.enterRing();
+        try {
+            return routeCommand(ring, ring.loopFor(cmd.getSessionId()), cmd, publisher);
+        } finally {
+            sessionLoops.exitRing(ring);
         }
-        if (this.sessionQueues[targetQueueId].offer(task)) {
-            return RouteResult.success(clientId, cmd.completableFuture());
+    }
+
+    /**
+     * @param publisher the channel to suspend if the target loop is over its high watermark, or null.
+     * */
+    private RouteResult routeCommand(SessionEventLoopGroup.Ring ring, int targetQueueId, SessionCommand cmd,
+                                     Channel publisher) {
+        final String clientId = cmd.getSessionId();
+        // grab before handing over the command, once executed it's recycled
+        final CompletableFuture<String> completion = cmd.completion();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", cmd.type(), clientId, targetQueueId);
+        }
+        final SessionEventLoop targetLoop = ring.loop(targetQueueId);
+        if (targetLoop.isLoopThread()) {
+            targetLoop.process(cmd);
+            return RouteResult.success(clientId, completion);
+        }
+        final SessionCommand.Type type = cmd.type();
+        if (targetLoop.offer(cmd)) {
+            if (publisher != null) {
+                targetLoop.throttleIfCongested(publisher);
+            }
+            return RouteResult.success(clientId, completion);
         } else {
-            LOG.warn("Session command queue {} is full executing action {}", targetQueueId, actionDescription);
+            LOG.warn("Session command queue {} is full (depth {}) executing action {}", targetQueueId,
+                     targetLoop.queueDepth(), type);
+            cmd.recycle();
             return RouteResult.failed(clientId);
         }
     }
 
-    public void terminate() {
-        for (Thread processor : sessionExecutors) {
-            processor.interrupt();
+    private RouteResult routeOnNettyLoop(SessionCommand cmd) {
+        final String clientId = cmd.getSessionId();
+        final CompletableFuture<String> completion = cmd.completion();
+        if (nettySessionLoops.route(cmd, cmd.preferredLoop())) {
+            return RouteResult.success(clientId, completion);
         }
-        for (Thread processor : sessionExecutors) {
-            try {
-                processor.join(5_000);
-            } catch (InterruptedException ex) {
-                LOG.info("Interrupted while joining session event loop {}", processor.getName(), ex);
-            }
+        cmd.recycle();
+        return RouteResult.failed(clientId);
+    }
+
+    /**
+     * Bind the session to the event loop of its connection's channel, when the sessions run on Netty's loops.
+     * Must be invoked by a command of the session.
+     * */
+    void pinSessionToChannelLoop(String clientId, Channel channel) {
+        if (nettySessionLoops != null) {
+            nettySessionLoops.pinSession(clientId, channel.eventLoop());
+        }
+    }
+
+    /**
+     * The session has no more a connection, its event loop can be released. Must be invoked by a command of
+     * the session.
+     * */
+    void unpinSession(String clientId) {
+        if (nettySessionLoops != null) {
+            nettySessionLoops.unpinSession(clientId);
+        }
+    }
+
+    /**
+     * Change the number of session loops, only the sessions whose owner loop changes are migrated.
+     * Blocks until the migration is completed.
+     * */
+    void resizeSessionLoops(int loops) throws InterruptedException {
+        if (sessionLoops == null) {
+            throw new IllegalStateException("Sessions run on the Netty event loops, their number can't be changed");
+        }
+        sessionLoops.resize(loops);
+    }
+
+    public void terminate() {
+        if (sessionLoops != null) {
+            sessionLoops.terminate();
         }
     }
 
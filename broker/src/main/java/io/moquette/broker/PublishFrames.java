@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AbstractReferenceCounted;
+
+/**
+ * The not retained PUBLISH frames of a message delivered to many subscribers, encoded once and shared by all
+ * the deliveries instead of letting the MqttEncoder re-encode the same message for every channel.
+ * <p>
+ * A QoS0 delivery writes a duplicate of the same complete frame; QoS1 and QoS2 deliveries differ only for the
+ * packet id, so they compose the shared fixed header and topic with their own 2 bytes and the shared payload.
+ * Instances are reference counted, the encoded headers are released once the last reference is gone.
+ */
+final class PublishFrames extends AbstractReferenceCounted {
+
+    private static final int MAX_HEADER_SIZE = 5;
+
+    private final ByteBufAllocator alloc;
+    private final ByteBuf payload;
+    // fixed header and topic, indexed by QoS value, null for QoS not requested
+    private final ByteBuf[] headers = new ByteBuf[3];
+    private final ByteBuf qos0Frame;
+
+    /**
+     * @param qosLevels the QoS values of the deliveries that will be requested, as a bit mask of
+     *                  {@code 1 << qos.value()}.
+     * */
+    PublishFrames(ByteBufAllocator alloc, String topicName, ByteBuf payload, int qosLevels) {
+        this.alloc = alloc;
+        this.payload = payload;
+        final int topicLength = ByteBufUtil.utf8Bytes(topicName);
+        for (MqttQoS qos : new MqttQoS[] {MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE}) {
+            if ((qosLevels & (1 << qos.value())) != 0) {
+                headers[qos.value()] = encodeHeader(alloc, topicName, topicLength, qos, payload.readableBytes());
+            }
+        }
+        if (headers[0] != null) {
+            final CompositeByteBuf frame = alloc.compositeBuffer(2);
+            frame.addComponents(true, headers[0].retainedDuplicate(), payload.retainedDuplicate());
+            qos0Frame = frame;
+        } else {
+            qos0Frame = null;
+        }
+    }
+
+    private static ByteBuf encodeHeader(ByteBufAllocator alloc, String topicName, int topicLength, MqttQoS qos,
+                                        int payloadLength) {
+        final int packetIdLength = qos == MqttQoS.AT_MOST_ONCE ? 0 : 2;
+        final int remainingLength = 2 + topicLength + packetIdLength + payloadLength;
+        final ByteBuf header = alloc.buffer(MAX_HEADER_SIZE + 2 + topicLength);
+        header.writeByte(MqttMessageType.PUBLISH.value() << 4 | qos.value() << 1);
+        writeVariableLengthInt(header, remainingLength);
+        header.writeShort(topicLength);
+        ByteBufUtil.writeUtf8(header, topicName);
+        return header;
+    }
+
+    private static void writeVariableLengthInt(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+
+    boolean hasQos(MqttQoS qos) {
+        return headers[qos.value()] != null;
+    }
+
+    /**
+     * @param packetId ignored for QoS0.
+     * @return the complete frame to write, the caller owns a reference of it.
+     * */
+    ByteBuf retainedFrame(MqttQoS qos, int packetId) {
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            return qos0Frame.retainedDuplicate();
+        }
+        final CompositeByteBuf frame = alloc.compositeBuffer(3);
+        frame.addComponents(true, headers[qos.value()].retainedDuplicate(),
+                            alloc.buffer(2).writeShort(packetId), payload.retainedDuplicate());
+        return frame;
+    }
+
+    @Override
+    protected void deallocate() {
+        for (ByteBuf header : headers) {
+            if (header != null) {
+                header.release();
+            }
+        }
+        if (qos0Frame != null) {
+            qos0Frame.release();
+        }
+    }
+
+    @Override
+    public PublishFrames touch(Object hint) {
+        return this;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.List;
+
+/**
+ * Cursor over the topics of the retained messages that match a new subscription. The session delivers them while
+ * its connection is writable and, for QoS 1 and 2, its inflight window has room, then resumes from where it stopped.
+ * A message is read from the storage only when the cursor reaches its topic, one cleaned meanwhile is skipped.
+ */
+final class RetainedDelivery {
+
+    private final Subscription subscription;
+    private final IRetainedRepository repository;
+    private final List<Topic> topics;
+    private int next;
+    // the message on the topic at next, read again by every hasNext because it could change while paused
+    private RetainedMessage current;
+
+    RetainedDelivery(Subscription subscription, IRetainedRepository repository, List<Topic> topics) {
+        this.subscription = subscription;
+        this.repository = repository;
+        this.topics = topics;
+    }
+
+    boolean hasNext() {
+        while (next < topics.size()) {
+            current = repository.retainedOn(topics.get(next));
+            if (current != null) {
+                return true;
+            }
+            // cleaned since the match
+            next++;
+        }
+        current = null;
+        return false;
+    }
+
+    /**
+     * @return the message the cursor is on, valid after {@link #hasNext()} returned true.
+     * */
+    RetainedMessage peek() {
+        return current;
+    }
+
+    void advance() {
+        current = null;
+        next++;
+    }
+
+    /**
+     * @return the QoS of the message lowered to the one of the subscription.
+     * */
+    MqttQoS qosOf(RetainedMessage message) {
+        return PostOffice.lowerQosToTheSubscriptionDesired(subscription, message.qosLevel());
+    }
+
+    /**
+     * @return the topics not yet delivered, some could have been cleaned meanwhile.
+     * */
+    int remaining() {
+        return topics.size() - next;
+    }
+}
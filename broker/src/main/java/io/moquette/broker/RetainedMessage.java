@@ -1,20 +1,42 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttQoS;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RetainedMessage implements Serializable{
 
+    // the one computed before the off heap payloads, to read the messages already stored
+    private static final long serialVersionUID = -380138196699721201L;
+
     private final Topic topic;
     private final MqttQoS qos;
     private final byte[] payload;
+    // the payload in direct memory, instead of the byte array, only in memory
+    private final transient ByteBuf offHeapPayload;
+    // the repository's reference plus the readers that are duplicating the payload, the pooled buffer instance
+    // is recycled once released, so it's retained only while this is positive
+    private final transient AtomicInteger references;
 
     public RetainedMessage(Topic topic, MqttQoS qos, byte[] payload) {
         this.topic = topic;
         this.qos = qos;
         this.payload = payload;
+        this.offHeapPayload = null;
+        this.references = null;
+    }
+
+    RetainedMessage(Topic topic, MqttQoS qos, ByteBuf offHeapPayload) {
+        this.topic = topic;
+        this.qos = qos;
+        this.payload = null;
+        this.offHeapPayload = offHeapPayload;
+        this.references = new AtomicInteger(1);
     }
 
     public Topic getTopic() {
@@ -25,7 +47,63 @@ public class RetainedMessage implements Serializable{
         return qos;
     }
 
+    /**
+     * @return a copy of the payload if it's in direct memory, empty if it has been released.
+     * */
     public byte[] getPayload() {
-        return payload;
+        if (offHeapPayload == null) {
+            return payload;
+        }
+        final ByteBuf buffer = payloadBuffer();
+        if (buffer == null) {
+            return new byte[0];
+        }
+        try {
+            return ByteBufUtil.getBytes(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * @return a buffer of the payload, without copying it, that the caller must release. Null if the message has
+     * been replaced or cleaned and its payload released meanwhile.
+     * */
+    public ByteBuf payloadBuffer() {
+        if (offHeapPayload == null) {
+            return Unpooled.wrappedBuffer(payload);
+        }
+        int current;
+        do {
+            current = references.get();
+            if (current == 0) {
+                // released by the repository after it handed out the message
+                return null;
+            }
+        } while (!references.compareAndSet(current, current + 1));
+        try {
+            return offHeapPayload.retainedDuplicate();
+        } finally {
+            dereference();
+        }
+    }
+
+    private void dereference() {
+        if (references.decrementAndGet() == 0) {
+            offHeapPayload.release();
+        }
+    }
+
+    boolean isOffHeap() {
+        return offHeapPayload != null;
+    }
+
+    /**
+     * @return the bytes of direct memory given back.
+     * */
+    int releaseOffHeap() {
+        final int size = offHeapPayload.capacity();
+        dereference();
+        return size;
     }
 }
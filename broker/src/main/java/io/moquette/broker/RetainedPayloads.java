@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stores the payloads of the retained messages in pooled direct memory, out of the heap the GC has to mark, as
+ * long as they fit in the budget. The payloads over the budget are copied to the heap.
+ * <p>
+ * The counters are of this instance, exposed to the metrics by the {@link SessionRegistry} of the broker.
+ */
+public final class RetainedPayloads {
+
+    private final long budget;
+    private final AtomicLong reserved = new AtomicLong();
+    private final ByteBufAllocator allocator;
+    private final AtomicLong offHeapBytes = new AtomicLong();
+    private final LongAdder offHeapPayloads = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param budget max bytes of direct memory for the payloads, 0 to keep them all on the heap.
+     * */
+    RetainedPayloads(long budget) {
+        this(budget, PooledByteBufAllocator.DEFAULT);
+    }
+
+    RetainedPayloads(long budget, ByteBufAllocator allocator) {
+        this.budget = budget;
+        this.allocator = allocator;
+    }
+
+    /**
+     * @return a message with a copy of the readable bytes of the payload, that must be released with
+     * {@link #release(RetainedMessage)} when it's replaced or cleaned.
+     * */
+    RetainedMessage store(Topic topic, MqttQoS qos, ByteBuf payload) {
+        final int size = payload.readableBytes();
+        if (budget > 0 && reserve(size)) {
+            final ByteBuf offHeap = allocator.directBuffer(size, size);
+            offHeap.writeBytes(payload, payload.readerIndex(), size);
+            offHeapBytes.addAndGet(size);
+            offHeapPayloads.increment();
+            return new RetainedMessage(topic, qos, offHeap);
+        }
+        if (budget > 0) {
+            overBudget.increment();
+        }
+        final byte[] rawPayload = new byte[size];
+        payload.getBytes(payload.readerIndex(), rawPayload);
+        return new RetainedMessage(topic, qos, rawPayload);
+    }
+
+    private boolean reserve(int size) {
+        long current;
+        do {
+            current = reserved.get();
+            if (current + size > budget) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + size));
+        return true;
+    }
+
+    /**
+     * Give back the memory of a stored message, the deliveries in progress keep their own reference to it.
+     * */
+    void release(RetainedMessage message) {
+        if (message == null || !message.isOffHeap()) {
+            return;
+        }
+        final int size = message.releaseOffHeap();
+        reserved.addAndGet(-size);
+        offHeapBytes.addAndGet(-size);
+        offHeapPayloads.decrement();
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    /**
+     * @return the bytes of direct memory held by the retained payloads.
+     * */
+    public long offHeapBytes() {
+        return offHeapBytes.get();
+    }
+
+    public long offHeapPayloads() {
+        return offHeapPayloads.sum();
+    }
+
+    /**
+     * @return count of the payloads copied to the heap because the budget was exhausted.
+     * */
+    public long overBudget() {
+        return overBudget.sum();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Token;
+import io.moquette.broker.subscriptions.Topic;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Tree of the topics that have a retained message, one level per topic level, so that the topics matching a
+ * filter are found walking only the branches the filter can match instead of testing every retained topic.
+ * <p>
+ * Lookups and changes can run concurrently. A node is changed under its own lock and, once pruned, is marked as
+ * removed so that an add that reached it walks the tree again. The children of a level are sorted, so the topics are
+ * matched in their order.
+ */
+public final class RetainedTopicsIndex {
+
+    private static final String MULTI_LEVEL = "#";
+    private static final String SINGLE_LEVEL = "+";
+
+    private static final class Node {
+        // created with the first child, most of the nodes are leaves
+        volatile ConcurrentNavigableMap<String, Node> children;
+        volatile Topic topic;
+        // detached from its parent, guarded by the lock of the node
+        boolean removed;
+
+        Node child(String name) {
+            final ConcurrentNavigableMap<String, Node> current = children;
+            return current != null ? current.get(name) : null;
+        }
+
+        /**
+         * @return the child with the name, created if missing, null if this node has been removed meanwhile.
+         * */
+        Node childOrCreate(String name) {
+            final Node existing = child(name);
+            if (existing != null) {
+                return existing;
+            }
+            synchronized (this) {
+                if (removed) {
+                    return null;
+                }
+                if (children == null) {
+                    children = new ConcurrentSkipListMap<>();
+                }
+                return children.computeIfAbsent(name, n -> new Node());
+            }
+        }
+
+        boolean isEmpty() {
+            final ConcurrentNavigableMap<String, Node> current = children;
+            return topic == null && (current == null || current.isEmpty());
+        }
+    }
+
+    private final Node root = new Node();
+
+    public void add(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null) {
+            return;
+        }
+        while (!tryAdd(topic, tokens)) {
+            // a node of the path has been pruned meanwhile, walk the tree again
+        }
+    }
+
+    private boolean tryAdd(Topic topic, List<Token> tokens) {
+        Node node = root;
+        for (Token token : tokens) {
+            node = node.childOrCreate(token.toString());
+            if (node == null) {
+                return false;
+            }
+        }
+        synchronized (node) {
+            // a node not removed is still linked to the root, none of its ancestors can be pruned while it has a topic
+            if (node.removed) {
+                return false;
+            }
+            node.topic = topic;
+            return true;
+        }
+    }
+
+    public void remove(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null) {
+            return;
+        }
+        final Node[] path = new Node[tokens.size() + 1];
+        path[0] = root;
+        for (int level = 0; level < tokens.size(); level++) {
+            path[level + 1] = path[level].child(tokens.get(level).toString());
+            if (path[level + 1] == null) {
+                return;
+            }
+        }
+        final Node leaf = path[tokens.size()];
+        synchronized (leaf) {
+            if (leaf.removed || leaf.topic == null) {
+                return;
+            }
+            leaf.topic = null;
+        }
+        // prune bottom up the nodes left empty, a node emptied by a concurrent remove is pruned by that one
+        for (int level = tokens.size(); level > 0; level--) {
+            final Node node = path[level];
+            synchronized (node) {
+                if (node.removed || !node.isEmpty()) {
+                    return;
+                }
+                node.removed = true;
+            }
+            path[level - 1].children.remove(tokens.get(level - 1).toString(), node);
+        }
+    }
+
+    /**
+     * Pass to the consumer the topics that match the filter.
+     * */
+    public void match(Topic filter, Consumer<Topic> consumer) {
+        final List<Token> tokens = filter.getTokens();
+        if (tokens != null) {
+            match(root, tokens, 0, consumer);
+        }
+    }
+
+    private static void match(Node node, List<Token> tokens, int level, Consumer<Topic> consumer) {
+        if (level == tokens.size()) {
+            emit(node, consumer);
+            return;
+        }
+        final String name = tokens.get(level).toString();
+        if (MULTI_LEVEL.equals(name)) {
+            // the multi level wildcard matches also the parent level
+            emitAll(node, consumer);
+            return;
+        }
+        if (SINGLE_LEVEL.equals(name)) {
+            final ConcurrentNavigableMap<String, Node> children = node.children;
+            if (children != null) {
+                for (Node child : children.values()) {
+                    match(child, tokens, level + 1, consumer);
+                }
+            }
+            return;
+        }
+        final Node child = node.child(name);
+        if (child != null) {
+            match(child, tokens, level + 1, consumer);
+        }
+    }
+
+    private static void emitAll(Node node, Consumer<Topic> consumer) {
+        emit(node, consumer);
+        final ConcurrentNavigableMap<String, Node> children = node.children;
+        if (children != null) {
+            for (Node child : children.values()) {
+                emitAll(child, consumer);
+            }
+        }
+    }
+
+    private static void emit(Node node, Consumer<Topic> consumer) {
+        final Topic topic = node.topic;
+        if (topic != null) {
+            consumer.accept(topic);
+        }
+    }
+
+    /**
+     * @return true if the filter has no wildcards, so it matches only the topic with the same name.
+     * */
+    public static boolean isLiteral(Topic filter) {
+        final List<Token> tokens = filter.getTokens();
+        if (tokens == null) {
+            return false;
+        }
+        for (Token token : tokens) {
+            final String name = token.toString();
+            if (MULTI_LEVEL.equals(name) || SINGLE_LEVEL.equals(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
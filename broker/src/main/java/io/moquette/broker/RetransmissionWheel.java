@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel of the retransmission deadlines of the sessions owned by a session loop.
+ * <p>
+ * A session with messages in flight is scheduled once, at the deadline of its oldest message, instead of one
+ * timer per message or per channel. When the deadline expires a command is routed to the session, which
+ * resends its expired messages and schedules itself again at the next deadline, so only the sessions with
+ * expired messages are touched. The wheel doesn't access the sessions, an expiry of a session that moved to
+ * another loop is routed to its new owner.
+ * <p>
+ * Not thread safe, it's accessed only by the thread of its loop, that is bound to it with {@link #bind()}.
+ */
+final class RetransmissionWheel {
+
+    static final long DEFAULT_TICK_MILLIS = 100;
+    static final int DEFAULT_TICKS_PER_WHEEL = 64;
+
+    private static final FastThreadLocal<RetransmissionWheel> CURRENT = new FastThreadLocal<>();
+    private static final long ORIGIN = System.nanoTime();
+
+    private static final class Entry {
+        final Runnable expiry;
+        final long tick;
+        Entry next;
+
+        Entry(Runnable expiry, long tick) {
+            this.expiry = expiry;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    private final Entry[] slots;
+    private final int mask;
+    // last tick whose slot has been expired
+    private long lastTick;
+    private int size;
+    // read by the sessions that moved to another loop, to know that their pending check is gone
+    private volatile boolean closed;
+
+    // the event loop that ticks the wheel, null if it's ticked by its owner with expire
+    private final EventLoop driver;
+    private boolean tickScheduled;
+
+    RetransmissionWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_TICKS_PER_WHEEL, null);
+    }
+
+    /**
+     * @param driver the event loop that ticks the wheel, only while it has something scheduled.
+     * */
+    RetransmissionWheel(EventLoop driver) {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_TICKS_PER_WHEEL, driver);
+    }
+
+    RetransmissionWheel(long tickMillis, int ticksPerWheel, EventLoop driver) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive, was: " + tickMillis);
+        }
+        if (Integer.bitCount(ticksPerWheel) != 1) {
+            throw new IllegalArgumentException("Ticks per wheel must be a power of 2, was: " + ticksPerWheel);
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Entry[ticksPerWheel];
+        this.mask = ticksPerWheel - 1;
+        this.driver = driver;
+        this.lastTick = now() / tickMillis;
+    }
+
+    /**
+     * @return the monotonic time in milliseconds the deadlines refer to, always positive so that 0 can mean
+     * no deadline.
+     * */
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ORIGIN) + 1;
+    }
+
+    /**
+     * Make this the wheel of the sessions processed by the current thread.
+     * */
+    void bind() {
+        CURRENT.set(this);
+    }
+
+    /**
+     * @return the wheel of the loop running on the current thread, null if the thread isn't a session loop.
+     * */
+    static RetransmissionWheel current() {
+        return CURRENT.getIfExists();
+    }
+
+    /**
+     * Schedule the check of the messages in flight at the deadline.
+     *
+     * @param expiry invoked by the loop once the deadline is expired, it must not access the sessions directly.
+     * */
+    void schedule(Runnable expiry, long deadline) {
+        // round up, a tick never expires before the deadline
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        if (tick <= lastTick) {
+            tick = lastTick + 1;
+        }
+        final Entry entry = new Entry(expiry, tick);
+        final int idx = (int) (tick & mask);
+        entry.next = slots[idx];
+        slots[idx] = entry;
+        size++;
+        if (driver != null && !tickScheduled) {
+            tickScheduled = true;
+            driver.schedule(this::tick, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick() {
+        tickScheduled = false;
+        expire(now());
+        if (size > 0) {
+            tickScheduled = true;
+            driver.schedule(this::tick, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Notify the deadlines that are expired.
+     *
+     * @return the number of expired deadlines.
+     * */
+    int expire(long now) {
+        final long nowTick = now / tickMillis;
+        if (size == 0 || nowTick <= lastTick) {
+            lastTick = Math.max(lastTick, nowTick);
+            return 0;
+        }
+        // a late tick scans each slot once
+        final long ticks = Math.min(nowTick - lastTick, slots.length);
+        Entry expired = null;
+        for (long t = nowTick - ticks + 1; t <= nowTick; t++) {
+            final int idx = (int) (t & mask);
+            Entry entry = slots[idx];
+            slots[idx] = null;
+            while (entry != null) {
+                final Entry next = entry.next;
+                if (entry.tick <= nowTick) {
+                    entry.next = expired;
+                    expired = entry;
+                    size--;
+                } else {
+                    // due in a following round
+                    entry.next = slots[idx];
+                    slots[idx] = entry;
+                }
+                entry = next;
+            }
+        }
+        lastTick = nowTick;
+
+        // notify once the slots are consistent, the sessions could schedule again meanwhile
+        int count = 0;
+        while (expired != null) {
+            expired.expiry.run();
+            expired = expired.next;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Notify all the scheduled deadlines, expired or not, because the loop of the wheel is going away. The
+     * expiries route a check to the sessions, that schedule again their deadlines on the wheel of their new loop.
+     *
+     * @return the number of notified deadlines.
+     * */
+    int close() {
+        closed = true;
+        Entry pending = null;
+        for (int idx = 0; idx < slots.length; idx++) {
+            Entry entry = slots[idx];
+            slots[idx] = null;
+            while (entry != null) {
+                final Entry next = entry.next;
+                entry.next = pending;
+                pending = entry;
+                entry = next;
+            }
+        }
+        size = 0;
+        int count = 0;
+        while (pending != null) {
+            pending.expiry.run();
+            pending = pending.next;
+            count++;
+        }
+        return count;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return milliseconds to wait before the next tick, 0 if it's already due.
+     * */
+    long millisToNextTick(long now) {
+        return Math.max(0, (lastTick + 1) * tickMillis - now);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -43,6 +43,9 @@ public class RoutingResults {
     }
 
     public CompletableFuture<Void> completableFuture() {
+        if (mergedAction == null) {
+            throw new IllegalStateException("Completion was not requested when routing the publish");
+        }
         return mergedAction;
     }
 
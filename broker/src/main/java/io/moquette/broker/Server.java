@@ -33,7 +33,10 @@ import io.moquette.persistence.H2Builder;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
-import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.SharedSubscriptionStrategies;
+import io.moquette.broker.subscriptions.Token;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.subscriptions.WeakInterner;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,8 +61,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Supplier;
 
 import static io.moquette.logging.LoggingUtils.getInterceptorIds;
 
@@ -75,6 +81,7 @@ public class Server {
     private BrokerInterceptor interceptor;
     private H2Builder h2Builder;
     private SessionRegistry sessions;
+    private IRetainedRepository retainedRepository;
     private boolean standalone = false;
 
     public static void main(String[] args) throws IOException {
@@ -192,9 +199,15 @@ public class Server {
         authenticator = initializeAuthenticator(authenticator, config);
         authorizatorPolicy = initializeAuthorizatorPolicy(authorizatorPolicy, config);
 
+        // JVM-wide tables, replaced only if the configured capacity differs from the current one
+        Topic.interned().resize(
+            config.intProp(BrokerConstants.INTERNED_TOPICS_CAPACITY, WeakInterner.DEFAULT_CAPACITY));
+        Token.interned().resize(
+            config.intProp(BrokerConstants.INTERNED_TOKENS_CAPACITY, WeakInterner.DEFAULT_CAPACITY));
+
         final ISubscriptionsRepository subscriptionsRepository;
         final IQueueRepository queueRepository;
-        final IRetainedRepository retainedRepository;
+        RetainedPayloads retainedPayloads = null;
         if (persistencePath != null && !persistencePath.isEmpty()) {
             LOG.trace("Configuring H2 subscriptions store to {}", persistencePath);
             h2Builder = new H2Builder(config, scheduler).initStore();
@@ -205,22 +218,55 @@ public class Server {
             LOG.trace("Configuring in-memory subscriptions store");
             subscriptionsRepository = new MemorySubscriptionsRepository();
             queueRepository = new MemoryQueueRepository();
-            retainedRepository = new MemoryRetainedRepository();
+            retainedPayloads = new RetainedPayloads(config.longProp(BrokerConstants.RETAINED_OFFHEAP_BUDGET, 0L));
+            retainedRepository = new MemoryRetainedRepository(retainedPayloads);
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        final CTrieSubscriptionDirectory subscriptions = new CTrieSubscriptionDirectory(
+            config.intProp(BrokerConstants.SUBSCRIPTIONS_MATCH_CACHE_SIZE,
+                           CTrieSubscriptionDirectory.DEFAULT_MATCH_CACHE_SIZE),
+            config.intProp(BrokerConstants.SUBSCRIPTIONS_PARALLEL_LOAD_THRESHOLD,
+                           CTrieSubscriptionDirectory.DEFAULT_PARALLEL_LOAD_THRESHOLD));
         subscriptions.init(subscriptionsRepository);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
         sessions = new SessionRegistry(subscriptions, queueRepository, authorizator);
-        final int sessionQueueSize = config.intProp(BrokerConstants.SESSION_QUEUE_SIZE, 1024);
-        dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator,
-                                    sessionQueueSize);
+        if (retainedPayloads != null) {
+            sessions.configureRetainedPayloads(retainedPayloads);
+        }
+        sessions.configureInflightWindow(new InflightWindowPolicy(
+            config.intProp(BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME, BrokerConstants.INFLIGHT_WINDOW_SIZE),
+            config.intProp(BrokerConstants.INFLIGHT_WINDOW_MIN, 1),
+            config.intProp(BrokerConstants.INFLIGHT_WINDOW_MAX, BrokerConstants.DEFAULT_INFLIGHT_WINDOW_MAX),
+            config.boolProp(BrokerConstants.INFLIGHT_WINDOW_ADAPTIVE, false),
+            InflightWindowPolicy.parseSizeByClient(config.getProperty(BrokerConstants.INFLIGHT_WINDOW_PER_CLIENT))));
+        subscriptions.configureSharedSubscriptions(SharedSubscriptionStrategies.fromConfig(
+            config.getProperty(BrokerConstants.SHARED_SUBSCRIPTIONS_STRATEGY, "round_robin")), sessions::inflightLoad);
+        acceptor = new NewNettyAcceptor();
+        if (config.boolProp(BrokerConstants.SESSION_LOOPS_ON_NETTY_PROPERTY_NAME, false)) {
+            LOG.info("Sessions are processed by the Netty event loops");
+            acceptor.createEventLoopGroups(config);
+            dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator,
+                                        new NettySessionLoops(acceptor.workerGroup()));
+        } else {
+            final int sessionLoops = config.intProp(BrokerConstants.SESSION_LOOPS,
+                                                    Runtime.getRuntime().availableProcessors());
+            LOG.info("Starting {} session event loops", sessionLoops);
+            final int highWatermark = config.intProp(BrokerConstants.SESSION_QUEUE_HIGH_WATERMARK,
+                                                     SessionEventLoop.DEFAULT_HIGH_WATERMARK_PERCENT);
+            final int lowWatermark = config.intProp(BrokerConstants.SESSION_QUEUE_LOW_WATERMARK,
+                                                    SessionEventLoop.DEFAULT_LOW_WATERMARK_PERCENT);
+            dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator,
+                                        new SessionEventLoopGroup(sessionLoops, sessionQueueFactory(config),
+                                                                  highWatermark, lowWatermark));
+            dispatcher.configureChunkedFanout(
+                config.intProp(BrokerConstants.CHUNKED_FANOUT_THRESHOLD, PostOffice.DEFAULT_CHUNKED_FANOUT_THRESHOLD),
+                PostOffice.DEFAULT_CHUNKED_FANOUT_SIZE);
+        }
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
         MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
                                                                             dispatcher);
 
         final NewNettyMQTTHandler mqttHandler = new NewNettyMQTTHandler(connectionFactory);
-        acceptor = new NewNettyAcceptor();
         acceptor.initialize(mqttHandler, config, sslCtxCreator);
 
         final long startTime = System.currentTimeMillis() - start;
@@ -233,6 +279,26 @@ public class Server {
         initialized = true;
     }
 
+    private static <T> Supplier<BlockingQueue<T>> sessionQueueFactory(IConfig config) {
+        final int sessionQueueSize = config.intProp(BrokerConstants.SESSION_QUEUE_SIZE, 1024);
+        final String queueType = config.getProperty(BrokerConstants.SESSION_QUEUE_TYPE,
+                                                    BrokerConstants.SESSION_QUEUE_TYPE_ARRAY_BLOCKING);
+        switch (queueType) {
+            case BrokerConstants.SESSION_QUEUE_TYPE_ARRAY_BLOCKING:
+                LOG.info("Using array blocking session queues of size {}", sessionQueueSize);
+                return () -> new ArrayBlockingQueue<>(sessionQueueSize);
+            case BrokerConstants.SESSION_QUEUE_TYPE_RING_BUFFER:
+                final MpscRingBufferQueue.WaitStrategy waitStrategy = MpscRingBufferQueue.WaitStrategy.fromConfig(
+                    config.getProperty(BrokerConstants.SESSION_QUEUE_WAIT_STRATEGY, "park"));
+                LOG.info("Using ring buffer session queues of size {} with {} wait strategy", sessionQueueSize,
+                         waitStrategy);
+                return () -> new MpscRingBufferQueue<>(sessionQueueSize, waitStrategy);
+            default:
+                throw new IllegalArgumentException("Unknown " + BrokerConstants.SESSION_QUEUE_TYPE + " value: "
+                                                   + queueType);
+        }
+    }
+
     private void collectAndSendTelemetryDataAsynch(IConfig config) {
         final Thread telCollector = new Thread(() -> collectAndSendTelemetryData(config));
         telCollector.start();
@@ -520,9 +586,25 @@ public class Server {
 
         interceptor.stop();
         dispatcher.terminate();
+        retainedRepository.close();
         LOG.info("Moquette integration has been stopped.");
     }
 
+    /**
+     * Change at runtime the number of session event loops. Only the sessions whose owner loop changes are
+     * migrated, their pending commands are executed before any new one; the call blocks until the migration
+     * is completed.
+     *
+     * @param loops the new number of session loops, must be positive.
+     */
+    public void resizeSessionLoops(int loops) throws InterruptedException {
+        if (!initialized) {
+            LOG.error("Moquette is not started, session loops cannot be resized");
+            throw new IllegalStateException("Can't resize session loops on a integration is not yet started");
+        }
+        dispatcher.resizeSessionLoops(loops);
+    }
+
     public int getPort() {
         return acceptor.getPort();
     }
@@ -19,6 +19,7 @@ import static io.moquette.BrokerConstants.FLIGHT_BEFORE_RESEND_MS;
 import static io.moquette.BrokerConstants.INFLIGHT_WINDOW_SIZE;
 import io.moquette.broker.SessionRegistry.EnqueuedMessage;
 import io.moquette.broker.SessionRegistry.PublishedMessage;
+import io.moquette.broker.subscriptions.ClientHandles;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
@@ -29,9 +30,6 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.*;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -39,35 +37,6 @@ class Session {
 
     private static final Logger LOG = LoggerFactory.getLogger(Session.class);
 
-    static class InFlightPacket implements Delayed {
-
-        final int packetId;
-        private long startTime;
-
-        InFlightPacket(int packetId, long delayInMilliseconds) {
-            this.packetId = packetId;
-            this.startTime = System.currentTimeMillis() + delayInMilliseconds;
-        }
-
-        @Override
-        public long getDelay(TimeUnit unit) {
-            long diff = startTime - System.currentTimeMillis();
-            return unit.convert(diff, TimeUnit.MILLISECONDS);
-        }
-
-        @Override
-        public int compareTo(Delayed o) {
-            if ((this.startTime - ((InFlightPacket) o).startTime) == 0) {
-                return 0;
-            }
-            if ((this.startTime - ((InFlightPacket) o).startTime) > 0) {
-                return 1;
-            } else {
-                return -1;
-            }
-        }
-    }
-
     enum SessionStatus {
         CONNECTED, CONNECTING, DISCONNECTING, DISCONNECTED, DESTROYED
     }
@@ -94,10 +63,19 @@ class Session {
     private final AtomicReference<SessionStatus> status = new AtomicReference<>(SessionStatus.DISCONNECTED);
     private MQTTConnection mqttConnection;
     private final Set<Subscription> subscriptions = new HashSet<>();
-    private final Map<Integer, SessionRegistry.EnqueuedMessage> inflightWindow = new HashMap<>();
-    private final DelayQueue<InFlightPacket> inflightTimeouts = new DelayQueue<>();
-    private final Map<Integer, MqttPublishMessage> qos2Receiving = new HashMap<>();
-    private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE); // this should be configurable
+    private final InflightWindow<SessionRegistry.EnqueuedMessage> inflightWindow =
+        new InflightWindow<>(INFLIGHT_WINDOW_SIZE);
+    private final InflightWindow<MqttPublishMessage> qos2Receiving = new InflightWindow<>(INFLIGHT_WINDOW_SIZE);
+    private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE);
+    private volatile InflightWindowLimit inflightLimit = InflightWindowLimit.fixed(INFLIGHT_WINDOW_SIZE);
+    // retained messages of new subscriptions still to deliver, in subscription order
+    private final Deque<RetainedDelivery> retainedDeliveries = new ArrayDeque<>();
+    // pending check of the retransmission deadlines, on the wheel of the session's loop
+    private RetransmissionWheel retransmissionWheel;
+    private MQTTConnection retransmissionConnection;
+    private long retransmissionAt;
+    // assigned by the registry while the session is registered, carried by the subscriptions of the session
+    volatile int clientHandle = ClientHandles.NO_HANDLE;
 
     Session(String clientId, boolean clean, Will will, SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue) {
         this(clientId, clean, sessionQueue);
@@ -146,6 +124,36 @@ class Session {
         return clientId;
     }
 
+    /**
+     * @return the number of messages sent and not yet acknowledged.
+     * */
+    int inflightMessages() {
+        return inflightLimit.size() - inflightSlots.get();
+    }
+
+    /**
+     * @return the max number of messages that can be in flight.
+     * */
+    int inflightWindowSize() {
+        return inflightLimit.size();
+    }
+
+    /**
+     * Replace the limit of the messages in flight, the ones already in flight are kept.
+     * */
+    void configureInflightWindow(InflightWindowLimit limit) {
+        inflightLimit.close();
+        inflightLimit = limit;
+        inflightSlots.set(limit.size() - inflightWindow.size());
+    }
+
+    /**
+     * The session is discarded, its limit isn't counted anymore.
+     * */
+    void closeInflightWindow() {
+        inflightLimit.close();
+    }
+
     public List<Subscription> getSubscriptions() {
         return new ArrayList<>(subscriptions);
     }
@@ -155,7 +163,7 @@ class Session {
     }
 
     public void removeSubscription(Topic topic) {
-        subscriptions.remove(new Subscription(clientId, topic, MqttQoS.EXACTLY_ONCE));
+        subscriptions.remove(Subscription.identity(clientId, topic));
     }
 
     public boolean hasWill() {
@@ -211,7 +219,7 @@ class Session {
             return;
         }
         inflightWindow.put(pubRecPacketId, new SessionRegistry.PubRelMarker());
-        inflightTimeouts.add(new InFlightPacket(pubRecPacketId, FLIGHT_BEFORE_RESEND_MS));
+        armRetransmission(pubRecPacketId);
         MqttMessage pubRel = MQTTConnection.pubrel(pubRecPacketId);
         mqttConnection.sendIfWritableElseDrop(pubRel);
 
@@ -219,6 +227,7 @@ class Session {
     }
 
     public void processPubComp(int messageID) {
+        final boolean prompt = isAckPrompt(messageID);
         // Message discarded, make sure any buffers in it are released
         SessionRegistry.EnqueuedMessage removed = inflightWindow.remove(messageID);
         if (removed == null) {
@@ -226,8 +235,9 @@ class Session {
             return;
         }
         removed.release();
-        inflightSlots.incrementAndGet();
+        inflightSlots.addAndGet(1 + inflightLimit.acknowledged(prompt));
         drainQueueToConnection();
+        drainRetainedToConnection();
 
         // TODO notify the interceptor
 //                final InterceptAcknowledgedMessage interceptAckMsg = new InterceptAcknowledgedMessage(inflightMsg,
@@ -236,32 +246,45 @@ class Session {
     }
 
     public void sendRetainedPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload) {
-        sendPublishOnSessionAtQos(topic, qos, payload, true);
+        sendPublishOnSessionAtQos(topic, qos, payload, true, null);
     }
 
     public void sendNotRetainedPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload) {
-        sendPublishOnSessionAtQos(topic, qos, payload, false);
+        sendPublishOnSessionAtQos(topic, qos, payload, false, null);
     }
 
-    private void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    /**
+     * @param frames the already encoded frames of the message, written instead of encoding it again.
+     * */
+    void sendNotRetainedPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, PublishFrames frames) {
+        sendPublishOnSessionAtQos(topic, qos, payload, false, frames);
+    }
+
+    private void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                           PublishFrames frames) {
         switch (qos) {
             case AT_MOST_ONCE:
                 if (connected()) {
-                    mqttConnection.sendPublishQos0(topic, qos, payload, retained);
+                    if (frames != null) {
+                        mqttConnection.sendEncodedPublish(frames, qos, 0);
+                    } else {
+                        mqttConnection.sendPublishQos0(topic, qos, payload, retained);
+                    }
                 }
                 break;
             case AT_LEAST_ONCE:
-                sendPublishQos1(topic, qos, payload, retained);
+                sendPublishQos1(topic, qos, payload, retained, frames);
                 break;
             case EXACTLY_ONCE:
-                sendPublishQos2(topic, qos, payload, retained);
+                sendPublishQos2(topic, qos, payload, retained, frames);
                 break;
             case FAILURE:
                 LOG.error("Not admissible");
         }
     }
 
-    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                 PublishFrames frames) {
         if (!connected() && isClean()) {
             //pushing messages to disconnected not clean session
             return;
@@ -270,7 +293,7 @@ class Session {
         final MQTTConnection localMqttConnectionRef = mqttConnection;
         if (canSkipQueue(localMqttConnectionRef)) {
             inflightSlots.decrementAndGet();
-            int packetId = localMqttConnectionRef.nextPacketId();
+            int packetId = localMqttConnectionRef.nextPacketId(inflightWindow::contains);
 
             // Adding to a map, retain.
             payload.retain();
@@ -280,15 +303,17 @@ class Session {
                 old.release();
                 inflightSlots.incrementAndGet();
             }
-            inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+            armRetransmission(packetId);
 
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos,
-                                                                                           payload, packetId);
-            localMqttConnectionRef.sendPublish(publishMsg);
-            LOG.debug("Write direct to the peer, inflight slots: {}", inflightSlots.get());
-            if (inflightSlots.get() == 0) {
-                localMqttConnectionRef.flush();
+            if (frames != null) {
+                localMqttConnectionRef.sendEncodedPublish(frames, qos, packetId);
+            } else {
+                MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(),
+                                                                                               qos, payload,
+                                                                                               packetId);
+                localMqttConnectionRef.sendPublish(publishMsg);
             }
+            LOG.debug("Write direct to the peer, inflight slots: {}", inflightSlots.get());
 
             // TODO drainQueueToConnection();?
         } else {
@@ -300,11 +325,12 @@ class Session {
         }
     }
 
-    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                 PublishFrames frames) {
         final MQTTConnection localMqttConnectionRef = mqttConnection;
         if (canSkipQueue(localMqttConnectionRef)) {
             inflightSlots.decrementAndGet();
-            int packetId = localMqttConnectionRef.nextPacketId();
+            int packetId = localMqttConnectionRef.nextPacketId(inflightWindow::contains);
 
             // Retain before adding to map
             payload.retain();
@@ -314,11 +340,16 @@ class Session {
                 old.release();
                 inflightSlots.incrementAndGet();
             }
-            inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+            armRetransmission(packetId);
 
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos,
-                                                                                           payload, packetId);
-            localMqttConnectionRef.sendPublish(publishMsg);
+            if (frames != null) {
+                localMqttConnectionRef.sendEncodedPublish(frames, qos, packetId);
+            } else {
+                MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(),
+                                                                                               qos, payload,
+                                                                                               packetId);
+                localMqttConnectionRef.sendPublish(publishMsg);
+            }
 
             drainQueueToConnection();
         } else {
@@ -344,6 +375,7 @@ class Session {
     }
 
     void pubAckReceived(int ackPacketId) {
+        final boolean prompt = isAckPrompt(ackPacketId);
         // TODO remain to invoke in somehow m_interceptor.notifyMessageAcknowledged
         SessionRegistry.EnqueuedMessage removed = inflightWindow.remove(ackPacketId);
         if (removed == null) {
@@ -352,62 +384,101 @@ class Session {
         }
         removed.release();
 
-        inflightSlots.incrementAndGet();
+        inflightSlots.addAndGet(1 + inflightLimit.acknowledged(prompt));
         drainQueueToConnection();
+        drainRetainedToConnection();
+    }
+
+    /**
+     * @return true if the message has been acknowledged before half of its retransmission timeout.
+     * */
+    private boolean isAckPrompt(int packetId) {
+        final long deadline = inflightWindow.deadline(packetId);
+        return deadline != 0 && deadline - RetransmissionWheel.now() > FLIGHT_BEFORE_RESEND_MS / 2;
     }
 
     public void flushAllQueuedMessages() {
         drainQueueToConnection();
     }
 
+    /**
+     * Resend the messages in flight whose deadline is expired and schedule the check of the next deadline.
+     * */
     public void resendInflightNotAcked() {
-        Collection<InFlightPacket> expired = new ArrayList<>(INFLIGHT_WINDOW_SIZE);
-        inflightTimeouts.drainTo(expired);
-
-        debugLogPacketIds(expired);
-
-        for (InFlightPacket notAckPacketId : expired) {
-            final SessionRegistry.EnqueuedMessage msg = inflightWindow.get(notAckPacketId.packetId);
-            if (msg == null) {
-                // Already acked...
-                continue;
-            }
-            if (msg instanceof SessionRegistry.PubRelMarker) {
-                MqttMessage pubRel = MQTTConnection.pubrel(notAckPacketId.packetId);
-                inflightTimeouts.add(new InFlightPacket(notAckPacketId.packetId, FLIGHT_BEFORE_RESEND_MS));
-                mqttConnection.sendIfWritableElseDrop(pubRel);
-            } else {
-                final SessionRegistry.PublishedMessage pubMsg = (SessionRegistry.PublishedMessage) msg;
-                final Topic topic = pubMsg.topic;
-                final MqttQoS qos = pubMsg.publishingQos;
-                final ByteBuf payload = pubMsg.payload;
-                // message fetched from map, but not removed from map. No need to duplicate or release.
-                MqttPublishMessage publishMsg = publishNotRetainedDuplicated(notAckPacketId, topic, qos, payload);
-                inflightTimeouts.add(new InFlightPacket(notAckPacketId.packetId, FLIGHT_BEFORE_RESEND_MS));
-                mqttConnection.sendPublish(publishMsg);
-            }
-        }
-    }
-
-    private void debugLogPacketIds(Collection<InFlightPacket> expired) {
-        if (!LOG.isDebugEnabled() || expired.isEmpty()) {
+        // this is the pending check, if any
+        retransmissionAt = 0;
+        final MQTTConnection localMqttConnectionRef = mqttConnection;
+        if (localMqttConnectionRef == null || !connected()) {
+            // resent once reconnected
             return;
         }
+        final long now = RetransmissionWheel.now();
+        final int resent = inflightWindow.forEachExpired(now, now + FLIGHT_BEFORE_RESEND_MS,
+            (packetId, msg) -> resendNotAcked(localMqttConnectionRef, packetId, msg));
+        if (resent > 0) {
+            LOG.debug("Resent {} in flight packets of {}", resent, clientId);
+            inflightSlots.addAndGet(inflightLimit.retransmitted());
+        }
+        final long nextDeadline = inflightWindow.earliestDeadline();
+        if (nextDeadline != 0) {
+            scheduleRetransmission(nextDeadline);
+        }
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (InFlightPacket packet : expired) {
-            sb.append(packet.packetId).append(", ");
+    private static void resendNotAcked(MQTTConnection connection, int packetId, EnqueuedMessage msg) {
+        LOG.trace("Resending in flight packet {}", packetId);
+        if (msg instanceof SessionRegistry.PubRelMarker) {
+            MqttMessage pubRel = MQTTConnection.pubrel(packetId);
+            connection.sendIfWritableElseDrop(pubRel);
+        } else {
+            final SessionRegistry.PublishedMessage pubMsg = (SessionRegistry.PublishedMessage) msg;
+            final Topic topic = pubMsg.topic;
+            final MqttQoS qos = pubMsg.publishingQos;
+            final ByteBuf payload = pubMsg.payload;
+            // message fetched from map, but not removed from map. No need to duplicate or release.
+            MqttPublishMessage publishMsg = publishNotRetainedDuplicated(packetId, topic, qos, payload);
+            connection.sendPublish(publishMsg);
         }
-        LOG.debug("Resending {} in flight packets [{}]", expired.size(), sb);
     }
 
-    private MqttPublishMessage publishNotRetainedDuplicated(InFlightPacket notAckPacketId, Topic topic, MqttQoS qos,
-                                                            ByteBuf payload) {
+    private static MqttPublishMessage publishNotRetainedDuplicated(int packetId, Topic topic, MqttQoS qos,
+                                                                   ByteBuf payload) {
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, true, qos, false, 0);
-        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic.toString(), notAckPacketId.packetId);
+        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic.toString(), packetId);
         return new MqttPublishMessage(fixedHeader, varHeader, payload);
     }
 
+    private void armRetransmission(int packetId) {
+        final long deadline = RetransmissionWheel.now() + FLIGHT_BEFORE_RESEND_MS;
+        inflightWindow.setDeadline(packetId, deadline);
+        scheduleRetransmission(deadline);
+    }
+
+    /**
+     * Schedule a check of the deadlines on the wheel of the current loop, unless one is already due earlier.
+     * */
+    private void scheduleRetransmission(long deadline) {
+        final RetransmissionWheel wheel = RetransmissionWheel.current();
+        final MQTTConnection localMqttConnectionRef = mqttConnection;
+        if (wheel == null || localMqttConnectionRef == null) {
+            // not executed by a session loop, the check is triggered explicitly
+            return;
+        }
+        if (retransmissionWheel != null && retransmissionWheel.isClosed()) {
+            // the loop of the pending check has been removed
+            retransmissionAt = 0;
+        }
+        if (retransmissionAt != 0 && retransmissionAt <= deadline && wheel == retransmissionWheel
+            && localMqttConnectionRef == retransmissionConnection) {
+            // the pending check schedules the next one
+            return;
+        }
+        retransmissionWheel = wheel;
+        retransmissionConnection = localMqttConnectionRef;
+        retransmissionAt = deadline;
+        wheel.schedule(localMqttConnectionRef::retransmissionDue, deadline);
+    }
+
     private void drainQueueToConnection() {
         // consume the queue
         while (!sessionQueue.isEmpty() && inflighHasSlotsAndConnectionIsUp()) {
@@ -417,7 +488,7 @@ class Session {
                 return;
             }
             inflightSlots.decrementAndGet();
-            int sendPacketId = mqttConnection.nextPacketId();
+            int sendPacketId = mqttConnection.nextPacketId(inflightWindow::contains);
 
             // Putting it in a map, but the retain is cancelled out by the below release.
             EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
@@ -425,7 +496,7 @@ class Session {
                 old.release();
                 inflightSlots.incrementAndGet();
             }
-            inflightTimeouts.add(new InFlightPacket(sendPacketId, FLIGHT_BEFORE_RESEND_MS));
+            armRetransmission(sendPacketId);
             final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
             MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
                 msgPub.topic.toString(),
@@ -437,13 +508,67 @@ class Session {
         }
     }
 
+    /**
+     * Deliver the retained messages matched by a new subscription, after the ones of the previous subscriptions.
+     * They are sent while the connection is writable and, for QoS 1 and 2, while the inflight window has room and
+     * nothing is queued before them, the delivery resumes when the connection is writable again or a message is
+     * acknowledged. The messages are read from the repository as the delivery reaches their topics. Must be invoked
+     * by the session's loop.
+     * */
+    void deliverRetained(Subscription subscription, IRetainedRepository repository, List<Topic> topics) {
+        if (topics.isEmpty()) {
+            return;
+        }
+        retainedDeliveries.add(new RetainedDelivery(subscription, repository, topics));
+        drainRetainedToConnection();
+    }
+
+    private void drainRetainedToConnection() {
+        final MQTTConnection localMqttConnectionRef = mqttConnection;
+        if (retainedDeliveries.isEmpty() || localMqttConnectionRef == null || !connected()) {
+            // resumed at the next connection
+            return;
+        }
+        RetainedDelivery delivery;
+        while ((delivery = retainedDeliveries.peek()) != null) {
+            while (delivery.hasNext()) {
+                if (!localMqttConnectionRef.channel.isWritable()) {
+                    // let the outbound buffer drain, the channel becomes writable again
+                    localMqttConnectionRef.flush();
+                    LOG.debug("Paused retained delivery, {} remaining", delivery.remaining());
+                    return;
+                }
+                final RetainedMessage retainedMsg = delivery.peek();
+                final MqttQoS qos = delivery.qosOf(retainedMsg);
+                if (qos != MqttQoS.AT_MOST_ONCE && (inflightSlots.get() <= 0 || !sessionQueue.isEmpty())) {
+                    // wait for an acknowledge
+                    return;
+                }
+                delivery.advance();
+                final ByteBuf payload = retainedMsg.payloadBuffer();
+                if (payload == null) {
+                    // cleaned or replaced since it was read
+                    continue;
+                }
+                try {
+                    sendRetainedPublishOnSessionAtQos(retainedMsg.getTopic(), qos, payload);
+                } finally {
+                    payload.release();
+                }
+            }
+            retainedDeliveries.poll();
+        }
+    }
+
     public void writabilityChanged() {
         drainQueueToConnection();
+        drainRetainedToConnection();
     }
 
     public void sendQueuedMessagesWhileOffline() {
         LOG.trace("Republishing all saved messages for session {}", this);
         drainQueueToConnection();
+        drainRetainedToConnection();
     }
 
     public void receivedPublishQos2(int messageID, MqttPublishMessage msg) {
@@ -474,12 +599,13 @@ class Session {
         // in case of in memory session queues all contained messages
         // has to be released.
         sessionQueue.closeAndPurge();
-        for (EnqueuedMessage msg : inflightWindow.values()) {
-            msg.release();
-        }
-        for (MqttPublishMessage msg : qos2Receiving.values()) {
-            msg.release();
-        }
+        retainedDeliveries.clear();
+        retransmissionWheel = null;
+        retransmissionConnection = null;
+        retransmissionAt = 0;
+        closeInflightWindow();
+        inflightWindow.forEach(EnqueuedMessage::release);
+        qos2Receiving.forEach(MqttPublishMessage::release);
     }
 
     @Override
@@ -489,6 +615,7 @@ class Session {
             ", clean=" + clean +
             ", status=" + status +
             ", inflightSlots=" + inflightSlots +
+            ", inflightWindow=" + inflightLimit.size() +
             '}';
     }
 }
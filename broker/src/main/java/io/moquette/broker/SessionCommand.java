@@ -1,33 +1,327 @@
 package io.moquette.broker;
 
-import java.util.concurrent.Callable;
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.handler.codec.mqtt.MqttUnsubscribeMessage;
+import io.netty.util.Recycler;
+
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
-final class SessionCommand {
+/**
+ * Typed command executed by the SessionEventLoop that owns the session.
+ * <p>
+ * Instances are pooled: a command is obtained with one of the static factories, handed over to
+ * {@link PostOffice#routeCommand(SessionCommand)} and recycled after its execution, so that the routing of an
+ * inbound packet doesn't allocate. Once routed, the command must not be accessed anymore by the caller.
+ * The completion future is created only if explicitly requested with {@link #withCompletion()}.
+ * When the sessions run on the Netty event loops the command is itself the task submitted to the owner loop.
+ */
+final class SessionCommand implements Runnable {
+
+    enum Type {
+        CONNECT, DISCONNECT, CONNECTION_LOST, SUBSCRIBE, UNSUBSCRIBE,
+        PUBLISH, PUBACK, PUBREC, PUBREL, PUBCOMP,
+        /**
+         * The channel of the connection is writable again, the pending deliveries resume.
+         */
+        WRITABLE,
+        /**
+         * A retransmission deadline of the messages in flight is expired.
+         */
+        RESEND,
+        /**
+         * Delivery of a PUBLISH to a batch of subscriptions owned by the same session loop.
+         */
+        ROUTE_PUBLISH,
+        /**
+         * Action of the loop itself, not related to any session, like the markers of a sessions migration.
+         */
+        ACTION
+    }
+
+    private static final Recycler<SessionCommand> RECYCLER = new Recycler<SessionCommand>() {
+        @Override
+        protected SessionCommand newObject(Handle<SessionCommand> handle) {
+            return new SessionCommand(handle);
+        }
+    };
+
+    private final Recycler.Handle<SessionCommand> handle;
+    private Type type;
+    private String sessionId;
+    private MQTTConnection connection;
+    private String username;
+    private int packetId;
+    private MqttMessage message;
+    private PostOffice postOffice;
+    private Topic topic;
+    private ByteBuf payload;
+    private PublishFrames frames;
+    private MqttQoS qos;
+    private List<Subscription> subscriptions;
+    private Runnable action;
+    private CompletableFuture<String> completion;
+    private NettySessionLoops.SessionOwner owner;
+
+    private SessionCommand(Recycler.Handle<SessionCommand> handle) {
+        this.handle = handle;
+    }
+
+    private static SessionCommand newInstance(Type type, String sessionId) {
+        final SessionCommand cmd = RECYCLER.get();
+        cmd.type = type;
+        cmd.sessionId = sessionId;
+        return cmd;
+    }
+
+    private static SessionCommand connectionCommand(Type type, MQTTConnection connection, String sessionId) {
+        final SessionCommand cmd = newInstance(type, sessionId);
+        cmd.connection = connection;
+        return cmd;
+    }
+
+    static SessionCommand connect(MQTTConnection connection, String sessionId, MqttConnectMessage msg) {
+        final SessionCommand cmd = connectionCommand(Type.CONNECT, connection, sessionId);
+        cmd.message = msg;
+        return cmd;
+    }
+
+    static SessionCommand disconnect(MQTTConnection connection, String sessionId) {
+        return connectionCommand(Type.DISCONNECT, connection, sessionId);
+    }
+
+    static SessionCommand connectionLost(MQTTConnection connection, String sessionId) {
+        return connectionCommand(Type.CONNECTION_LOST, connection, sessionId);
+    }
+
+    static SessionCommand subscribe(MQTTConnection connection, String sessionId, String username,
+                                    MqttSubscribeMessage msg) {
+        final SessionCommand cmd = connectionCommand(Type.SUBSCRIBE, connection, sessionId);
+        cmd.username = username;
+        cmd.message = msg;
+        return cmd;
+    }
+
+    static SessionCommand unsubscribe(MQTTConnection connection, String sessionId, MqttUnsubscribeMessage msg) {
+        final SessionCommand cmd = connectionCommand(Type.UNSUBSCRIBE, connection, sessionId);
+        cmd.message = msg;
+        return cmd;
+    }
+
+    static SessionCommand publish(MQTTConnection connection, String sessionId, String username, Topic topic,
+                                  MqttPublishMessage msg) {
+        final SessionCommand cmd = connectionCommand(Type.PUBLISH, connection, sessionId);
+        cmd.username = username;
+        cmd.topic = topic;
+        cmd.message = msg;
+        return cmd;
+    }
+
+    static SessionCommand pubAck(MQTTConnection connection, String sessionId, int packetId) {
+        return packetCommand(Type.PUBACK, connection, sessionId, packetId);
+    }
+
+    static SessionCommand pubRec(MQTTConnection connection, String sessionId, int packetId) {
+        return packetCommand(Type.PUBREC, connection, sessionId, packetId);
+    }
+
+    static SessionCommand pubRel(MQTTConnection connection, String sessionId, int packetId) {
+        return packetCommand(Type.PUBREL, connection, sessionId, packetId);
+    }
+
+    static SessionCommand pubComp(MQTTConnection connection, String sessionId, int packetId) {
+        return packetCommand(Type.PUBCOMP, connection, sessionId, packetId);
+    }
+
+    static SessionCommand writable(MQTTConnection connection, String sessionId) {
+        return connectionCommand(Type.WRITABLE, connection, sessionId);
+    }
+
+    static SessionCommand resend(MQTTConnection connection, String sessionId) {
+        return connectionCommand(Type.RESEND, connection, sessionId);
+    }
+
+    private static SessionCommand packetCommand(Type type, MQTTConnection connection, String sessionId,
+                                                int packetId) {
+        final SessionCommand cmd = connectionCommand(type, connection, sessionId);
+        cmd.packetId = packetId;
+        return cmd;
+    }
+
+    /**
+     * @param sessionId the id of the session that own the loop, used only for routing.
+     * @param payload the payload to send, one reference count is owned by the command and released after the
+     *                execution.
+     * @param frames the shared encoded frames of the publish or null, as the payload one reference count is
+     *               owned by the command.
+     * */
+    static SessionCommand routePublish(PostOffice postOffice, String sessionId, ByteBuf payload,
+                                       PublishFrames frames, Topic topic, MqttQoS qos,
+                                       List<Subscription> subscriptions) {
+        final SessionCommand cmd = newInstance(Type.ROUTE_PUBLISH, sessionId);
+        cmd.postOffice = postOffice;
+        cmd.payload = payload;
+        cmd.frames = frames;
+        cmd.topic = topic;
+        cmd.qos = qos;
+        cmd.subscriptions = subscriptions;
+        return cmd;
+    }
+
+    static SessionCommand action(Runnable action) {
+        final SessionCommand cmd = newInstance(Type.ACTION, null);
+        cmd.action = action;
+        return cmd;
+    }
+
+    /**
+     * Request a future completed once the command is executed, it has to be grabbed with
+     * {@link #completion()} before routing the command.
+     * */
+    SessionCommand withCompletion() {
+        this.completion = new CompletableFuture<>();
+        return this;
+    }
+
+    CompletableFuture<String> completion() {
+        return completion;
+    }
+
+    /**
+     * @return the event loop of the connection that sent the command, null if it doesn't come from a client.
+     * */
+    EventLoop preferredLoop() {
+        return connection != null ? connection.channel.eventLoop() : null;
+    }
+
+    /**
+     * @return the channel of the connection that sent the command, null if it doesn't come from a client.
+     * */
+    Channel channel() {
+        return connection != null ? connection.channel : null;
+    }
 
-    private final String sessionId;
-    private final Callable<String> action;
-    private final CompletableFuture<String> task;
+    void assignOwner(NettySessionLoops.SessionOwner owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Executed by the Netty event loop that owns the session.
+     * */
+    @Override
+    public void run() {
+        owner.process(this);
+    }
 
-    public  SessionCommand(String sessionId, Callable<String> action) {
-        this.sessionId = sessionId;
-        this.action = action;
-        this.task = new CompletableFuture<>();
+    Type type() {
+        return type;
     }
 
-    public String getSessionId() {
+    String getSessionId() {
         return this.sessionId;
     }
 
-    public void execute() throws Exception {
-        action.call();
+    void execute() {
+        switch (type) {
+            case CONNECT:
+                connection.executeConnect((MqttConnectMessage) message, sessionId);
+                break;
+            case DISCONNECT:
+                connection.executeDisconnect(sessionId);
+                break;
+            case CONNECTION_LOST:
+                connection.executeConnectionLost(sessionId);
+                break;
+            case SUBSCRIBE:
+                connection.executeSubscribe((MqttSubscribeMessage) message, sessionId, username);
+                break;
+            case UNSUBSCRIBE:
+                connection.executeUnsubscribe((MqttUnsubscribeMessage) message);
+                break;
+            case PUBLISH:
+                connection.executePublish((MqttPublishMessage) message, topic, username);
+                break;
+            case PUBACK:
+                connection.executePubAck(packetId);
+                break;
+            case PUBREC:
+                connection.executePubRec(packetId);
+                break;
+            case PUBREL:
+                connection.executePubRel(packetId);
+                break;
+            case PUBCOMP:
+                connection.executePubComp(packetId);
+                break;
+            case WRITABLE:
+                connection.executeWritable();
+                break;
+            case RESEND:
+                connection.executeResend();
+                break;
+            case ROUTE_PUBLISH:
+                try {
+                    postOffice.publishToSession(payload, frames, topic, subscriptions, qos);
+                } finally {
+                    payload.release();
+                    if (frames != null) {
+                        frames.release();
+                    }
+                }
+                break;
+            case ACTION:
+                action.run();
+                break;
+            default:
+                throw new IllegalStateException("Unknown command type " + type);
+        }
+    }
+
+    void complete() {
+        if (completion != null) {
+            completion.complete(sessionId);
+        }
+    }
+
+    void completeExceptionally(Throwable th) {
+        if (completion != null) {
+            completion.completeExceptionally(th);
+        }
     }
 
-    public void complete() {
-        task.complete(sessionId);
+    /**
+     * Clean the references and give back the instance to the pool.
+     * */
+    void recycle() {
+        type = null;
+        sessionId = null;
+        connection = null;
+        username = null;
+        packetId = 0;
+        message = null;
+        postOffice = null;
+        topic = null;
+        payload = null;
+        frames = null;
+        qos = null;
+        subscriptions = null;
+        action = null;
+        completion = null;
+        owner = null;
+        handle.recycle(this);
     }
 
-    public CompletableFuture<String> completableFuture() {
-        return task;
+    @Override
+    public String toString() {
+        return "SessionCommand{type=" + type + ", sessionId=" + sessionId + '}';
     }
 }
@@ -1,55 +1,313 @@
 package io.moquette.broker;
 
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 final class SessionEventLoop implements Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoop.class);
+    private static final int MAX_BATCH_SIZE = 128;
+    static final int DEFAULT_HIGH_WATERMARK_PERCENT = 75;
+    static final int DEFAULT_LOW_WATERMARK_PERCENT = 25;
+    // the loops that suspended the reads of a publisher, the reads are resumed only when none is left
+    private static final AttributeKey<Set<SessionEventLoop>> ATTR_KEY_THROTTLING_LOOPS =
+        AttributeKey.valueOf("throttlingLoops");
 
-    private final BlockingQueue<FutureTask<String>> sessionQueue;
+    private final SessionEventLoopGroup group;
+    private final int loopId;
+    private final BlockingQueue<SessionCommand> sessionQueue;
     private final boolean flushOnExit;
+    private final int highWatermark;
+    private final int lowWatermark;
+    private Thread thread;
 
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> sessionQueue) {
-        this(sessionQueue, true);
+    // publishers' channels with reads suspended because this loop's queue went over the high watermark
+    private final Set<Channel> throttledPublishers = ConcurrentHashMap.newKeySet();
+
+    // commands of sessions migrated to this loop, waiting for their previous owner to be drained
+    private final Deque<SessionCommand> deferred = new ArrayDeque<>();
+    private SessionEventLoopGroup.Migration deferredMigration;
+    private int[] deferredByPreviousOwner;
+
+    // retransmission deadlines of the sessions owned by this loop
+    private final RetransmissionWheel retransmissions = new RetransmissionWheel();
+    private final FlushConsolidator flushes = new FlushConsolidator();
+
+    SessionEventLoop(SessionEventLoopGroup group, int loopId, BlockingQueue<SessionCommand> sessionQueue) {
+        this(group, loopId, sessionQueue, DEFAULT_HIGH_WATERMARK_PERCENT, DEFAULT_LOW_WATERMARK_PERCENT, true);
     }
 
     /**
+     * @param highWatermarkPercent queue fill level, in percent of the capacity, over which the publishers that
+     *                             route to this loop are suspended.
+     * @param lowWatermarkPercent queue fill level, in percent of the capacity, under which the suspended
+     *                            publishers are resumed.
      * @param flushOnExit consume the commands queue before exit.
      * */
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> sessionQueue, boolean flushOnExit) {
+    SessionEventLoop(SessionEventLoopGroup group, int loopId, BlockingQueue<SessionCommand> sessionQueue,
+                     int highWatermarkPercent, int lowWatermarkPercent, boolean flushOnExit) {
+        this.group = group;
+        this.loopId = loopId;
         this.sessionQueue = sessionQueue;
         this.flushOnExit = flushOnExit;
+        final int capacity = sessionQueue.remainingCapacity();
+        this.highWatermark = Math.max(1, (int) ((long) capacity * highWatermarkPercent / 100));
+        this.lowWatermark = (int) ((long) capacity * lowWatermarkPercent / 100);
+    }
+
+    void start(Thread thread) {
+        this.thread = thread;
+        thread.start();
+    }
+
+    boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    boolean offer(SessionCommand command) {
+        return sessionQueue.offer(command);
+    }
+
+    void enqueue(SessionCommand command) throws InterruptedException {
+        sessionQueue.put(command);
+    }
+
+    int queueDepth() {
+        return sessionQueue.size();
+    }
+
+    /**
+     * Stop reading from the publisher's channel if the queue is over the high watermark, the reads are resumed
+     * once this loop drains its queue under the low watermark.
+     * */
+    void throttleIfCongested(Channel publisher) {
+        if (sessionQueue.size() < highWatermark || throttledPublishers.contains(publisher) || !publisher.isOpen()) {
+            return;
+        }
+        if (!throttledPublishers.add(publisher)) {
+            return;
+        }
+        throttlingLoops(publisher).add(this);
+        updateAutoRead(publisher);
+        LOG.debug("Session queue {} over high watermark ({}), suspended reads from {}", loopId, highWatermark,
+                  publisher);
+        // the loop could have drained in the meantime, without anything left to resume the channel
+        if (sessionQueue.size() <= lowWatermark) {
+            resumeThrottled();
+        }
+    }
+
+    private void resumeThrottled() {
+        int resumed = 0;
+        for (Channel publisher : throttledPublishers) {
+            if (throttledPublishers.remove(publisher)) {
+                throttlingLoops(publisher).remove(this);
+                updateAutoRead(publisher);
+                resumed++;
+            }
+        }
+        LOG.debug("Session queue {} under low watermark ({}), resumed reads from {} publishers", loopId,
+                  lowWatermark, resumed);
+    }
+
+    boolean isThrottling(Channel publisher) {
+        return throttledPublishers.contains(publisher);
+    }
+
+    private static Set<SessionEventLoop> throttlingLoops(Channel publisher) {
+        final Attribute<Set<SessionEventLoop>> attr = publisher.attr(ATTR_KEY_THROTTLING_LOOPS);
+        final Set<SessionEventLoop> loops = attr.get();
+        if (loops != null) {
+            return loops;
+        }
+        final Set<SessionEventLoop> created = ConcurrentHashMap.newKeySet();
+        final Set<SessionEventLoop> existing = attr.setIfAbsent(created);
+        if (existing != null) {
+            return existing;
+        }
+        // a closed publisher isn't kept by the loops until their next resume
+        publisher.closeFuture().addListener(future -> {
+            for (SessionEventLoop loop : created) {
+                loop.throttledPublishers.remove(publisher);
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Apply to the publisher's reads the state of its throttling loops, on the publisher's event loop. The
+     * state is read when applied, so the last of concurrent updates from different loops sees the final one.
+     * */
+    private static void updateAutoRead(Channel publisher) {
+        if (publisher.eventLoop().inEventLoop()) {
+            applyAutoRead(publisher);
+        } else {
+            publisher.eventLoop().execute(() -> applyAutoRead(publisher));
+        }
+    }
+
+    private static void applyAutoRead(Channel publisher) {
+        publisher.config().setAutoRead(throttlingLoops(publisher).isEmpty());
+    }
+
+    /**
+     * Route a check of the messages in flight to every session with a deadline on this loop's wheel, so that it
+     * isn't lost when the loop is removed. Must be invoked by the loop's thread, once it doesn't own any session.
+     * */
+    void retireRetransmissions() {
+        final int routed = retransmissions.close();
+        LOG.debug("Session loop {} routed {} retransmission checks before stopping", loopId, routed);
+    }
+
+    void interrupt() {
+        thread.interrupt();
+    }
+
+    void join() {
+        try {
+            thread.join(5_000);
+        } catch (InterruptedException ex) {
+            LOG.info("Interrupted while joining session event loop {}", thread.getName(), ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void stop() {
+        interrupt();
+        join();
     }
 
     @Override
     public void run() {
+        final List<SessionCommand> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        retransmissions.bind();
+        flushes.bind();
         while (!Thread.interrupted() || (Thread.interrupted() && !sessionQueue.isEmpty() && flushOnExit)) {
             try {
-                // blocking call
-                final FutureTask<String> task = this.sessionQueue.take();
-                executeTask(task);
+                // grab everything is ready, up to a batch, and block only if there is nothing to do
+                if (this.sessionQueue.drainTo(batch, MAX_BATCH_SIZE) == 0) {
+                    awaitCommand(batch);
+                }
+                for (SessionCommand command : batch) {
+                    process(command);
+                }
+                retransmissions.expire(RetransmissionWheel.now());
+                // a flush per written channel, once the batch is done
+                flushes.flushAll();
+                if (!throttledPublishers.isEmpty() && sessionQueue.size() <= lowWatermark) {
+                    resumeThrottled();
+                }
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("Executed a batch of {} commands, queue depth: {}", batch.size(), sessionQueue.size());
+                }
             } catch (InterruptedException e) {
                 LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
                 Thread.currentThread().interrupt();
+            } finally {
+                batch.clear();
             }
         }
+        flushes.unbind();
         LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
     }
 
-    public static void executeTask(final FutureTask<String> task) {
-        if (!task.isCancelled()) {
-            try {
-                task.run();
+    private void awaitCommand(List<SessionCommand> batch) throws InterruptedException {
+        if (retransmissions.isEmpty()) {
+            batch.add(this.sessionQueue.take());
+            return;
+        }
+        // wake up for the next tick of the retransmissions
+        final long timeout = retransmissions.millisToNextTick(RetransmissionWheel.now());
+        final SessionCommand command = this.sessionQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        if (command != null) {
+            batch.add(command);
+        }
+    }
+
+    /**
+     * Execute a command routed to this loop, must be invoked by the loop's thread.
+     * */
+    void process(SessionCommand command) {
+        if (!deferIfMigrating(command)) {
+            executeCommand(command);
+        }
+    }
+
+    private boolean deferIfMigrating(SessionCommand command) {
+        final SessionEventLoopGroup.Migration migration = group.migration();
+        if (migration == null || command.type() == SessionCommand.Type.ACTION) {
+            return false;
+        }
+        final int previousOwner = migration.from.loopFor(command.getSessionId());
+        if (previousOwner == loopId) {
+            return false;
+        }
+        if (migration != deferredMigration) {
+            deferredMigration = migration;
+            deferredByPreviousOwner = new int[migration.from.size()];
+        }
+        // once something is deferred for the previous owner, the following commands have to queue up after it
+        if (migration.isDrained(previousOwner) && deferredByPreviousOwner[previousOwner] == 0) {
+            return false;
+        }
+        deferred.add(command);
+        deferredByPreviousOwner[previousOwner]++;
+        return true;
+    }
 
-                // we ran it, but we have to grab the exception if raised
-                task.get();
-            } catch (Throwable th) {
-                LOG.info("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
+    /**
+     * Execute, in arrival order, the deferred commands of the sessions whose previous owner is drained.
+     * */
+    void resumeDeferred() {
+        if (deferred.isEmpty()) {
+            return;
+        }
+        LOG.debug("Resuming {} commands of migrated sessions", deferred.size());
+        final SessionEventLoopGroup.Migration migration = deferredMigration;
+        boolean progress = true;
+        while (progress && !deferred.isEmpty()) {
+            progress = false;
+            // executing a command could defer new ones, those are appended and scanned in the next round
+            final int toScan = deferred.size();
+            for (int i = 0; i < toScan; i++) {
+                final SessionCommand command = deferred.poll();
+                final int previousOwner = migration.from.loopFor(command.getSessionId());
+                if (migration.isDrained(previousOwner)) {
+                    deferredByPreviousOwner[previousOwner]--;
+                    executeCommand(command);
+                    progress = true;
+                } else {
+                    deferred.add(command);
+                }
             }
         }
     }
+
+    /**
+     * Execute the command, complete its future if any was requested and give back the command to its pool.
+     * */
+    public static void executeCommand(final SessionCommand command) {
+        try {
+            command.execute();
+            command.complete();
+        } catch (Throwable th) {
+            LOG.info("SessionEventLoop {} reached exception in processing command {}",
+                     Thread.currentThread().getName(), command, th);
+            command.completeExceptionally(th);
+        } finally {
+            command.recycle();
+        }
+    }
 }
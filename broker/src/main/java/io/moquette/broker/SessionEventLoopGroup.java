@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The set of SessionEventLoops, every session is owned by exactly one loop, selected with a consistent-hash
+ * ring with virtual nodes.
+ * <p>
+ * The number of loops can be changed at runtime with {@link #resize(int)}: only the sessions that change their
+ * owner loop are migrated, their commands are held by the new owner until the previous owner has executed all
+ * the commands it already had in its queue, so that per session ordering and single thread access are preserved.
+ */
+final class SessionEventLoopGroup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoopGroup.class);
+
+    static final int VIRTUAL_NODES_PER_LOOP = 128;
+
+    /**
+     * Immutable placement of sessions over a set of loops.
+     */
+    static final class Ring {
+
+        private final SessionEventLoop[] loops;
+        private final int[] points;
+        private final int[] owners;
+        // count of routings in progress that selected the loop with this ring
+        private final LongAdder routers = new LongAdder();
+
+        Ring(SessionEventLoop[] loops) {
+            this.loops = loops;
+            final long[] nodes = new long[loops.length * VIRTUAL_NODES_PER_LOOP];
+            int i = 0;
+            for (int loopId = 0; loopId < loops.length; loopId++) {
+                for (int vnode = 0; vnode < VIRTUAL_NODES_PER_LOOP; vnode++) {
+                    final int point = mix(loopId * 0x9E3779B9 + mix(vnode));
+                    // sort by point and then by loop, so that also colliding points have a stable order
+                    nodes[i++] = ((long) point << 32) | loopId;
+                }
+            }
+            Arrays.sort(nodes);
+            this.points = new int[nodes.length];
+            this.owners = new int[nodes.length];
+            for (int j = 0; j < nodes.length; j++) {
+                points[j] = (int) (nodes[j] >> 32);
+                owners[j] = (int) nodes[j];
+            }
+        }
+
+        int loopFor(String sessionId) {
+            return ownerOf(mix(sessionId.hashCode()));
+        }
+
+        private int ownerOf(int hash) {
+            int idx = Arrays.binarySearch(points, hash);
+            if (idx < 0) {
+                idx = -idx - 1;
+            }
+            if (idx == points.length) {
+                // wrap around the ring
+                idx = 0;
+            }
+            return owners[idx];
+        }
+
+        SessionEventLoop loop(int loopId) {
+            return loops[loopId];
+        }
+
+        int size() {
+            return loops.length;
+        }
+
+        /**
+         * @return for each loop of this ring, true if some of its sessions are owned by another loop in next.
+         * */
+        boolean[] losingLoops(Ring next) {
+            final boolean[] losing = new boolean[loops.length];
+            // every arc of the two rings ends on a point of one of them
+            markLosingArcs(points, next, losing);
+            markLosingArcs(next.points, next, losing);
+            return losing;
+        }
+
+        private void markLosingArcs(int[] arcEnds, Ring next, boolean[] losing) {
+            for (int arcEnd : arcEnds) {
+                final int owner = ownerOf(arcEnd);
+                if (owner != next.ownerOf(arcEnd)) {
+                    losing[owner] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Transition between two rings, tracks which of the previous owners has executed all its pending commands.
+     */
+    static final class Migration {
+
+        final Ring from;
+        private final AtomicIntegerArray drained;
+
+        Migration(Ring from, boolean[] losingLoops) {
+            this.from = from;
+            this.drained = new AtomicIntegerArray(from.size());
+            for (int i = 0; i < losingLoops.length; i++) {
+                if (!losingLoops[i]) {
+                    drained.set(i, 1);
+                }
+            }
+        }
+
+        boolean isDrained(int previousOwner) {
+            return drained.get(previousOwner) == 1;
+        }
+
+        void markDrained(int previousOwner) {
+            drained.set(previousOwner, 1);
+        }
+    }
+
+    private final Supplier<BlockingQueue<SessionCommand>> sessionQueueFactory;
+    private final int highWatermarkPercent;
+    private final int lowWatermarkPercent;
+    private volatile Ring ring;
+    private volatile Migration migration;
+
+    SessionEventLoopGroup(int loopsCount, Supplier<BlockingQueue<SessionCommand>> sessionQueueFactory) {
+        this(loopsCount, sessionQueueFactory, SessionEventLoop.DEFAULT_HIGH_WATERMARK_PERCENT,
+             SessionEventLoop.DEFAULT_LOW_WATERMARK_PERCENT);
+    }
+
+    /**
+     * @param highWatermarkPercent fill level of a loop's queue over which the publishers routing to it are
+     *                             suspended.
+     * @param lowWatermarkPercent fill level under which the suspended publishers are resumed.
+     * */
+    SessionEventLoopGroup(int loopsCount, Supplier<BlockingQueue<SessionCommand>> sessionQueueFactory,
+                          int highWatermarkPercent, int lowWatermarkPercent) {
+        if (loopsCount <= 0) {
+            throw new IllegalArgumentException("Session loops must be at least 1, was: " + loopsCount);
+        }
+        if (lowWatermarkPercent < 0 || lowWatermarkPercent >= highWatermarkPercent || highWatermarkPercent > 100) {
+            throw new IllegalArgumentException("Session queue watermarks must satisfy 0 <= low < high <= 100, were: "
+                                               + lowWatermarkPercent + ", " + highWatermarkPercent);
+        }
+        this.sessionQueueFactory = sessionQueueFactory;
+        this.highWatermarkPercent = highWatermarkPercent;
+        this.lowWatermarkPercent = lowWatermarkPercent;
+        final SessionEventLoop[] loops = new SessionEventLoop[loopsCount];
+        for (int i = 0; i < loopsCount; i++) {
+            loops[i] = startLoop(i);
+        }
+        this.ring = new Ring(loops);
+    }
+
+    private SessionEventLoop startLoop(int loopId) {
+        final SessionEventLoop loop = new SessionEventLoop(this, loopId, sessionQueueFactory.get(),
+                                                           highWatermarkPercent, lowWatermarkPercent, true);
+        final Thread thread = new Thread(loop);
+        thread.setName("Session Executor " + loopId);
+        loop.start(thread);
+        return loop;
+    }
+
+    /**
+     * Grab the current ring to route one or more commands with it, the ring must be given back with
+     * {@link #exitRing(Ring)} once the commands are enqueued.
+     * */
+    Ring enterRing() {
+        while (true) {
+            final Ring current = ring;
+            current.routers.increment();
+            if (current == ring) {
+                return current;
+            }
+            // raced with a resize, the commands has to be routed with the new ring
+            current.routers.decrement();
+        }
+    }
+
+    void exitRing(Ring ring) {
+        ring.routers.decrement();
+    }
+
+    /**
+     * @return the ongoing transition of sessions between loops, or null.
+     * */
+    Migration migration() {
+        return migration;
+    }
+
+    int loopsCount() {
+        return ring.size();
+    }
+
+    /**
+     * Change the number of loops, blocks until the moved sessions are migrated to their new loop.
+     * */
+    synchronized void resize(int loopsCount) throws InterruptedException {
+        if (loopsCount <= 0) {
+            throw new IllegalArgumentException("Session loops must be at least 1, was: " + loopsCount);
+        }
+        final Ring current = ring;
+        for (int i = 0; i < current.size(); i++) {
+            if (current.loop(i).isLoopThread()) {
+                throw new IllegalStateException("Can't resize the session loops from a session loop");
+            }
+        }
+        if (loopsCount == current.size()) {
+            return;
+        }
+        final SessionEventLoop[] loops = new SessionEventLoop[loopsCount];
+        for (int i = 0; i < loopsCount; i++) {
+            loops[i] = i < current.size() ? current.loop(i) : startLoop(i);
+        }
+        final Ring next = new Ring(loops);
+        final boolean[] losingLoops = current.losingLoops(next);
+        final Migration transition = new Migration(current, losingLoops);
+
+        // publish the migration before the ring, so that a loop can't see a new ring command without it
+        migration = transition;
+        ring = next;
+        while (current.routers.sum() != 0) {
+            Thread.yield();
+        }
+
+        // all the commands routed with the previous ring are in the queues, mark the end of the losing ones
+        final CountDownLatch drained = new CountDownLatch(countTrue(losingLoops));
+        for (int i = 0; i < losingLoops.length; i++) {
+            if (losingLoops[i]) {
+                final int previousOwner = i;
+                current.loop(i).enqueue(SessionCommand.action(() -> {
+                    transition.markDrained(previousOwner);
+                    drained.countDown();
+                }));
+            }
+        }
+        drained.await();
+
+        // let the new owners execute the commands they held for the migrated sessions
+        final CountDownLatch resumed = new CountDownLatch(next.size());
+        for (int i = 0; i < next.size(); i++) {
+            final SessionEventLoop loop = next.loop(i);
+            loop.enqueue(SessionCommand.action(() -> {
+                loop.resumeDeferred();
+                resumed.countDown();
+            }));
+        }
+        resumed.await();
+        migration = null;
+
+        // the removed loops own no session now, their pending retransmissions are checked by the new owners
+        final CountDownLatch retired = new CountDownLatch(Math.max(0, current.size() - loopsCount));
+        for (int i = loopsCount; i < current.size(); i++) {
+            final SessionEventLoop loop = current.loop(i);
+            loop.enqueue(SessionCommand.action(() -> {
+                loop.retireRetransmissions();
+                retired.countDown();
+            }));
+        }
+        retired.await();
+        for (int i = loopsCount; i < current.size(); i++) {
+            current.loop(i).stop();
+        }
+        LOG.info("Resized session loops from {} to {}, {} loops migrated sessions", current.size(), loopsCount,
+                 countTrue(losingLoops));
+    }
+
+    private static int countTrue(boolean[] flags) {
+        int count = 0;
+        for (boolean flag : flags) {
+            if (flag) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void terminate() {
+        final Ring current = ring;
+        for (int i = 0; i < current.size(); i++) {
+            current.loop(i).interrupt();
+        }
+        for (int i = 0; i < current.size(); i++) {
+            current.loop(i).join();
+        }
+    }
+
+    /**
+     * murmur3 finalizer, spreads the poor hash codes of short strings all over the ring.
+     * */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
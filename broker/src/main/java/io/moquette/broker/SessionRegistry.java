@@ -15,8 +15,12 @@
  */
 package io.moquette.broker;
 
+import static io.moquette.BrokerConstants.INFLIGHT_WINDOW_SIZE;
+
 import io.moquette.broker.Session.SessionStatus;
+import io.moquette.broker.subscriptions.ClientHandles;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.SharedSubscriptionStrategy;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
@@ -33,6 +37,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Collectors;
 
 public class SessionRegistry {
@@ -113,9 +118,16 @@ public class SessionRegistry {
     private static final Logger LOG = LoggerFactory.getLogger(SessionRegistry.class);
 
     private final ConcurrentMap<String, Session> pool = new ConcurrentHashMap<>();
+    // the sessions by client handle, to find them on the routing path without hashing the client id
+    private volatile AtomicReferenceArray<Session> sessionsByHandle = new AtomicReferenceArray<>(16);
+    private final ClientHandles clientHandles = new ClientHandles();
     private final ISubscriptionsDirectory subscriptionsDirectory;
     private final IQueueRepository queueRepository;
     private final Authorizator authorizator;
+    private InflightWindowPolicy inflightWindowPolicy = InflightWindowPolicy.fixed(INFLIGHT_WINDOW_SIZE);
+    private final InflightWindowLimit.Counters inflightWindows = new InflightWindowLimit.Counters();
+    // the payloads of the in memory retained messages, none when they are persisted
+    private RetainedPayloads retainedPayloads = new RetainedPayloads(0);
 
     SessionRegistry(ISubscriptionsDirectory subscriptionsDirectory,
                     IQueueRepository queueRepository,
@@ -126,6 +138,13 @@ public class SessionRegistry {
         recreateSessionPool();
     }
 
+    /**
+     * Sizing of the inflight windows of the sessions, applied when a client connects.
+     * */
+    void configureInflightWindow(InflightWindowPolicy policy) {
+        this.inflightWindowPolicy = policy;
+    }
+
     private void recreateSessionPool() {
         final Set<String> queues = queueRepository.listQueueNames();
         for (String clientId : subscriptionsDirectory.listAllSessionIds()) {
@@ -134,7 +153,7 @@ public class SessionRegistry {
                 final SessionMessageQueue<EnqueuedMessage> persistentQueue = queueRepository.getOrCreateQueue(clientId);
                 queues.remove(clientId);
                 Session rehydrated = new Session(clientId, false, persistentQueue);
-                pool.put(clientId, rehydrated);
+                register(rehydrated);
             }
         }
         if (!queues.isEmpty()) {
@@ -151,7 +170,7 @@ public class SessionRegistry {
             postConnectAction = new SessionCreationResult(newSession, CreationModeEnum.CREATED_CLEAN_NEW, false);
 
             // publish the session
-            final Session previous = pool.put(clientId, newSession);
+            final Session previous = register(newSession);
             if (previous != null) {
                 // if this happens mean that another Session Event Loop thread processed a CONNECT message
                 // with the same clientId. This is a bug because all messages for the same clientId should
@@ -186,7 +205,7 @@ public class SessionRegistry {
             unsubscribe(oldSession);
             remove(clientId);
             final Session newSession = createNewSession(msg, clientId);
-            pool.put(clientId, newSession);
+            register(newSession);
 
             LOG.trace("case 2, oldSession with same CId {} disconnected", clientId);
             creationResult = new SessionCreationResult(newSession, CreationModeEnum.CREATED_CLEAN_NEW, true);
@@ -197,6 +216,7 @@ public class SessionRegistry {
             }
             // case 3, reopening existing session without cleanSession, so keep the existing subscriptions
             copySessionConfig(msg, oldSession);
+            oldSession.configureInflightWindow(inflightWindowPolicy.limitFor(clientId, inflightWindows));
             reactivateSubscriptions(oldSession, username);
 
             LOG.trace("case 3, oldSession with same CId {} disconnected", clientId);
@@ -221,9 +241,7 @@ public class SessionRegistry {
     }
 
     private void unsubscribe(Session session) {
-        for (Subscription existingSub : session.getSubscriptions()) {
-            subscriptionsDirectory.removeSubscription(existingSub.getTopicFilter(), session.getClientID());
-        }
+        subscriptionsDirectory.removeAllSubscriptions(session.getClientID());
     }
 
     private Session createNewSession(MqttConnectMessage msg, String clientId) {
@@ -242,6 +260,7 @@ public class SessionRegistry {
             newSession = new Session(clientId, clean, queue);
         }
 
+        newSession.configureInflightWindow(inflightWindowPolicy.limitFor(clientId, inflightWindows));
         newSession.markConnecting();
         return newSession;
     }
@@ -269,13 +288,111 @@ public class SessionRegistry {
         return pool.get(clientID);
     }
 
+    /**
+     * @return the messages in flight to the client, {@link SharedSubscriptionStrategy#DISCONNECTED} if it isn't
+     * connected.
+     * */
+    int inflightLoad(String clientID) {
+        final Session session = pool.get(clientID);
+        if (session == null || !session.connected()) {
+            return SharedSubscriptionStrategy.DISCONNECTED;
+        }
+        return session.inflightMessages();
+    }
+
+    /**
+     * @return the session of the subscribed client, found by the client handle of the subscription.
+     * */
+    Session retrieve(Subscription subscription) {
+        final int handle = subscription.getClientHandle();
+        final AtomicReferenceArray<Session> byHandle = sessionsByHandle;
+        if (handle >= 0 && handle < byHandle.length()) {
+            final Session indexed = byHandle.get(handle);
+            // the handle could have been assigned to another client since the subscription was created
+            if (indexed != null && indexed.getClientID().equals(subscription.getClientId())) {
+                return indexed;
+            }
+        }
+        return pool.get(subscription.getClientId());
+    }
+
+    /**
+     * Publish the session, with a client handle of its own.
+     *
+     * @return the session it replaced, if any.
+     * */
+    private Session register(Session session) {
+        assignHandle(session);
+        final Session previous = pool.put(session.getClientID(), session);
+        if (previous != null) {
+            releaseHandle(previous);
+            previous.closeInflightWindow();
+        }
+        return previous;
+    }
+
+    private synchronized void assignHandle(Session session) {
+        final int handle = clientHandles.acquire();
+        AtomicReferenceArray<Session> byHandle = sessionsByHandle;
+        if (handle >= byHandle.length()) {
+            final AtomicReferenceArray<Session> grown = new AtomicReferenceArray<>(byHandle.length() * 2);
+            for (int i = 0; i < byHandle.length(); i++) {
+                grown.set(i, byHandle.get(i));
+            }
+            byHandle = grown;
+            sessionsByHandle = grown;
+        }
+        byHandle.set(handle, session);
+        session.clientHandle = handle;
+    }
+
+    private synchronized void releaseHandle(Session session) {
+        final int handle = session.clientHandle;
+        if (handle == ClientHandles.NO_HANDLE) {
+            return;
+        }
+        sessionsByHandle.set(handle, null);
+        session.clientHandle = ClientHandles.NO_HANDLE;
+        clientHandles.release(handle);
+    }
+
     void remove(String clientID) {
         final Session old = pool.remove(clientID);
         if (old != null) {
+            releaseHandle(old);
             old.cleanUp();
         }
     }
 
+    /**
+     * @return the number of sessions with a client handle.
+     * */
+    public int clientHandles() {
+        return clientHandles.size();
+    }
+
+    /**
+     * @return the totals of the inflight windows of the sessions.
+     * */
+    public InflightWindowLimit.Counters inflightWindows() {
+        return inflightWindows;
+    }
+
+    void configureRetainedPayloads(RetainedPayloads retainedPayloads) {
+        this.retainedPayloads = retainedPayloads;
+    }
+
+    /**
+     * @return the storage of the retained payloads, with the counters of the direct memory they hold.
+     * */
+    public RetainedPayloads retainedPayloads() {
+        return retainedPayloads;
+    }
+
+    public ISubscriptionsDirectory subscriptionsDirectory() {
+        return subscriptionsDirectory;
+    }
+
     Collection<ClientDescriptor> listConnectedClients() {
         return pool.values().stream()
             .filter(Session::connected)
@@ -288,6 +405,7 @@ public class SessionRegistry {
     private Optional<ClientDescriptor> createClientDescriptor(Session s) {
         final String clientID = s.getClientID();
         final Optional<InetSocketAddress> remoteAddressOpt = s.remoteAddress();
-        return remoteAddressOpt.map(r -> new ClientDescriptor(clientID, r.getHostString(), r.getPort()));
+        return remoteAddressOpt.map(r -> new ClientDescriptor(clientID, r.getHostString(), r.getPort(),
+                                                              s.inflightWindowSize()));
     }
 }
@@ -69,6 +69,14 @@ public abstract class IConfig {
         return Integer.parseInt(propertyValue);
     }
 
+    public long longProp(String propertyName, long defaultValue) {
+        String propertyValue = getProperty(propertyName);
+        if (propertyValue == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(propertyValue);
+    }
+
     public boolean boolProp(String propertyName, boolean defaultValue) {
         String propertyValue = getProperty(propertyName);
         if (propertyValue == null) {
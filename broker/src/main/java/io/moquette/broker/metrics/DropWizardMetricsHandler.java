@@ -16,11 +16,20 @@
 package io.moquette.broker.metrics;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.librato.metrics.reporter.Librato;
 import io.moquette.broker.config.IConfig;
+import io.moquette.broker.InflightWindowLimit;
 import io.moquette.broker.NettyUtils;
+import io.moquette.broker.RetainedPayloads;
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.Token;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.subscriptions.WeakInterner;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.handler.codec.mqtt.MqttMessage;
@@ -41,11 +50,29 @@ public final class DropWizardMetricsHandler extends ChannelInboundHandlerAdapter
     private Meter subscribeMetrics;
     private Counter connectedClientsMetrics;
 
-    public void init(IConfig props) {
+    public void init(IConfig props, SessionRegistry sessions) {
         this.metrics = new MetricRegistry();
         this.publishesMetrics = metrics.meter("publish.requests");
         this.subscribeMetrics = metrics.meter("subscribe.requests");
         this.connectedClientsMetrics = metrics.counter("connect.num_clients");
+        registerInterning("topics.interned", Topic.interned());
+        registerInterning("tokens.interned", Token.interned());
+        metrics.register("clients.handles", (Gauge<Integer>) sessions::clientHandles);
+        final ISubscriptionsDirectory subscriptions = sessions.subscriptionsDirectory();
+        if (subscriptions instanceof CTrieSubscriptionDirectory) {
+            final CTrieSubscriptionDirectory directory = (CTrieSubscriptionDirectory) subscriptions;
+            metrics.register("subscriptions.match_cache.hits", (Gauge<Long>) directory::matchCacheHits);
+            metrics.register("subscriptions.match_cache.misses", (Gauge<Long>) directory::matchCacheMisses);
+            metrics.register("subscriptions.match_cache.evictions", (Gauge<Long>) directory::matchCacheEvictions);
+        }
+        final RetainedPayloads retainedPayloads = sessions.retainedPayloads();
+        metrics.register("retained.offheap.bytes", (Gauge<Long>) retainedPayloads::offHeapBytes);
+        metrics.register("retained.offheap.payloads", (Gauge<Long>) retainedPayloads::offHeapPayloads);
+        metrics.register("retained.offheap.over_budget", (Gauge<Long>) retainedPayloads::overBudget);
+        final InflightWindowLimit.Counters inflightWindows = sessions.inflightWindows();
+        metrics.register("inflight.window.average", (Gauge<Double>) inflightWindows::averageSize);
+        metrics.register("inflight.window.grown", (Gauge<Long>) inflightWindows::grown);
+        metrics.register("inflight.window.shrunk", (Gauge<Long>) inflightWindows::shrunk);
 //        ConsoleReporter reporter = ConsoleReporter.forRegistry(metrics)
 //            .convertRatesTo(TimeUnit.SECONDS)
 //            .convertDurationsTo(TimeUnit.MILLISECONDS)
@@ -60,6 +87,16 @@ public final class DropWizardMetricsHandler extends ChannelInboundHandlerAdapter
             .start(10, TimeUnit.SECONDS);
     }
 
+    private void registerInterning(String prefix, WeakInterner<?> interner) {
+        metrics.register(prefix + ".hits", (Gauge<Long>) interner::hits);
+        metrics.register(prefix + ".misses", (Gauge<Long>) interner::misses);
+        metrics.register(prefix + ".replaced", (Gauge<Long>) interner::replaced);
+        // live instances over the slots of the table, the table never grows
+        metrics.register(prefix + ".size", (Gauge<Integer>) interner::size);
+        metrics.register(prefix + ".capacity", (Gauge<Integer>) interner::capacity);
+        metrics.register(prefix + ".retained_bytes", (Gauge<Long>) interner::retainedBytes);
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object message) {
         MqttMessage msg = (MqttMessage) message;
@@ -19,20 +19,38 @@ import java.util.*;
 
 class CNode {
 
+    /**
+     * Number of literal children over which they are indexed by token instead of being scanned.
+     * */
+    static final int INDEXED_CHILDREN_THRESHOLD = 16;
+
     private Token token;
+    // literal children, scanned while they are few, then indexed by token
     private List<INode> children;
-    Set<Subscription> subscriptions;
+    // immutable, shared with the copies
+    private ChildrenMap indexedChildren;
+    // wildcard children are kept apart, every topic level has to try them while matching
+    private INode singleWildcardChild;
+    private INode multiWildcardChild;
+    // the children list is shared with the origin of a copy until the copy changes it
+    private boolean childrenShared;
+    SubscriptionsSet subscriptions;
 
     CNode() {
         this.children = new ArrayList<>();
-        this.subscriptions = new HashSet<>();
+        this.subscriptions = SubscriptionsSet.EMPTY;
     }
 
     //Copy constructor
-    private CNode(Token token, List<INode> children, Set<Subscription> subscriptions) {
-        this.token = token; // keep reference, root comparison in directory logic relies on it for now.
-        this.subscriptions = new HashSet<>(subscriptions);
-        this.children = new ArrayList<>(children);
+    private CNode(CNode origin) {
+        this.token = origin.token; // keep reference, root comparison in directory logic relies on it for now.
+        // immutable, changes create a new set that shares most of its structure with this one
+        this.subscriptions = origin.subscriptions;
+        this.indexedChildren = origin.indexedChildren;
+        this.children = origin.children;
+        this.childrenShared = true;
+        this.singleWildcardChild = origin.singleWildcardChild;
+        this.multiWildcardChild = origin.multiWildcardChild;
     }
 
     public Token getToken() {
@@ -44,27 +62,82 @@ class CNode {
     }
 
     boolean anyChildrenMatch(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return true;
-            }
-        }
-        return false;
+        return findChild(token) != null;
     }
 
+    /**
+     * @return all the children, wildcard ones included, as a new list.
+     * */
     List<INode> allChildren() {
-        return this.children;
+        final List<INode> all;
+        if (indexedChildren != null) {
+            all = new ArrayList<>(indexedChildren.size() + 2);
+            indexedChildren.forEach(all::add);
+        } else {
+            all = new ArrayList<>(children);
+        }
+        if (singleWildcardChild != null) {
+            all.add(singleWildcardChild);
+        }
+        if (multiWildcardChild != null) {
+            all.add(multiWildcardChild);
+        }
+        return all;
+    }
+
+    boolean hasChildren() {
+        return singleWildcardChild != null || multiWildcardChild != null
+            || (indexedChildren != null ? !indexedChildren.isEmpty() : !children.isEmpty());
     }
 
     INode childOf(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
+        final INode child = findChild(token);
+        if (child == null) {
+            throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
+        }
+        return child;
+    }
+
+    /**
+     * @return the child for the token, wildcard tokens included, or null if there isn't or it's a tomb.
+     * */
+    INode findChild(Token token) {
+        if (Token.SINGLE.equals(token)) {
+            return liveChild(singleWildcardChild, token);
+        }
+        if (Token.MULTI.equals(token)) {
+            return liveChild(multiWildcardChild, token);
+        }
+        return literalChild(token);
+    }
+
+    /**
+     * @return the child that matches exactly the token, never a wildcard one, or null.
+     * */
+    INode literalChild(Token token) {
+        if (indexedChildren != null) {
+            return liveChild(indexedChildren.get(token), token);
+        }
+        // indexed loop, matching must not allocate iterators
+        for (int i = 0; i < children.size(); i++) {
+            final INode iNode = children.get(i);
+            if (iNode.mainNode().equalsToken(token)) {
                 return iNode;
             }
         }
-        throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
+        return null;
+    }
+
+    INode singleWildcardChild() {
+        return singleWildcardChild;
+    }
+
+    INode multiWildcardChild() {
+        return multiWildcardChild;
+    }
+
+    private static INode liveChild(INode child, Token token) {
+        return child != null && child.mainNode().equalsToken(token) ? child : null;
     }
 
     private boolean equalsToken(Token token) {
@@ -77,30 +150,68 @@ class CNode {
     }
 
     CNode copy() {
-        return new CNode(this.token, this.children, this.subscriptions);
+        return new CNode(this);
     }
 
     public void add(INode newINode) {
-        this.children.add(newINode);
+        final Token childToken = newINode.mainNode().getToken();
+        if (Token.SINGLE.equals(childToken)) {
+            this.singleWildcardChild = newINode;
+        } else if (Token.MULTI.equals(childToken)) {
+            this.multiWildcardChild = newINode;
+        } else if (indexedChildren != null) {
+            this.indexedChildren = indexedChildren.plus(childToken, newINode);
+        } else {
+            ownChildren();
+            this.children.add(newINode);
+            if (this.children.size() > INDEXED_CHILDREN_THRESHOLD) {
+                indexChildren();
+            }
+        }
     }
 
-    public void remove(INode node) {
-        this.children.remove(node);
+    private void indexChildren() {
+        ChildrenMap index = ChildrenMap.EMPTY;
+        for (INode iNode : children) {
+            final CNode child = iNode.mainNode();
+            // tombs have no token, they are left out like cleanTomb would do
+            if (!(child instanceof TNode)) {
+                index = index.plus(child.getToken(), iNode);
+            }
+        }
+        this.indexedChildren = index;
+        this.children = null;
+        this.childrenShared = false;
     }
 
-    CNode addSubscription(Subscription newSubscription) {
-        // if already contains one with same topic and same client, keep that with higher QoS
-        if (subscriptions.contains(newSubscription)) {
-            final Subscription existing = subscriptions.stream()
-                .filter(s -> s.equals(newSubscription))
-                .findFirst().get();
-            if (existing.getRequestedQos().value() < newSubscription.getRequestedQos().value()) {
-                subscriptions.remove(existing);
-                subscriptions.add(new Subscription(newSubscription));
+    private void ownChildren() {
+        if (childrenShared) {
+            this.children = new ArrayList<>(children);
+            childrenShared = false;
+        }
+    }
+
+    /**
+     * @param token the token the child had, a tomb doesn't know it anymore.
+     * */
+    public void remove(INode node, Token token) {
+        if (this.singleWildcardChild == node) {
+            this.singleWildcardChild = null;
+        } else if (this.multiWildcardChild == node) {
+            this.multiWildcardChild = null;
+        } else if (indexedChildren != null) {
+            if (indexedChildren.get(token) == node) {
+                this.indexedChildren = indexedChildren.minus(token);
             }
         } else {
-            this.subscriptions.add(new Subscription(newSubscription));
+            ownChildren();
+            this.children.remove(node);
         }
+    }
+
+    CNode addSubscription(Subscription newSubscription) {
+        // if already contains one with same topic and same client, keep that with higher QoS
+        this.subscriptions = subscriptions.merge(newSubscription);
         return this;
     }
 
@@ -109,31 +220,15 @@ class CNode {
      *   AND at least one subscription is actually present for that clientId
      * */
     boolean containsOnly(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (!sub.clientId.equals(clientId)) {
-                return false;
-            }
-        }
-        return !this.subscriptions.isEmpty();
+        return this.subscriptions.size() == 1 && contains(clientId);
     }
 
     //TODO this is equivalent to negate(containsOnly(clientId))
     public boolean contains(String clientId) {
-        for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
-                return true;
-            }
-        }
-        return false;
+        return this.subscriptions.get(clientId) != null;
     }
 
     void removeSubscriptionsFor(String clientId) {
-        Set<Subscription> toRemove = new HashSet<>();
-        for (Subscription sub : this.subscriptions) {
-            if (sub.clientId.equals(clientId)) {
-                toRemove.add(sub);
-            }
-        }
-        this.subscriptions.removeAll(toRemove);
+        this.subscriptions = this.subscriptions.minus(clientId);
     }
 }
@@ -1,9 +1,16 @@
 package io.moquette.broker.subscriptions;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 public class CTrie {
 
@@ -21,6 +28,43 @@ public class CTrie {
         OK, REPEAT
     }
 
+    // orders the filters level by level, so that the filters sharing a prefix of tokens are contiguous and the
+    // ones ending at a level precede the longer ones
+    private static final Comparator<Subscription> BY_TOKENS = (first, second) -> {
+        final List<Token> firstTokens = first.topicFilter.getTokens();
+        final List<Token> secondTokens = second.topicFilter.getTokens();
+        final int common = Math.min(firstTokens.size(), secondTokens.size());
+        for (int i = 0; i < common; i++) {
+            final int cmp = firstTokens.get(i).name().compareTo(secondTokens.get(i).name());
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(firstTokens.size(), secondTokens.size());
+    };
+
+    /**
+     * Builds the branch of a top level token, as a task to spread the branches over a pool.
+     * */
+    private static final class BranchBuilder extends RecursiveTask<INode> {
+        private final Token token;
+        private final Subscription[] sorted;
+        private final int from;
+        private final int to;
+
+        BranchBuilder(Token token, Subscription[] sorted, int from, int to) {
+            this.token = token;
+            this.sorted = sorted;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected INode compute() {
+            return new INode(buildNode(token, sorted, from, to, 1));
+        }
+    }
+
     INode root;
 
     CTrie() {
@@ -32,60 +76,140 @@ public class CTrie {
     Optional<CNode> lookup(Topic topic) {
         INode inode = this.root;
         Token token = topic.headToken();
-        while (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
+        INode child;
+        while (!topic.isEmpty() && (child = inode.mainNode().findChild(token)) != null) {
             topic = topic.exceptHeadToken();
-            inode = inode.mainNode().childOf(token);
+            inode = child;
             token = topic.headToken();
         }
-        if (inode == null || !topic.isEmpty()) {
+        if (!topic.isEmpty()) {
             return Optional.empty();
         }
         return Optional.of(inode.mainNode());
     }
 
-    enum NavigationAction {
-        MATCH, GODEEP, STOP
+    /**
+     * @return all the subscriptions matching the topic, also more than one per client.
+     * */
+    public Set<Subscription> recursiveMatch(Topic topic) {
+        final Set<Subscription> subscriptions = new HashSet<>();
+        match(topic, subscriptions::add);
+        return subscriptions;
     }
 
-    private NavigationAction evaluate(Topic topic, CNode cnode) {
-        if (Token.MULTI.equals(cnode.getToken())) {
-            return NavigationAction.MATCH;
-        }
+    /**
+     * Walk the tree following the tokens of the topic by their index, passing the matching subscriptions to the
+     * collector, without allocating anything.
+     * */
+    void match(Topic topic, Consumer<Subscription> collector) {
         if (topic.isEmpty()) {
-            return NavigationAction.STOP;
-        }
-        final Token token = topic.headToken();
-        if (!(Token.SINGLE.equals(cnode.getToken()) || cnode.getToken().equals(token) || ROOT.equals(cnode.getToken()))) {
-            return NavigationAction.STOP;
+            return;
         }
-        return NavigationAction.GODEEP;
+        match(topic.getTokens(), 0, this.root.mainNode(), collector);
     }
 
-    public Set<Subscription> recursiveMatch(Topic topic) {
-        return recursiveMatch(topic, this.root);
+    /**
+     * @param level index of the first token not yet matched, the ones before are matched by the cnode path.
+     * */
+    private static void match(List<Token> tokens, int level, CNode cnode, Consumer<Subscription> collector) {
+        if (level == tokens.size()) {
+            cnode.subscriptions.forEach(collector);
+        } else {
+            // only the children that can match the next level are visited, the literal one by its token
+            final Token token = tokens.get(level);
+            matchChild(tokens, level + 1, cnode.literalChild(token), collector);
+            matchChild(tokens, level + 1, cnode.singleWildcardChild(), collector);
+        }
+        // a multi level wildcard matches all the remaining levels, also none
+        final INode multiWildcardChild = cnode.multiWildcardChild();
+        if (multiWildcardChild != null) {
+            final CNode multiWildcardNode = multiWildcardChild.mainNode();
+            if (!(multiWildcardNode instanceof TNode)) {
+                multiWildcardNode.subscriptions.forEach(collector);
+            }
+        }
     }
 
-    private Set<Subscription> recursiveMatch(Topic topic, INode inode) {
-        CNode cnode = inode.mainNode();
+    private static void matchChild(List<Token> tokens, int level, INode child, Consumer<Subscription> collector) {
+        if (child == null) {
+            return;
+        }
+        final CNode cnode = child.mainNode();
         if (cnode instanceof TNode) {
-            return Collections.emptySet();
+            return;
         }
-        NavigationAction action = evaluate(topic, cnode);
-        if (action == NavigationAction.MATCH) {
-            return cnode.subscriptions;
+        match(tokens, level, cnode, collector);
+    }
+
+    /**
+     * Replace the content of the tree with the subscriptions, building it bottom up in one pass instead of
+     * inserting them one by one, each node is created once with all its children and no CAS is involved.
+     * <p>
+     * It must be invoked before the tree is shared with other threads, it's meant to reload the stored
+     * subscriptions at startup.
+     *
+     * @param pool to build the branches of the top level tokens in parallel, null to build all in the caller thread.
+     * */
+    void bulkLoad(List<Subscription> subscriptions, ForkJoinPool pool) {
+        final Subscription[] sorted = subscriptions.toArray(new Subscription[0]);
+        Arrays.sort(sorted, BY_TOKENS);
+
+        final CNode rootNode = new CNode();
+        rootNode.setToken(ROOT);
+        final List<BranchBuilder> branches = new ArrayList<>();
+        int from = 0;
+        while (from < sorted.length) {
+            final int to = endOfGroup(sorted, from, sorted.length, 0);
+            branches.add(new BranchBuilder(tokenAt(sorted[from], 0), sorted, from, to));
+            from = to;
         }
-        if (action == NavigationAction.STOP) {
-            return Collections.emptySet();
+        if (pool != null && branches.size() > 1) {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(branches)));
+            for (BranchBuilder branch : branches) {
+                rootNode.add(branch.join());
+            }
+        } else {
+            for (BranchBuilder branch : branches) {
+                rootNode.add(branch.compute());
+            }
         }
-        Topic remainingTopic = (ROOT.equals(cnode.getToken())) ? topic : topic.exceptHeadToken();
-        Set<Subscription> subscriptions = new HashSet<>();
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.subscriptions);
+        this.root = new INode(rootNode);
+    }
+
+    /**
+     * @param sorted the subscriptions by BY_TOKENS, the ones from included to to excluded share the tokens before
+     *               level and, if level is greater than 0, the token of the node at level - 1.
+     * */
+    private static CNode buildNode(Token token, Subscription[] sorted, int from, int to, int level) {
+        final CNode cnode = new CNode();
+        cnode.setToken(token);
+        int i = from;
+        while (i < to && sorted[i].topicFilter.getTokens().size() == level) {
+            cnode.addSubscription(sorted[i]);
+            i++;
         }
-        for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
+        while (i < to) {
+            final int groupEnd = endOfGroup(sorted, i, to, level);
+            cnode.add(new INode(buildNode(tokenAt(sorted[i], level), sorted, i, groupEnd, level + 1)));
+            i = groupEnd;
         }
-        return subscriptions;
+        return cnode;
+    }
+
+    /**
+     * @return the index after the last subscription that has the same token at level of the one at from.
+     * */
+    private static int endOfGroup(Subscription[] sorted, int from, int to, int level) {
+        final Token token = tokenAt(sorted[from], level);
+        int end = from + 1;
+        while (end < to && tokenAt(sorted[end], level).equals(token)) {
+            end++;
+        }
+        return end;
+    }
+
+    private static Token tokenAt(Subscription subscription, int level) {
+        return subscription.topicFilter.getTokens().get(level);
     }
 
     public void addToTree(Subscription newSubscription) {
@@ -96,10 +220,9 @@ public class CTrie {
     }
 
     private Action insert(Topic topic, final INode inode, Subscription newSubscription) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && inode.mainNode().anyChildrenMatch(token)) {
+        final INode nextInode = topic.isEmpty() ? null : inode.mainNode().findChild(topic.headToken());
+        if (nextInode != null) {
             Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
             return insert(remainingTopic, nextInode, newSubscription);
         } else {
             if (topic.isEmpty()) {
@@ -158,10 +281,9 @@ public class CTrie {
     }
 
     private Action remove(String clientId, Topic topic, INode inode, INode iParent) {
-        Token token = topic.headToken();
-        if (!topic.isEmpty() && (inode.mainNode().anyChildrenMatch(token))) {
+        final INode nextInode = topic.isEmpty() ? null : inode.mainNode().findChild(topic.headToken());
+        if (nextInode != null) {
             Topic remainingTopic = topic.exceptHeadToken();
-            INode nextInode = inode.mainNode().childOf(token);
             return remove(clientId, remainingTopic, nextInode, inode);
         } else {
             final CNode cnode = inode.mainNode();
@@ -171,13 +293,13 @@ public class CTrie {
                 // Consider calling cleanTomb here too
                 return Action.OK;
             }
-            if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
+            if (cnode.containsOnly(clientId) && topic.isEmpty() && !cnode.hasChildren()) {
                 // last client to leave this node, AND there are no downstream children, remove via TNode tomb
                 if (inode == this.root) {
                     return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
                 }
                 TNode tnode = new TNode();
-                return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
+                return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, cnode.getToken(), iParent) : Action.REPEAT;
             } else if (cnode.contains(clientId) && topic.isEmpty()) {
                 CNode updatedCnode = cnode.copy();
                 updatedCnode.removeSubscriptionsFor(clientId);
@@ -198,12 +320,13 @@ public class CTrie {
      *
      *
      * @param inode inode that handle to the tomb node.
+     * @param token the token of the node before it became a tomb.
      * @param iParent inode parent.
      * @return REPEAT if the this methods wasn't successful or OK.
      */
-    private Action cleanTomb(INode inode, INode iParent) {
+    private Action cleanTomb(INode inode, Token token, INode iParent) {
         CNode updatedCnode = iParent.mainNode().copy();
-        updatedCnode.remove(inode);
+        updatedCnode.remove(inode, token);
         return iParent.compareAndSet(iParent.mainNode(), updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
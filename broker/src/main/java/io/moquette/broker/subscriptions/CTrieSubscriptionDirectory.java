@@ -20,18 +20,67 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private static final Logger LOG = LoggerFactory.getLogger(CTrieSubscriptionDirectory.class);
 
+    public static final int DEFAULT_MATCH_CACHE_SIZE = 10_000;
+    public static final int DEFAULT_PARALLEL_LOAD_THRESHOLD = 100_000;
+
     private CTrie ctrie;
+    // filters without wildcards, by topic name, they match only the same topic so need no tree walk
+    private final ConcurrentMap<String, SubscriptionsSet> literalSubscriptions = new ConcurrentHashMap<>();
+    // reverse index, the topic filters subscribed by each client
+    private final ConcurrentMap<String, Set<Topic>> filtersByClient = new ConcurrentHashMap<>();
+    // the $share/{group}/{filter} subscriptions, they are chosen per message so they are never cached
+    private final SharedSubscriptions sharedSubscriptions = new SharedSubscriptions();
     private volatile ISubscriptionsRepository subscriptionsRepository;
+    private final SubscriptionsMatchCache matchCache;
+    private final Function<Topic, Set<Subscription>> qosSharpeningSelector = this::selectQosSharpening;
+    private final int parallelLoadThreshold;
+
+    public CTrieSubscriptionDirectory() {
+        this(DEFAULT_MATCH_CACHE_SIZE);
+    }
+
+    /**
+     * @param matchCacheSize max number of topics whose matching subscriptions are cached, 0 to disable the cache.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize) {
+        this(matchCacheSize, DEFAULT_PARALLEL_LOAD_THRESHOLD);
+    }
+
+    /**
+     * @param matchCacheSize max number of topics whose matching subscriptions are cached, 0 to disable the cache.
+     * @param parallelLoadThreshold min number of stored wildcard subscriptions to build the tree on the common
+     *                              fork join pool at startup, 0 to always build it in the initializing thread.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize, int parallelLoadThreshold) {
+        this.matchCache = matchCacheSize > 0 ? new SubscriptionsMatchCache(matchCacheSize) : null;
+        this.parallelLoadThreshold = parallelLoadThreshold;
+    }
+
+    /**
+     * @param strategy chooses the member of a shared subscription group that receives a message.
+     * @param load the messages in flight to a client, {@link SharedSubscriptionStrategy#DISCONNECTED} if it isn't
+     *             connected, null to consider all the clients connected and idle.
+     * */
+    public void configureSharedSubscriptions(SharedSubscriptionStrategy strategy, ToIntFunction<String> load) {
+        sharedSubscriptions.configure(strategy, load);
+    }
 
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
         LOG.info("Initializing CTrie");
         ctrie = new CTrie();
+        literalSubscriptions.clear();
+        filtersByClient.clear();
 
         LOG.info("Initializing subscriptions store...");
         this.subscriptionsRepository = subscriptionsRepository;
@@ -40,10 +89,27 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             LOG.trace("Reloading all stored subscriptions. SubscriptionTree = {}", dumpTree());
         }
 
+        final long start = System.nanoTime();
+        final List<Subscription> wildcardSubscriptions = new ArrayList<>();
+        int reloaded = 0;
         for (Subscription subscription : this.subscriptionsRepository.listAllSubscriptions()) {
             LOG.debug("Re-subscribing {}", subscription);
-            ctrie.addToTree(subscription);
+            if (SharedSubscriptions.isShared(subscription.topicFilter)) {
+                sharedSubscriptions.add(subscription);
+            } else if (isLiteral(subscription.topicFilter)) {
+                addToLiteralIndex(subscription);
+            } else {
+                wildcardSubscriptions.add(subscription);
+            }
+            addToReverseIndex(subscription);
+            reloaded++;
         }
+        // the tree isn't shared yet, build it in one pass instead of a CAS insert per subscription
+        final boolean parallel = parallelLoadThreshold > 0 && wildcardSubscriptions.size() >= parallelLoadThreshold;
+        ctrie.bulkLoad(wildcardSubscriptions, parallel ? ForkJoinPool.commonPool() : null);
+        LOG.info("Reloaded {} stored subscriptions, {} with wildcards in the tree{}, in {} ms", reloaded,
+                 wildcardSubscriptions.size(), parallel ? " built in parallel" : "",
+                 (System.nanoTime() - start) / 1_000_000);
         if (LOG.isTraceEnabled()) {
             LOG.trace("Stored subscriptions have been reloaded. SubscriptionTree = {}", dumpTree());
         }
@@ -54,16 +120,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      */
     @Override
     public Set<String> listAllSessionIds() {
-        final Set<Subscription> subscriptions = subscriptionsRepository.listAllSubscriptions();
-        final Set<String> clientIds = new HashSet<>(subscriptions.size());
-        for (Subscription subscription : subscriptions) {
-            clientIds.add(subscription.clientId);
-        }
-        return clientIds;
-    }
-
-    Optional<CNode> lookup(Topic topic) {
-        return ctrie.lookup(topic);
+        return new HashSet<>(filtersByClient.keySet());
     }
 
     /**
@@ -77,50 +134,204 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      */
     @Override
     public Set<Subscription> matchWithoutQosSharpening(Topic topic) {
-        return ctrie.recursiveMatch(topic);
+        final Set<Subscription> subscriptions = ctrie.recursiveMatch(topic);
+        final SubscriptionsSet literalMatches = literalSubscriptions.get(topic.toString());
+        if (literalMatches != null) {
+            subscriptions.addAll(literalMatches);
+        }
+        sharedSubscriptions.match(topic, subscriptions::add);
+        return subscriptions;
     }
 
+    /**
+     * @return the set of matching subscriptions, one per client, that must not be modified.
+     */
     @Override
     public Set<Subscription> matchQosSharpening(Topic topic) {
-        final Set<Subscription> subscriptions = matchWithoutQosSharpening(topic);
-
-        Map<String, Subscription> subsGroupedByClient = new HashMap<>();
-        for (Subscription sub : subscriptions) {
-            Subscription existingSub = subsGroupedByClient.get(sub.clientId);
-            // update the selected subscriptions if not present or if has a greater qos
-            if (existingSub == null || existingSub.qosLessThan(sub)) {
-                subsGroupedByClient.put(sub.clientId, sub);
-            }
+        if (matchCache == null) {
+            return selectQosSharpening(topic, true);
+        }
+        final Set<Subscription> cached = matchCache.match(topic, qosSharpeningSelector);
+        if (sharedSubscriptions.isEmpty()) {
+            return cached;
+        }
+        final SubscriptionsCollector collector = new SubscriptionsCollector();
+        cached.forEach(collector);
+        sharedSubscriptions.match(topic, collector);
+        return collected(collector);
+    }
+
+    @Override
+    public void matchQosSharpening(Topic topic, SubscriptionsCollector collector) {
+        if (matchCache != null) {
+            matchCache.match(topic, qosSharpeningSelector).forEach(collector);
+        } else {
+            match(topic, collector);
+        }
+        sharedSubscriptions.match(topic, collector);
+    }
+
+    private void match(Topic topic, SubscriptionsCollector collector) {
+        final SubscriptionsSet literalMatches = literalSubscriptions.get(topic.toString());
+        if (literalMatches != null) {
+            literalMatches.forEach(collector);
         }
-        return new HashSet<>(subsGroupedByClient.values());
+        ctrie.match(topic, collector);
+    }
+
+    private Set<Subscription> selectQosSharpening(Topic topic) {
+        return selectQosSharpening(topic, false);
+    }
+
+    private Set<Subscription> selectQosSharpening(Topic topic, boolean includeShared) {
+        final SubscriptionsCollector collector = new SubscriptionsCollector();
+        match(topic, collector);
+        if (includeShared) {
+            sharedSubscriptions.match(topic, collector);
+        }
+        return collected(collector);
+    }
+
+    private static Set<Subscription> collected(SubscriptionsCollector collector) {
+        final Set<Subscription> selected = new HashSet<>();
+        for (int i = 0; i < collector.size(); i++) {
+            selected.add(collector.get(i));
+        }
+        return Collections.unmodifiableSet(selected);
     }
 
     @Override
     public void add(Subscription newSubscription) {
-        ctrie.addToTree(newSubscription);
+        addToIndexes(newSubscription);
+        subscriptionsChanged(newSubscription.topicFilter);
         subscriptionsRepository.addNewSubscription(newSubscription);
     }
 
+    private void addToIndexes(Subscription newSubscription) {
+        if (SharedSubscriptions.isShared(newSubscription.topicFilter)) {
+            sharedSubscriptions.add(newSubscription);
+        } else if (isLiteral(newSubscription.topicFilter)) {
+            addToLiteralIndex(newSubscription);
+        } else {
+            ctrie.addToTree(newSubscription);
+        }
+        addToReverseIndex(newSubscription);
+    }
+
+    private void addToLiteralIndex(Subscription newSubscription) {
+        literalSubscriptions.merge(newSubscription.topicFilter.toString(),
+                                   SubscriptionsSet.EMPTY.merge(newSubscription),
+                                   (subscriptions, added) -> subscriptions.merge(newSubscription));
+    }
+
+    private void addToReverseIndex(Subscription newSubscription) {
+        filtersByClient.compute(newSubscription.clientId, (clientId, filters) -> {
+            final Set<Topic> updated = filters != null ? filters : ConcurrentHashMap.newKeySet();
+            updated.add(newSubscription.topicFilter);
+            return updated;
+        });
+    }
+
+    private void removeFromIndexes(Topic topic, String clientID) {
+        if (SharedSubscriptions.isShared(topic)) {
+            sharedSubscriptions.remove(topic, clientID);
+        } else if (isLiteral(topic)) {
+            literalSubscriptions.computeIfPresent(topic.toString(), (topicName, subscriptions) -> {
+                final SubscriptionsSet remaining = subscriptions.minus(clientID);
+                return remaining.isEmpty() ? null : remaining;
+            });
+        } else {
+            ctrie.removeFromTree(topic, clientID);
+        }
+    }
+
+    static boolean isLiteral(Topic topicFilter) {
+        final List<Token> tokens = topicFilter.getTokens();
+        return tokens != null && !tokens.contains(Token.SINGLE) && !tokens.contains(Token.MULTI);
+    }
+
+    private void subscriptionsChanged(Topic filter) {
+        // the shared subscriptions are chosen per message and never cached
+        if (matchCache != null && !SharedSubscriptions.isShared(filter)) {
+            matchCache.subscriptionsChanged(filter);
+        }
+    }
+
     /**
-     * Removes subscription from CTrie, adds TNode when the last client unsubscribes, then calls for cleanTomb in a
-     * separate atomic CAS operation.
+     * @return count of matches served by the cache.
+     */
+    public long matchCacheHits() {
+        return matchCache != null ? matchCache.hits() : 0;
+    }
+
+    /**
+     * @return count of matches that walked the tree, 0 if the cache is disabled.
+     */
+    public long matchCacheMisses() {
+        return matchCache != null ? matchCache.misses() : 0;
+    }
+
+    /**
+     * @return count of topics evicted from the full cache.
+     */
+    public long matchCacheEvictions() {
+        return matchCache != null ? matchCache.evictions() : 0;
+    }
+
+    /**
+     * Removes subscription from the shared groups, the literal filters or from CTrie. In the CTrie adds TNode when the
+     * last client unsubscribes, then calls for cleanTomb in a separate atomic CAS operation.
      *
      * @param topic the subscription's topic to remove.
      * @param clientID the Id of client owning the subscription.
      */
     @Override
     public void removeSubscription(Topic topic, String clientID) {
-        ctrie.removeFromTree(topic, clientID);
+        removeFromIndexes(topic, clientID);
+        filtersByClient.computeIfPresent(clientID, (clientId, filters) -> {
+            filters.remove(topic);
+            return filters.isEmpty() ? null : filters;
+        });
+        subscriptionsChanged(topic);
         this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
     }
 
+    /**
+     * Removes all the subscriptions of the client, found through the reverse index instead of the client's session.
+     *
+     * @param clientID the Id of client owning the subscriptions.
+     */
+    @Override
+    public void removeAllSubscriptions(String clientID) {
+        final Set<Topic> filters = filtersByClient.remove(clientID);
+        if (filters == null) {
+            return;
+        }
+        for (Topic filter : filters) {
+            removeFromIndexes(filter, clientID);
+            this.subscriptionsRepository.removeSubscription(filter.toString(), clientID);
+        }
+        if (matchCache != null) {
+            matchCache.subscriptionsChanged(filters);
+        }
+    }
+
     @Override
     public int size() {
-        return ctrie.size();
+        int size = ctrie.size() + sharedSubscriptions.size();
+        for (SubscriptionsSet subscriptions : literalSubscriptions.values()) {
+            size += subscriptions.size();
+        }
+        return size;
     }
 
     @Override
     public String dumpTree() {
-        return ctrie.dumpTree();
+        final StringBuilder dump = new StringBuilder(ctrie.dumpTree());
+        for (Map.Entry<String, SubscriptionsSet> entry : literalSubscriptions.entrySet()) {
+            dump.append(entry.getKey()).append(" ~~").append(entry.getValue()).append("\n");
+        }
+        dump.append(sharedSubscriptions.dump());
+        return dump.toString();
     }
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.function.Consumer;
+
+/**
+ * Immutable map of the literal children of a CNode by token, implemented as a hash array mapped trie like
+ * {@link SubscriptionsSet}.
+ * <p>
+ * Adding or removing a child creates a new map that shares all the untouched branches with the original one,
+ * so the copy on write of a CNode with many children costs O(log n) instead of copying all of them.
+ */
+final class ChildrenMap {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    static final ChildrenMap EMPTY = new ChildrenMap(new BitmapNode(0, new Object[0]), 0);
+
+    private static final class Entry {
+        final Token token;
+        final int hash;
+        final INode child;
+
+        Entry(Token token, int hash, INode child) {
+            this.token = token;
+            this.hash = hash;
+            this.child = child;
+        }
+    }
+
+    /**
+     * A trie node, its slots contain entries or, only for bitmap nodes, other nodes.
+     * */
+    private abstract static class Node {
+        final Object[] slots;
+
+        Node(Object[] slots) {
+            this.slots = slots;
+        }
+
+        abstract INode find(Token token, int hash, int shift);
+
+        abstract Node plus(Entry entry, int shift, boolean[] added);
+
+        /**
+         * @return the node without the token, null if nothing remains.
+         * */
+        abstract Node minus(Token token, int hash, int shift);
+
+        /**
+         * @return the only slot if it's an entry, so that the parent can inline it.
+         * */
+        Entry soleEntry() {
+            if (slots.length == 1 && slots[0] instanceof Entry) {
+                return (Entry) slots[0];
+            }
+            return null;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+        private final int bitmap;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            super(slots);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        INode find(Token token, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final Object slot = slots[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).find(token, hash, shift + BITS);
+            }
+            final Entry entry = (Entry) slot;
+            return entry.token.equals(token) ? entry.child : null;
+        }
+
+        @Override
+        Node plus(Entry entry, int shift, boolean[] added) {
+            final int bit = bit(entry.hash, shift);
+            final int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                final Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = entry;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+            final Object slot = slots[idx];
+            final Object newSlot;
+            if (slot instanceof Node) {
+                newSlot = ((Node) slot).plus(entry, shift + BITS, added);
+            } else {
+                final Entry existing = (Entry) slot;
+                if (existing.token.equals(entry.token)) {
+                    newSlot = entry;
+                } else {
+                    added[0] = true;
+                    newSlot = pair(existing, entry, shift + BITS);
+                }
+            }
+            final Object[] newSlots = slots.clone();
+            newSlots[idx] = newSlot;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        @Override
+        Node minus(Token token, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int idx = index(bit);
+            final Object slot = slots[idx];
+            if (slot instanceof Node) {
+                final Node child = (Node) slot;
+                final Node newChild = child.minus(token, hash, shift + BITS);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    final Entry sole = newChild.soleEntry();
+                    final Object[] newSlots = slots.clone();
+                    newSlots[idx] = sole != null ? sole : newChild;
+                    return new BitmapNode(bitmap, newSlots);
+                }
+            } else if (!((Entry) slot).token.equals(token)) {
+                return this;
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            final Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    /**
+     * Entries of different tokens with the same hash.
+     * */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+
+        CollisionNode(int hash, Object[] slots) {
+            super(slots);
+            this.hash = hash;
+        }
+
+        @Override
+        INode find(Token token, int hash, int shift) {
+            final int idx = indexOf(token);
+            return idx >= 0 ? ((Entry) slots[idx]).child : null;
+        }
+
+        @Override
+        Node plus(Entry entry, int shift, boolean[] added) {
+            if (entry.hash != this.hash) {
+                // same prefix but different hash, push this node one level down
+                return new BitmapNode(bit(this.hash, shift), new Object[] {this}).plus(entry, shift, added);
+            }
+            final int idx = indexOf(entry.token);
+            final Object[] newSlots;
+            if (idx >= 0) {
+                newSlots = slots.clone();
+                newSlots[idx] = entry;
+            } else {
+                added[0] = true;
+                newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, slots.length);
+                newSlots[slots.length] = entry;
+            }
+            return new CollisionNode(hash, newSlots);
+        }
+
+        @Override
+        Node minus(Token token, int hash, int shift) {
+            final int idx = indexOf(token);
+            if (idx < 0) {
+                return this;
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            final Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new CollisionNode(this.hash, newSlots);
+        }
+
+        private int indexOf(Token token) {
+            for (int i = 0; i < slots.length; i++) {
+                if (((Entry) slots[i]).token.equals(token)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private ChildrenMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    private static int hash(Token token) {
+        final int h = token.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static Node pair(Entry first, Entry second, int shift) {
+        if (first.hash == second.hash) {
+            return new CollisionNode(first.hash, new Object[] {first, second});
+        }
+        final int firstBit = bit(first.hash, shift);
+        final int secondBit = bit(second.hash, shift);
+        if (firstBit == secondBit) {
+            return new BitmapNode(firstBit, new Object[] {pair(first, second, shift + BITS)});
+        }
+        // the bit 31 is the sign, compare as unsigned to keep the slots in bit order
+        final Object[] slots = Integer.compareUnsigned(firstBit, secondBit) < 0
+            ? new Object[] {first, second}
+            : new Object[] {second, first};
+        return new BitmapNode(firstBit | secondBit, slots);
+    }
+
+    /**
+     * @return the child of the token or null.
+     * */
+    INode get(Token token) {
+        return root.find(token, hash(token), 0);
+    }
+
+    /**
+     * @return a map with the child, that replaces the one of the same token if present.
+     * */
+    ChildrenMap plus(Token token, INode child) {
+        final boolean[] added = new boolean[1];
+        final Node newRoot = root.plus(new Entry(token, hash(token), child), 0, added);
+        return new ChildrenMap(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without the child of the token.
+     * */
+    ChildrenMap minus(Token token) {
+        final Node newRoot = root.minus(token, hash(token), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY : new ChildrenMap(newRoot, size - 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void forEach(Consumer<INode> action) {
+        forEach(root, action);
+    }
+
+    private static void forEach(Node node, Consumer<INode> action) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Node) {
+                forEach((Node) slot, action);
+            } else {
+                action.accept(((Entry) slot).child);
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayDeque;
+
+/**
+ * Dense int handles of the clients, so that the structures on the routing path can index arrays by client
+ * instead of hashing and comparing strings. A session takes a handle when it's created and gives it back
+ * when it's removed, each broker has its own handles.
+ * <p>
+ * A released handle can be assigned to another client. So a handle identifies a client only together with its
+ * client id: who looks up something by handle must check that the client id matches, and fall back to the
+ * client id otherwise.
+ */
+public final class ClientHandles {
+
+    public static final int NO_HANDLE = -1;
+
+    private final ArrayDeque<Integer> released = new ArrayDeque<>();
+    private int next;
+    private volatile int size;
+
+    /**
+     * @return a handle not assigned to any other client.
+     * */
+    public synchronized int acquire() {
+        size++;
+        return released.isEmpty() ? next++ : released.poll();
+    }
+
+    /**
+     * Make the handle available to other clients.
+     * */
+    public synchronized void release(int handle) {
+        if (handle == NO_HANDLE) {
+            return;
+        }
+        released.add(handle);
+        size--;
+    }
+
+    /**
+     * @return the number of clients that have a handle.
+     * */
+    public int size() {
+        return size;
+    }
+}
@@ -30,10 +30,18 @@ public interface ISubscriptionsDirectory {
 
     Set<Subscription> matchQosSharpening(Topic topic);
 
+    /**
+     * Like {@link #matchQosSharpening(Topic)} but passes the matching subscriptions to the collector, without
+     * allocating a result.
+     * */
+    void matchQosSharpening(Topic topic, SubscriptionsCollector collector);
+
     void add(Subscription newSubscription);
 
     void removeSubscription(Topic topic, String clientID);
 
+    void removeAllSubscriptions(String clientID);
+
     int size();
 
     String dumpTree();
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.Locale;
+import java.util.function.ToIntFunction;
+
+/**
+ * The built in strategies, they all skip the members that aren't connected unless none is, then the message is
+ * queued to the member they would have chosen.
+ */
+public enum SharedSubscriptionStrategies implements SharedSubscriptionStrategy {
+
+    /**
+     * Each member in turn.
+     * */
+    ROUND_ROBIN {
+        @Override
+        public Subscription select(Topic topic, Subscription[] members, long sequence, ToIntFunction<String> load) {
+            return firstConnected(members, (int) (sequence % members.length), load);
+        }
+    },
+
+    /**
+     * The same member for all the messages of a topic, as long as the group doesn't change, so they are
+     * received in order.
+     * */
+    TOPIC_HASH {
+        @Override
+        public Subscription select(Topic topic, Subscription[] members, long sequence, ToIntFunction<String> load) {
+            return firstConnected(members, Math.floorMod(topic.hashCode(), members.length), load);
+        }
+    },
+
+    /**
+     * The member with the fewest messages in flight, the ties are resolved in turn.
+     * */
+    LEAST_INFLIGHT {
+        @Override
+        public Subscription select(Topic topic, Subscription[] members, long sequence, ToIntFunction<String> load) {
+            final int start = (int) (sequence % members.length);
+            int selected = start;
+            int minLoad = DISCONNECTED;
+            for (int i = 0; i < members.length && minLoad > 0; i++) {
+                final int idx = (start + i) % members.length;
+                final int memberLoad = load.applyAsInt(members[idx].getClientId());
+                if (memberLoad < minLoad) {
+                    minLoad = memberLoad;
+                    selected = idx;
+                }
+            }
+            return members[selected];
+        }
+    };
+
+    private static Subscription firstConnected(Subscription[] members, int start, ToIntFunction<String> load) {
+        for (int i = 0; i < members.length; i++) {
+            final Subscription member = members[(start + i) % members.length];
+            if (load.applyAsInt(member.getClientId()) != DISCONNECTED) {
+                return member;
+            }
+        }
+        return members[start];
+    }
+
+    /**
+     * @param name the name of the strategy, in any case.
+     * */
+    public static SharedSubscriptionStrategies fromConfig(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Unknown shared subscriptions strategy: " + name, ex);
+        }
+    }
+}
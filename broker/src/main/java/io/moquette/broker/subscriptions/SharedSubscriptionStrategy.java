@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Chooses the member of a shared subscription group that receives a message published on one of its topics.
+ * It's called on the publishing thread, concurrently for different messages.
+ */
+public interface SharedSubscriptionStrategy {
+
+    /**
+     * Load of a member whose client isn't connected.
+     * */
+    int DISCONNECTED = Integer.MAX_VALUE;
+
+    /**
+     * @param topic the topic of the message.
+     * @param members the subscriptions of the group's members, at least one, must not be modified.
+     * @param sequence the number of messages the group received before this one.
+     * @param load the messages in flight to a member's client, {@link #DISCONNECTED} if it isn't connected.
+     * @return the member that receives the message.
+     * */
+    Subscription select(Topic topic, Subscription[] members, long sequence, ToIntFunction<String> load);
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * The shared subscriptions, <code>$share/{group}/{filter}</code>, every message that matches the filter is
+ * delivered to only one member of the group.
+ * <p>
+ * Each group is a single entry of its own tree, under the filter and with the whole shared filter as client id, so
+ * a match finds a group once whatever the number of its members. The members are kept by the group, a member that
+ * leaves is removed from it directly.
+ */
+final class SharedSubscriptions {
+
+    private static final String SHARE_PREFIX = "$share";
+    private static final ToIntFunction<String> ALL_CONNECTED = clientId -> 0;
+
+    /**
+     * The members of a group, the array is replaced on change and never modified, so matches read it without
+     * locking. Changes are serialized by the groups map.
+     * */
+    private static final class SharedGroup {
+        final Topic filter;
+        final AtomicLong sequence = new AtomicLong();
+        volatile Subscription[] members = new Subscription[0];
+
+        SharedGroup(Topic filter) {
+            this.filter = filter;
+        }
+
+        void put(Subscription member) {
+            final int idx = indexOf(member.getClientId());
+            final Subscription[] updated;
+            if (idx >= 0) {
+                updated = members.clone();
+                updated[idx] = member;
+            } else {
+                updated = Arrays.copyOf(members, members.length + 1);
+                updated[members.length] = member;
+            }
+            members = updated;
+        }
+
+        void remove(String clientId) {
+            final int idx = indexOf(clientId);
+            if (idx < 0) {
+                return;
+            }
+            final Subscription[] updated = new Subscription[members.length - 1];
+            System.arraycopy(members, 0, updated, 0, idx);
+            System.arraycopy(members, idx + 1, updated, idx, members.length - idx - 1);
+            members = updated;
+        }
+
+        private int indexOf(String clientId) {
+            for (int i = 0; i < members.length; i++) {
+                if (members[i].getClientId().equals(clientId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final CTrie groupsTree = new CTrie();
+    // shared filter -> group
+    private final ConcurrentMap<String, SharedGroup> groups = new ConcurrentHashMap<>();
+    private volatile SharedSubscriptionStrategy strategy = SharedSubscriptionStrategies.ROUND_ROBIN;
+    private volatile ToIntFunction<String> load = ALL_CONNECTED;
+
+    /**
+     * @return true if the filter is <code>$share/{group}/{filter}</code> with a valid group name.
+     * */
+    static boolean isShared(Topic topicFilter) {
+        final List<Token> tokens = topicFilter.getTokens();
+        if (tokens == null || tokens.size() < 3 || !SHARE_PREFIX.equals(tokens.get(0).name())) {
+            return false;
+        }
+        final Token group = tokens.get(1);
+        return group != Token.EMPTY && group != Token.SINGLE && group != Token.MULTI;
+    }
+
+    void configure(SharedSubscriptionStrategy strategy, ToIntFunction<String> load) {
+        this.strategy = strategy;
+        this.load = load != null ? load : ALL_CONNECTED;
+    }
+
+    void add(Subscription member) {
+        groups.compute(member.topicFilter.toString(), (sharedFilter, group) -> {
+            if (group == null) {
+                final List<Token> tokens = member.topicFilter.getTokens();
+                group = new SharedGroup(new Topic(new ArrayList<>(tokens.subList(2, tokens.size()))));
+                groupsTree.addToTree(new Subscription(sharedFilter, group.filter, MqttQoS.AT_MOST_ONCE));
+            }
+            group.put(member);
+            return group;
+        });
+    }
+
+    void remove(Topic sharedFilter, String clientId) {
+        groups.computeIfPresent(sharedFilter.toString(), (key, group) -> {
+            group.remove(clientId);
+            if (group.members.length > 0) {
+                return group;
+            }
+            groupsTree.removeFromTree(group.filter, key);
+            return null;
+        });
+    }
+
+    /**
+     * Pass to the collector the member chosen by each group whose filter matches the topic.
+     * */
+    void match(Topic topic, Consumer<Subscription> collector) {
+        if (groups.isEmpty()) {
+            return;
+        }
+        groupsTree.match(topic, entry -> {
+            final SharedGroup group = groups.get(entry.getClientId());
+            if (group == null) {
+                return;
+            }
+            final Subscription[] members = group.members;
+            if (members.length > 0) {
+                collector.accept(strategy.select(topic, members, group.sequence.getAndIncrement(), load));
+            }
+        });
+    }
+
+    boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    int size() {
+        int size = 0;
+        for (SharedGroup group : groups.values()) {
+            size += group.members.length;
+        }
+        return size;
+    }
+
+    String dump() {
+        final StringBuilder dump = new StringBuilder();
+        for (Map.Entry<String, SharedGroup> entry : groups.entrySet()) {
+            dump.append(entry.getKey()).append(" ~~").append(Arrays.toString(entry.getValue().members)).append("\n");
+        }
+        return dump.toString();
+    }
+}
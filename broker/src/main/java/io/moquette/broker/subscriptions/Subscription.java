@@ -29,23 +29,60 @@ public final class Subscription implements Serializable, Comparable<Subscription
     private final MqttQoS requestedQos; // max QoS acceptable
     final String clientId;
     final Topic topicFilter;
+    // handles are assigned to the sessions of a running broker, a deserialized subscription has none
+    final transient int clientHandle;
 
     public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos) {
+        this(clientId, topicFilter, requestedQos, ClientHandles.NO_HANDLE);
+    }
+
+    /**
+     * @param clientHandle the handle of the client's session, see {@link ClientHandles}.
+     * */
+    public Subscription(String clientId, Topic topicFilter, MqttQoS requestedQos, int clientHandle) {
         this.requestedQos = requestedQos;
         this.clientId = clientId;
         this.topicFilter = topicFilter;
+        this.clientHandle = clientHandle;
+    }
+
+    private Subscription(String clientId, Topic topicFilter) {
+        this.requestedQos = null;
+        this.clientId = clientId;
+        this.topicFilter = topicFilter;
+        this.clientHandle = ClientHandles.NO_HANDLE;
+    }
+
+    /**
+     * @return a subscription usable only to find the equal ones, without QoS and client handle.
+     * */
+    public static Subscription identity(String clientId, Topic topicFilter) {
+        return new Subscription(clientId, topicFilter);
     }
 
     public Subscription(Subscription orig) {
         this.requestedQos = orig.requestedQos;
         this.clientId = orig.clientId;
         this.topicFilter = orig.topicFilter;
+        this.clientHandle = orig.clientHandle;
+    }
+
+    private Object readResolve() {
+        return new Subscription(clientId, topicFilter, requestedQos);
     }
 
     public String getClientId() {
         return clientId;
     }
 
+    /**
+     * @return the handle the client's session had when the subscription was created, {@link ClientHandles#NO_HANDLE}
+     * if the subscription wasn't created by a session.
+     * */
+    public int getClientHandle() {
+        return clientHandle;
+    }
+
     public MqttQoS getRequestedQos() {
         return requestedQos;
     }
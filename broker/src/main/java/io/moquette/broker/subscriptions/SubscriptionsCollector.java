@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Reusable accumulator of the subscriptions matching a topic, that keeps one subscription per client, the one with
+ * the greater QoS.
+ * <p>
+ * Clients are found by their handle in an array, without hashing or comparing their ids. The array is never
+ * cleared, an entry counts only if it points to a collected subscription of the same client. The subscriptions
+ * without a handle, like the ones reloaded from the store, are found by client id: from the first of them on, all
+ * the collected subscriptions are indexed also by client id, so a client matched with and without a handle is
+ * collected once.
+ * It's not thread safe, it's meant to be owned by a thread and cleared after every match, once it has grown to the
+ * number of matches of the topics it serves it doesn't allocate anymore.
+ */
+public final class SubscriptionsCollector implements Consumer<Subscription> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // index into the collected subscriptions by client handle
+    private int[] positionByHandle = new int[INITIAL_CAPACITY];
+    private Subscription[] collected = new Subscription[INITIAL_CAPACITY];
+    private int size;
+    // open addressing index into the collected subscriptions by client id, position + 1 and 0 for a free slot,
+    // kept only once a subscription without handle is matched
+    private int[] positionById = new int[INITIAL_CAPACITY * 2];
+    private boolean indexedById;
+
+    @Override
+    public void accept(Subscription sub) {
+        final int handle = sub.clientHandle;
+        if (handle == ClientHandles.NO_HANDLE) {
+            acceptById(sub);
+            return;
+        }
+        if (handle < positionByHandle.length) {
+            final int idx = positionByHandle[handle];
+            if (idx < size) {
+                final Subscription existing = collected[idx];
+                if (existing.clientHandle == handle) {
+                    if (existing.clientId.equals(sub.clientId)) {
+                        keepGreaterQos(idx, sub);
+                    } else {
+                        // the handle was released and assigned to another client while matching
+                        acceptById(sub);
+                    }
+                    return;
+                }
+            }
+        } else {
+            positionByHandle = Arrays.copyOf(positionByHandle, Math.max(handle + 1, positionByHandle.length * 2));
+        }
+        if (indexedById) {
+            // the client could have been collected by a subscription without handle
+            final int idx = positionOf(sub.clientId);
+            if (idx >= 0) {
+                keepGreaterQos(idx, sub);
+                return;
+            }
+        }
+        positionByHandle[handle] = size;
+        append(sub);
+    }
+
+    private void acceptById(Subscription sub) {
+        if (!indexedById) {
+            indexedById = true;
+            for (int i = 0; i < size; i++) {
+                index(i);
+            }
+        }
+        final int idx = positionOf(sub.clientId);
+        if (idx >= 0) {
+            keepGreaterQos(idx, sub);
+        } else {
+            append(sub);
+        }
+    }
+
+    private int positionOf(String clientId) {
+        final int mask = positionById.length - 1;
+        for (int slot = spread(clientId.hashCode()) & mask; positionById[slot] != 0; slot = (slot + 1) & mask) {
+            final int idx = positionById[slot] - 1;
+            if (collected[idx].clientId.equals(clientId)) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    private void index(int idx) {
+        // keep the index at most half full
+        if ((idx + 1) * 2 > positionById.length) {
+            positionById = new int[positionById.length * 2];
+            for (int i = 0; i < idx; i++) {
+                insert(i);
+            }
+        }
+        insert(idx);
+    }
+
+    private void insert(int idx) {
+        final int mask = positionById.length - 1;
+        int slot = spread(collected[idx].clientId.hashCode()) & mask;
+        while (positionById[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        positionById[slot] = idx + 1;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private void keepGreaterQos(int idx, Subscription sub) {
+        if (collected[idx].qosLessThan(sub)) {
+            collected[idx] = sub;
+        }
+    }
+
+    private void append(Subscription sub) {
+        if (size == collected.length) {
+            collected = Arrays.copyOf(collected, collected.length * 2);
+        }
+        collected[size] = sub;
+        if (indexedById) {
+            index(size);
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param index of the subscription, from 0 to size() excluded, in order of collection.
+     * */
+    public Subscription get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return collected[index];
+    }
+
+    /**
+     * Forget all the collected subscriptions, keeping the allocated space.
+     * */
+    public void clear() {
+        Arrays.fill(collected, 0, size, null);
+        size = 0;
+        if (indexedById) {
+            Arrays.fill(positionById, 0);
+            indexedById = false;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of the subscriptions matching a topic name.
+ * <p>
+ * The topics are grouped by their first level, a change to the subscriptions invalidates only the cached topics
+ * that its filter matches: one topic for a filter without wildcards, the topics of the same first level for a
+ * filter that starts with a literal token, all of them only for a filter that starts with a wildcard.
+ * <p>
+ * Reading a cached result doesn't take any lock. When the cache is full the eviction gives a second chance to the
+ * topics matched since the previous sweep, so it approximates a least recently used policy.
+ */
+final class SubscriptionsMatchCache {
+
+    private static final class Entry {
+        final Topic topic;
+        final Set<Subscription> subscriptions;
+        // set by the hits and cleared by the eviction sweep, a lost update only changes what is evicted
+        boolean referenced;
+
+        Entry(Topic topic, Set<Subscription> subscriptions) {
+            this.topic = topic;
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    private final int capacity;
+    // evict a few more topics than needed, so that a sweep isn't triggered by each miss of a full cache
+    private final int evictionTarget;
+    private final ConcurrentMap<Token, ConcurrentMap<String, Entry>> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    // bumped by every change, a result computed while a change happens isn't kept
+    private final AtomicLong changes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SubscriptionsMatchCache(int capacity) {
+        this.capacity = capacity;
+        this.evictionTarget = capacity - capacity / 16;
+    }
+
+    /**
+     * @param matcher computes the result on a miss, the returned set must not be modified afterwards.
+     * */
+    Set<Subscription> match(Topic topic, Function<Topic, Set<Subscription>> matcher) {
+        final Token head = topic.headToken();
+        if (head == null) {
+            return matcher.apply(topic);
+        }
+        final String topicName = topic.toString();
+        // read before matching, a change that happens during the match makes the result stale
+        final long changesBefore = changes.get();
+        final ConcurrentMap<String, Entry> group = groups.get(head);
+        final Entry cached = group != null ? group.get(topicName) : null;
+        if (cached != null) {
+            if (!cached.referenced) {
+                cached.referenced = true;
+            }
+            hits.increment();
+            return cached.subscriptions;
+        }
+        misses.increment();
+        final Set<Subscription> subscriptions = matcher.apply(topic);
+        final Entry entry = new Entry(topic, subscriptions);
+        // the group is created and dropped inside the compute, so an entry is never put in a discarded group
+        groups.compute(head, (token, entries) -> {
+            final ConcurrentMap<String, Entry> updated = entries != null ? entries : new ConcurrentHashMap<>();
+            if (updated.put(topicName, entry) == null) {
+                size.incrementAndGet();
+            }
+            return updated;
+        });
+        if (changes.get() != changesBefore) {
+            // the change could have invalidated the group before the put
+            remove(groups.get(head), topicName, entry);
+        } else if (size.get() > capacity) {
+            evict();
+        }
+        return subscriptions;
+    }
+
+    /**
+     * Invalidate the cached results of the topics matched by the filter, must be invoked after the change to the
+     * subscriptions tree completed.
+     * */
+    void subscriptionsChanged(Topic filter) {
+        changes.incrementAndGet();
+        invalidate(filter);
+    }
+
+    /**
+     * Invalidate the cached results of the topics matched by any of the filters.
+     * */
+    void subscriptionsChanged(Collection<Topic> filters) {
+        changes.incrementAndGet();
+        for (Topic filter : filters) {
+            invalidate(filter);
+        }
+    }
+
+    private void invalidate(Topic filter) {
+        final Token head = filter.headToken();
+        if (head == null) {
+            return;
+        }
+        if (Token.MULTI.equals(head) || Token.SINGLE.equals(head)) {
+            for (ConcurrentMap<String, Entry> group : groups.values()) {
+                invalidate(group, filter);
+            }
+            return;
+        }
+        final ConcurrentMap<String, Entry> group = groups.get(head);
+        if (group == null) {
+            return;
+        }
+        if (CTrieSubscriptionDirectory.isLiteral(filter)) {
+            final Entry entry = group.get(filter.toString());
+            if (entry != null) {
+                remove(group, filter.toString(), entry);
+            }
+        } else {
+            invalidate(group, filter);
+        }
+    }
+
+    private void invalidate(ConcurrentMap<String, Entry> group, Topic filter) {
+        for (Entry entry : group.values()) {
+            if (entry.topic.match(filter)) {
+                remove(group, entry.topic.toString(), entry);
+            }
+        }
+    }
+
+    private boolean remove(ConcurrentMap<String, Entry> group, String topicName, Entry entry) {
+        if (group != null && group.remove(topicName, entry)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sweep the groups, evicting the topics not matched since the previous sweep, until the cache is under the
+     * target size. Only one thread sweeps at a time, the others go on and let the cache exceed its capacity.
+     * */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            // the first pass clears the references, the second one evicts also the topics still referenced
+            for (int pass = 0; pass < 2 && size.get() > evictionTarget; pass++) {
+                for (Token head : groups.keySet()) {
+                    final ConcurrentMap<String, Entry> group = groups.get(head);
+                    if (group == null) {
+                        continue;
+                    }
+                    for (Entry entry : group.values()) {
+                        if (size.get() <= evictionTarget) {
+                            break;
+                        }
+                        if (entry.referenced && pass == 0) {
+                            entry.referenced = false;
+                        } else if (remove(group, entry.topic.toString(), entry)) {
+                            evictions.increment();
+                        }
+                    }
+                    groups.computeIfPresent(head, (token, entries) -> entries.isEmpty() ? null : entries);
+                    if (size.get() <= evictionTarget) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * Immutable set of the subscriptions of a CNode, at most one per client id, implemented as a hash array mapped
+ * trie.
+ * <p>
+ * Adding or removing a subscription creates a new set that shares all the untouched branches with the original
+ * one, so the copy on write of a CNode costs O(log n) instead of copying all its subscriptions.
+ * The set can't be modified through the Set interface.
+ */
+final class SubscriptionsSet extends AbstractSet<Subscription> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // 7 levels of bitmap nodes consume the 32 bits of the hash, plus a collision level
+    private static final int MAX_DEPTH = 8;
+
+    static final SubscriptionsSet EMPTY = new SubscriptionsSet(new BitmapNode(0, new Object[0]), 0);
+
+    /**
+     * A trie node, its slots contain subscriptions or, only for bitmap nodes, other nodes.
+     * */
+    private abstract static class Node {
+        final Object[] slots;
+
+        Node(Object[] slots) {
+            this.slots = slots;
+        }
+
+        abstract Subscription find(String clientId, int hash, int shift);
+
+        abstract Node plus(Subscription sub, int hash, int shift, boolean[] added);
+
+        /**
+         * @return the node without the client, null if nothing remains.
+         * */
+        abstract Node minus(String clientId, int hash, int shift);
+
+        /**
+         * @return the only slot if it's a subscription, so that the parent can inline it.
+         * */
+        Subscription soleSubscription() {
+            if (slots.length == 1 && !(slots[0] instanceof Node)) {
+                return (Subscription) slots[0];
+            }
+            return null;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+        private final int bitmap;
+
+        BitmapNode(int bitmap, Object[] slots) {
+            super(slots);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Subscription find(String clientId, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final Object slot = slots[index(bit)];
+            if (slot instanceof Node) {
+                return ((Node) slot).find(clientId, hash, shift + BITS);
+            }
+            final Subscription sub = (Subscription) slot;
+            return sub.clientId.equals(clientId) ? sub : null;
+        }
+
+        @Override
+        Node plus(Subscription sub, int hash, int shift, boolean[] added) {
+            final int bit = bit(hash, shift);
+            final int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                final Object[] newSlots = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, newSlots, 0, idx);
+                newSlots[idx] = sub;
+                System.arraycopy(slots, idx, newSlots, idx + 1, slots.length - idx);
+                return new BitmapNode(bitmap | bit, newSlots);
+            }
+            final Object slot = slots[idx];
+            final Object newSlot;
+            if (slot instanceof Node) {
+                final Node child = (Node) slot;
+                newSlot = child.plus(sub, hash, shift + BITS, added);
+                if (newSlot == child) {
+                    return this;
+                }
+            } else {
+                final Subscription existing = (Subscription) slot;
+                if (existing == sub) {
+                    return this;
+                }
+                if (existing.clientId.equals(sub.clientId)) {
+                    newSlot = sub;
+                } else {
+                    added[0] = true;
+                    newSlot = pair(existing, hash(existing.clientId), sub, hash, shift + BITS);
+                }
+            }
+            final Object[] newSlots = slots.clone();
+            newSlots[idx] = newSlot;
+            return new BitmapNode(bitmap, newSlots);
+        }
+
+        @Override
+        Node minus(String clientId, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int idx = index(bit);
+            final Object slot = slots[idx];
+            if (slot instanceof Node) {
+                final Node child = (Node) slot;
+                final Node newChild = child.minus(clientId, hash, shift + BITS);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    final Subscription sole = newChild.soleSubscription();
+                    final Object[] newSlots = slots.clone();
+                    newSlots[idx] = sole != null ? sole : newChild;
+                    return new BitmapNode(bitmap, newSlots);
+                }
+            } else if (!((Subscription) slot).clientId.equals(clientId)) {
+                return this;
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            final Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new BitmapNode(bitmap & ~bit, newSlots);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    /**
+     * Subscriptions of different clients with the same hash.
+     * */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+
+        CollisionNode(int hash, Object[] slots) {
+            super(slots);
+            this.hash = hash;
+        }
+
+        @Override
+        Subscription find(String clientId, int hash, int shift) {
+            final int idx = indexOf(clientId);
+            return idx >= 0 ? (Subscription) slots[idx] : null;
+        }
+
+        @Override
+        Node plus(Subscription sub, int hash, int shift, boolean[] added) {
+            if (hash != this.hash) {
+                // same prefix but different hash, push this node one level down
+                return new BitmapNode(bit(this.hash, shift), new Object[] {this}).plus(sub, hash, shift, added);
+            }
+            final int idx = indexOf(sub.clientId);
+            if (idx >= 0) {
+                if (slots[idx] == sub) {
+                    return this;
+                }
+                final Object[] newSlots = slots.clone();
+                newSlots[idx] = sub;
+                return new CollisionNode(hash, newSlots);
+            }
+            added[0] = true;
+            final Object[] newSlots = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, newSlots, 0, slots.length);
+            newSlots[slots.length] = sub;
+            return new CollisionNode(hash, newSlots);
+        }
+
+        @Override
+        Node minus(String clientId, int hash, int shift) {
+            final int idx = indexOf(clientId);
+            if (idx < 0) {
+                return this;
+            }
+            if (slots.length == 1) {
+                return null;
+            }
+            final Object[] newSlots = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, newSlots, 0, idx);
+            System.arraycopy(slots, idx + 1, newSlots, idx, slots.length - idx - 1);
+            return new CollisionNode(this.hash, newSlots);
+        }
+
+        private int indexOf(String clientId) {
+            for (int i = 0; i < slots.length; i++) {
+                if (((Subscription) slots[i]).clientId.equals(clientId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final Node root;
+    private final int size;
+
+    private SubscriptionsSet(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    private static int hash(String clientId) {
+        final int h = clientId.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static Node pair(Subscription first, int firstHash, Subscription second, int secondHash, int shift) {
+        if (firstHash == secondHash) {
+            return new CollisionNode(firstHash, new Object[] {first, second});
+        }
+        final int firstBit = bit(firstHash, shift);
+        final int secondBit = bit(secondHash, shift);
+        if (firstBit == secondBit) {
+            return new BitmapNode(firstBit, new Object[] {pair(first, firstHash, second, secondHash, shift + BITS)});
+        }
+        // the bit 31 is the sign, compare as unsigned to keep the slots in bit order
+        final Object[] slots = Integer.compareUnsigned(firstBit, secondBit) < 0
+            ? new Object[] {first, second}
+            : new Object[] {second, first};
+        return new BitmapNode(firstBit | secondBit, slots);
+    }
+
+    /**
+     * @return the subscription of the client or null.
+     * */
+    Subscription get(String clientId) {
+        return root.find(clientId, hash(clientId), 0);
+    }
+
+    /**
+     * @return a set with the subscription, that replaces the one of the same client if present.
+     * */
+    SubscriptionsSet plus(Subscription sub) {
+        final boolean[] added = new boolean[1];
+        final Node newRoot = root.plus(sub, hash(sub.clientId), 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new SubscriptionsSet(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return a set with the subscription, unless the client has already the same one with a greater or equal QoS.
+     * */
+    SubscriptionsSet merge(Subscription newSubscription) {
+        final Subscription existing = get(newSubscription.clientId);
+        if (existing != null && existing.equals(newSubscription)
+            && existing.getRequestedQos().value() >= newSubscription.getRequestedQos().value()) {
+            return this;
+        }
+        return plus(new Subscription(newSubscription));
+    }
+
+    /**
+     * @return a set without the subscription of the client.
+     * */
+    SubscriptionsSet minus(String clientId) {
+        final Node newRoot = root.minus(clientId, hash(clientId), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? EMPTY : new SubscriptionsSet(newRoot, size - 1);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Subscription)) {
+            return false;
+        }
+        final Subscription sub = (Subscription) o;
+        return sub.clientId != null && sub.equals(get(sub.clientId));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<Subscription> iterator() {
+        return new TrieIterator(root);
+    }
+
+    /**
+     * Visit the subscriptions without allocating an iterator.
+     * */
+    @Override
+    public void forEach(Consumer<? super Subscription> action) {
+        forEach(root, action);
+    }
+
+    private static void forEach(Node node, Consumer<? super Subscription> action) {
+        for (Object slot : node.slots) {
+            if (slot instanceof Node) {
+                forEach((Node) slot, action);
+            } else {
+                action.accept((Subscription) slot);
+            }
+        }
+    }
+
+    private static final class TrieIterator implements Iterator<Subscription> {
+        private final Object[][] path = new Object[MAX_DEPTH][];
+        private final int[] indexes = new int[MAX_DEPTH];
+        private int depth;
+        private Subscription next;
+
+        TrieIterator(Node root) {
+            path[0] = root.slots;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                final Object[] slots = path[depth];
+                if (indexes[depth] == slots.length) {
+                    depth--;
+                    continue;
+                }
+                final Object slot = slots[indexes[depth]++];
+                if (slot instanceof Node) {
+                    depth++;
+                    path[depth] = ((Node) slot).slots;
+                    indexes[depth] = 0;
+                } else {
+                    next = (Subscription) slot;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Subscription next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Subscription current = next;
+            advance();
+            return current;
+        }
+    }
+}
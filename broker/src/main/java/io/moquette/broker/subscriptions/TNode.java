@@ -66,4 +66,9 @@ class TNode extends CNode {
     boolean anyChildrenMatch(Token token) {
         return false;
     }
+
+    @Override
+    INode findChild(Token token) {
+        return null;
+    }
 }
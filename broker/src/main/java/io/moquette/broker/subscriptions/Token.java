@@ -24,10 +24,30 @@ public class Token {
     static final Token EMPTY = new Token("");
     static final Token MULTI = new Token("#");
     static final Token SINGLE = new Token("+");
+
+    private static final WeakInterner<Token> INTERNED =
+        new WeakInterner<>(WeakInterner.DEFAULT_CAPACITY, Token::new, Token::name);
+
     final String name;
+    private final int hash;
 
     protected Token(String s) {
         name = s;
+        hash = 29 * 7 + (s != null ? s.hashCode() : 0);
+    }
+
+    /**
+     * @return the shared token with the name, the same instance as long as it's in use.
+     * */
+    static Token intern(String name) {
+        return INTERNED.intern(name);
+    }
+
+    /**
+     * @return the table of the shared levels, one for the whole JVM so it's shared by all the brokers it runs.
+     * */
+    public static WeakInterner<Token> interned() {
+        return INTERNED;
     }
 
     protected String name() {
@@ -48,13 +68,15 @@ public class Token {
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 29 * hash + (this.name != null ? this.name.hashCode() : 0);
         return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
+        // interned tokens are the same instance, the comparison of the names is for the others
+        if (this == obj) {
+            return true;
+        }
         if (obj == null) {
             return false;
         }
@@ -33,6 +33,9 @@ public class Topic implements Serializable, Comparable<Topic> {
 
     private static final long serialVersionUID = 2438799283749822L;
 
+    private static final WeakInterner<Topic> INTERNED =
+        new WeakInterner<>(WeakInterner.DEFAULT_CAPACITY, Topic::parsed, Topic::toString);
+
     private final String topic;
 
     private transient List<Token> tokens;
@@ -49,6 +52,31 @@ public class Topic implements Serializable, Comparable<Topic> {
         return new Topic(s);
     }
 
+    /**
+     * Factory method for the topics of the messages, repeated topics are parsed once and the same instance is
+     * returned while it's in use.
+     *
+     * @param s the topic string (es "/a/b").
+     * @return the shared Topic instance, already parsed.
+     * */
+    public static Topic intern(String s) {
+        return INTERNED.intern(s);
+    }
+
+    /**
+     * @return the table of the shared topics, one for the whole JVM so it's shared by all the brokers it runs.
+     * */
+    public static WeakInterner<Topic> interned() {
+        return INTERNED;
+    }
+
+    private static Topic parsed(String s) {
+        final Topic topic = new Topic(s);
+        // parse before sharing it
+        topic.getTokens();
+        return topic;
+    }
+
     public Topic(String topic) {
         this.topic = topic;
     }
@@ -117,7 +145,7 @@ public class Topic implements Serializable, Comparable<Topic> {
             } else if (s.contains("+")) {
                 throw new ParseException("Bad format of topic, invalid subtopic name: " + s, i);
             } else {
-                res.add(new Token(s));
+                res.add(Token.intern(s));
             }
         }
 
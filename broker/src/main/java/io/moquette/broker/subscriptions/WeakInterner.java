@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded table of weakly referenced instances by their name, so that the same name resolves to the same
+ * instance while it's in use somewhere.
+ * <p>
+ * The table is set associative: a name can be kept in any of the few slots of its set, so a lookup probes at most
+ * {@link #WAYS} slots. A new name goes in a free slot of the set, or in one whose instance has been collected,
+ * and replaces a random instance of the set only when all of them are alive. The table never grows over its
+ * capacity, and the instances nobody else references can be collected at any time.
+ * Instances must be completely built by the factory, they are shared among threads without further
+ * synchronization.
+ */
+public final class WeakInterner<T> {
+
+    public static final int DEFAULT_CAPACITY = 16_384;
+
+    static final int WAYS = 4;
+
+    // rough size of a WeakReference and of a String with its array, to estimate the memory retained by the table
+    private static final int REFERENCE_BYTES = 48;
+    private static final int STRING_BYTES = 40;
+
+    private static final class Table<T> extends AtomicReferenceArray<WeakReference<T>> {
+        final int setMask;
+
+        Table(int size) {
+            super(size);
+            this.setMask = size / WAYS - 1;
+        }
+    }
+
+    private volatile Table<T> slots;
+    private final Function<String, T> factory;
+    private final Function<T, String> nameOf;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+
+    /**
+     * @param capacity number of slots, rounded up to a power of 2 and to at least a set.
+     * */
+    WeakInterner(int capacity, Function<String, T> factory, Function<T, String> nameOf) {
+        this.factory = factory;
+        this.nameOf = nameOf;
+        this.slots = new Table<>(slotsFor(capacity));
+    }
+
+    private static int slotsFor(int capacity) {
+        return Math.max(WAYS, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+    }
+
+    /**
+     * Replace the table with an empty one of the new capacity, if it differs from the current one. The instances
+     * interned before are still valid, but a name interned again resolves to a new instance.
+     *
+     * @param capacity number of slots, rounded up to a power of 2 and to at least a set.
+     * @return true if the table has been replaced.
+     * */
+    public boolean resize(int capacity) {
+        final int size = slotsFor(capacity);
+        if (size == slots.length()) {
+            // keep the instances in use, the table is shared by all the brokers of the JVM
+            return false;
+        }
+        this.slots = new Table<>(size);
+        return true;
+    }
+
+    T intern(String name) {
+        final Table<T> table = slots;
+        final int h = name.hashCode();
+        final int base = ((h ^ (h >>> 16)) & table.setMask) * WAYS;
+        int free = -1;
+        for (int i = base; i < base + WAYS; i++) {
+            final WeakReference<T> ref = table.get(i);
+            final T existing = ref != null ? ref.get() : null;
+            if (existing == null) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (name.equals(nameOf.apply(existing))) {
+                hits.increment();
+                return existing;
+            }
+        }
+        misses.increment();
+        final T created = factory.apply(name);
+        if (free < 0) {
+            free = base + ThreadLocalRandom.current().nextInt(WAYS);
+            replaced.increment();
+        }
+        // a concurrent intern of the same name can create another instance, they are equal by name
+        table.set(free, new WeakReference<>(created));
+        return created;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return count of live instances dropped from the table to make room for a new name of the same set.
+     * */
+    public long replaced() {
+        return replaced.sum();
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * @return the number of interned instances not yet collected, it scans the whole table.
+     * */
+    public int size() {
+        final Table<T> table = slots;
+        int live = 0;
+        for (int i = 0; i < table.length(); i++) {
+            final WeakReference<T> ref = table.get(i);
+            if (ref != null && ref.get() != null) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    /**
+     * @return an estimate of the heap retained by the table, its slots and the references with the names they
+     * hold, it scans the whole table.
+     * */
+    public long retainedBytes() {
+        final Table<T> table = slots;
+        long bytes = 16L + 8L * table.length();
+        for (int i = 0; i < table.length(); i++) {
+            final WeakReference<T> ref = table.get(i);
+            if (ref == null) {
+                continue;
+            }
+            bytes += REFERENCE_BYTES;
+            final T existing = ref.get();
+            if (existing != null) {
+                bytes += STRING_BYTES + nameOf.apply(existing).length();
+            }
+        }
+        return bytes;
+    }
+}
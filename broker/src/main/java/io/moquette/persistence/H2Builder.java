@@ -9,6 +9,7 @@ import org.h2.mvstore.MVStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -18,13 +19,18 @@ public class H2Builder {
 
     private final String storePath;
     private final int autosaveInterval; // in seconds
+    private final int subscriptionsSnapshotInterval; // in seconds
     private final ScheduledExecutorService scheduler;
     private MVStore mvStore;
+    private H2SubscriptionsRepository subscriptionsRepository;
 
     public H2Builder(IConfig props, ScheduledExecutorService scheduler) {
         this.storePath = props.getProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
         final String autosaveProp = props.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30");
         this.autosaveInterval = Integer.parseInt(autosaveProp);
+        this.subscriptionsSnapshotInterval = props.intProp(
+            BrokerConstants.SUBSCRIPTIONS_SNAPSHOT_INTERVAL_PROPERTY_NAME,
+            BrokerConstants.DEFAULT_SUBSCRIPTIONS_SNAPSHOT_INTERVAL);
         this.scheduler = scheduler;
     }
 
@@ -47,11 +53,26 @@ public class H2Builder {
         return this;
     }
 
+    @SuppressWarnings("FutureReturnValueIgnored")
     public ISubscriptionsRepository subscriptionsRepository() {
-        return new H2SubscriptionsRepository(mvStore);
+        if (subscriptionsRepository != null) {
+            return subscriptionsRepository;
+        }
+        if (subscriptionsSnapshotInterval <= 0) {
+            subscriptionsRepository = new H2SubscriptionsRepository(mvStore);
+            return subscriptionsRepository;
+        }
+        subscriptionsRepository = new H2SubscriptionsRepository(mvStore, Paths.get(storePath + ".subscriptions"));
+        LOG.trace("Scheduling subscriptions snapshot task");
+        scheduler.scheduleWithFixedDelay(subscriptionsRepository::writeSnapshot,
+            subscriptionsSnapshotInterval, subscriptionsSnapshotInterval, TimeUnit.SECONDS);
+        return subscriptionsRepository;
     }
 
     public void closeStore() {
+        if (subscriptionsRepository != null) {
+            subscriptionsRepository.writeSnapshot();
+        }
         mvStore.close();
     }
 
@@ -2,26 +2,44 @@ package io.moquette.persistence;
 
 import io.moquette.broker.IRetainedRepository;
 import io.moquette.broker.RetainedMessage;
+import io.moquette.broker.RetainedTopicsIndex;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 public class H2RetainedRepository implements IRetainedRepository {
 
+    private static final Logger LOG = LoggerFactory.getLogger(H2RetainedRepository.class);
+
     private final MVMap<Topic, RetainedMessage> queueMap;
+    // the topics of the map, rebuilt at open. A topic is added after it's put in the map and removed before it's
+    // removed from the map, so that concurrent changes of the same topic can leave an extra topic in the index
+    // but never miss one
+    private final RetainedTopicsIndex index = new RetainedTopicsIndex();
 
     public H2RetainedRepository(MVStore mvStore) {
         this.queueMap = mvStore.openMap("retained_store");
+        final long start = System.nanoTime();
+        int indexed = 0;
+        final Iterator<Topic> topics = queueMap.keyIterator(null);
+        while (topics.hasNext()) {
+            index.add(topics.next());
+            indexed++;
+        }
+        LOG.info("Indexed {} retained topics in {} ms", indexed, (System.nanoTime() - start) / 1_000_000);
     }
 
     @Override
     public void cleanRetained(Topic topic) {
+        index.remove(topic);
         queueMap.remove(topic);
     }
 
@@ -32,6 +50,7 @@ public class H2RetainedRepository implements IRetainedRepository {
         payload.getBytes(0, rawPayload);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload);
         queueMap.put(topic, toStore);
+        index.add(topic);
     }
 
     @Override
@@ -41,15 +60,40 @@ public class H2RetainedRepository implements IRetainedRepository {
 
     @Override
     public List<RetainedMessage> retainedOnTopic(String topic) {
-        final Topic searchTopic = new Topic(topic);
         final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : queueMap.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
+        for (Topic matched : retainedTopics(topic)) {
+            final RetainedMessage retained = queueMap.get(matched);
+            if (retained != null) {
+                matchingMessages.add(retained);
             }
         }
-
         return matchingMessages;
     }
+
+    /**
+     * @return the matching topics of the index, that could include a topic cleaned concurrently.
+     * */
+    @Override
+    public List<Topic> retainedTopics(String topicFilter) {
+        final Topic filter = new Topic(topicFilter);
+        final List<Topic> matchingTopics = new ArrayList<>();
+        if (RetainedTopicsIndex.isLiteral(filter)) {
+            if (queueMap.containsKey(filter)) {
+                matchingTopics.add(filter);
+            }
+            return matchingTopics;
+        }
+        index.match(filter, matchingTopics::add);
+        return matchingTopics;
+    }
+
+    @Override
+    public RetainedMessage retainedOn(Topic topic) {
+        return queueMap.get(topic);
+    }
+
+    @Override
+    public void close() {
+        // the payloads are on the heap and the store is closed by its builder
+    }
 }
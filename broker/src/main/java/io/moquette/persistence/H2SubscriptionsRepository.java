@@ -8,23 +8,64 @@ import org.h2.mvstore.MVStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class H2SubscriptionsRepository implements ISubscriptionsRepository {
 
     private static final Logger LOG = LoggerFactory.getLogger(H2SubscriptionsRepository.class);
     private static final String SUBSCRIPTIONS_MAP = "subscriptions";
+    // sequence of the change -> key of the changed subscription, only the changes after the snapshot matter
+    private static final String JOURNAL_MAP = "subscriptions_journal";
+    private static final String SNAPSHOT_MAP = "subscriptions_snapshot";
+    private static final String SNAPSHOT_SEQUENCE = "sequence";
 
     private MVMap<String, Subscription> subscriptions;
+    private final MVMap<Long, String> journal;
+    private final MVMap<String, Long> snapshotInfo;
+    private final Path snapshotPath;
+    private final AtomicLong sequence;
 
     H2SubscriptionsRepository(MVStore mvStore) {
+        this(mvStore, null);
+    }
+
+    /**
+     * @param snapshotPath the file where to write the snapshot of the subscriptions, null to not use snapshots.
+     * */
+    H2SubscriptionsRepository(MVStore mvStore, Path snapshotPath) {
         this.subscriptions = mvStore.openMap(SUBSCRIPTIONS_MAP);
+        this.snapshotPath = snapshotPath;
+        if (snapshotPath != null) {
+            this.journal = mvStore.openMap(JOURNAL_MAP);
+            this.snapshotInfo = mvStore.openMap(SNAPSHOT_MAP);
+            final Long lastChange = journal.lastKey();
+            final long snapshotSequence = snapshotInfo.getOrDefault(SNAPSHOT_SEQUENCE, 0L);
+            this.sequence = new AtomicLong(Math.max(lastChange != null ? lastChange : 0L, snapshotSequence));
+        } else {
+            this.journal = null;
+            this.snapshotInfo = null;
+            this.sequence = null;
+        }
     }
 
     @Override
     public Set<Subscription> listAllSubscriptions() {
         LOG.debug("Retrieving existing subscriptions");
+        if (snapshotPath != null) {
+            final Set<Subscription> results = loadSnapshot();
+            if (results != null) {
+                LOG.debug("Loaded {} subscriptions from snapshot", results.size());
+                return results;
+            }
+        }
 
         Set<Subscription> results = new HashSet<>();
         Cursor<String, Subscription> mapCursor = subscriptions.cursor(null);
@@ -36,13 +77,92 @@ public class H2SubscriptionsRepository implements ISubscriptionsRepository {
         return results;
     }
 
+    /**
+     * @return the subscriptions of the snapshot with the journaled changes replayed on top, null if there's no
+     * snapshot or it isn't the last one recorded in the store.
+     * */
+    private Set<Subscription> loadSnapshot() {
+        final Long recordedSequence = snapshotInfo.get(SNAPSHOT_SEQUENCE);
+        if (recordedSequence == null) {
+            return null;
+        }
+        final SubscriptionsSnapshot snapshot = SubscriptionsSnapshot.read(snapshotPath);
+        if (snapshot == null || snapshot.sequence != recordedSequence) {
+            LOG.warn("Subscriptions snapshot {} doesn't match the store, loading all the stored subscriptions",
+                     snapshotPath);
+            return null;
+        }
+        final Map<String, Subscription> byKey = new HashMap<>(snapshot.subscriptions.size() * 4 / 3 + 1);
+        for (Subscription subscription : snapshot.subscriptions) {
+            byKey.put(key(subscription.getTopicFilter().toString(), subscription.getClientId()), subscription);
+        }
+        // the journal records which subscriptions changed, the map has their current state
+        int replayed = 0;
+        final Cursor<Long, String> changes = journal.cursor(recordedSequence + 1);
+        while (changes.hasNext()) {
+            changes.next();
+            final String key = changes.getValue();
+            final Subscription current = subscriptions.get(key);
+            if (current != null) {
+                byKey.put(key, current);
+            } else {
+                byKey.remove(key);
+            }
+            replayed++;
+        }
+        LOG.info("Loaded {} subscriptions from snapshot {}, replayed {} later changes", snapshot.subscriptions.size(),
+                 snapshotPath, replayed);
+        return new HashSet<>(byKey.values());
+    }
+
     @Override
     public void addNewSubscription(Subscription subscription) {
-        subscriptions.put(subscription.getTopicFilter() + "-" + subscription.getClientId(), subscription);
+        final String key = key(subscription.getTopicFilter().toString(), subscription.getClientId());
+        subscriptions.put(key, subscription);
+        journal(key);
     }
 
     @Override
     public void removeSubscription(String topicFilter, String clientID) {
-        subscriptions.remove(topicFilter + "-" + clientID);
+        final String key = key(topicFilter, clientID);
+        subscriptions.remove(key);
+        journal(key);
+    }
+
+    private static String key(String topicFilter, String clientID) {
+        return topicFilter + "-" + clientID;
+    }
+
+    private void journal(String key) {
+        // the change is numbered after it's applied, so a snapshot that contains a sequence contains its change
+        if (journal != null) {
+            journal.put(sequence.incrementAndGet(), key);
+        }
+    }
+
+    /**
+     * Write all the subscriptions to the snapshot file and forget the journaled changes it contains. The snapshot
+     * is used at the next start only if the store commits the record of it.
+     * */
+    synchronized void writeSnapshot() {
+        if (snapshotPath == null) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final long snapshotSequence = sequence.get();
+        final List<Subscription> all = new ArrayList<>(subscriptions.values());
+        try {
+            SubscriptionsSnapshot.write(snapshotPath, snapshotSequence, all);
+        } catch (IOException ex) {
+            LOG.warn("Can't write the subscriptions snapshot {}", snapshotPath, ex);
+            return;
+        }
+        snapshotInfo.put(SNAPSHOT_SEQUENCE, snapshotSequence);
+        Long oldest;
+        while ((oldest = journal.firstKey()) != null && oldest <= snapshotSequence) {
+            journal.remove(oldest);
+        }
+        LOG.info("Written snapshot of {} subscriptions to {} in {} ms", all.size(), snapshotPath,
+                 (System.nanoTime() - start) / 1_000_000);
     }
 }
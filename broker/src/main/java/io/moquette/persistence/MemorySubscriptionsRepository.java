@@ -17,6 +17,7 @@ package io.moquette.persistence;
 
 import io.moquette.broker.ISubscriptionsRepository;
 import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
 
 import java.util.Collections;
 import java.util.Set;
@@ -38,9 +39,7 @@ public class MemorySubscriptionsRepository implements ISubscriptionsRepository {
 
     @Override
     public void removeSubscription(String topic, String clientID) {
-        subscriptions.stream()
-            .filter(s -> s.getTopicFilter().toString().equals(topic) && s.getClientId().equals(clientID))
-            .findFirst()
-            .ifPresent(subscriptions::remove);
+        // ordered by client id and topic filter, the QoS doesn't matter to find it
+        subscriptions.remove(Subscription.identity(clientID, new Topic(topic)));
     }
 }
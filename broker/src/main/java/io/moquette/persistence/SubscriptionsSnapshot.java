@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary image of all the stored subscriptions, tagged with the sequence of the last change it contains.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ * int magic, int format version, long sequence
+ * int clients count, clients ids as unsigned short length + UTF-8 bytes
+ * int filters count, topic filters as unsigned short length + UTF-8 bytes
+ * int subscriptions count, subscriptions as int filter index shifted by 2 plus QoS, int client index
+ * long CRC32 of all the preceding bytes
+ * </pre>
+ * Clients and filters are written once and referenced by index. The file is written aside and moved over the
+ * previous one, it's memory mapped to be read.
+ */
+final class SubscriptionsSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionsSnapshot.class);
+
+    private static final int MAGIC = 0x4D515353;
+    private static final int FORMAT_VERSION = 1;
+    private static final int QOS_BITS = 2;
+    private static final int QOS_MASK = (1 << QOS_BITS) - 1;
+
+    final long sequence;
+    final List<Subscription> subscriptions;
+
+    private SubscriptionsSnapshot(long sequence, List<Subscription> subscriptions) {
+        this.sequence = sequence;
+        this.subscriptions = subscriptions;
+    }
+
+    static void write(Path path, long sequence, Collection<Subscription> subscriptions) throws IOException {
+        final Map<String, Integer> clients = new HashMap<>();
+        final List<String> clientsByIndex = new ArrayList<>();
+        final Map<String, Integer> filters = new HashMap<>();
+        final List<String> filtersByIndex = new ArrayList<>();
+        final int[] entries = new int[subscriptions.size() * 2];
+        int i = 0;
+        for (Subscription subscription : subscriptions) {
+            final int filter = indexOf(subscription.getTopicFilter().toString(), filters, filtersByIndex);
+            entries[i++] = filter << QOS_BITS | subscription.getRequestedQos().value();
+            entries[i++] = indexOf(subscription.getClientId(), clients, clientsByIndex);
+        }
+
+        final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        final CRC32 checksum = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                 new BufferedOutputStream(file, 64 * 1024), checksum))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(sequence);
+            writeStrings(out, clientsByIndex);
+            writeStrings(out, filtersByIndex);
+            out.writeInt(subscriptions.size());
+            for (int entry : entries) {
+                out.writeInt(entry);
+            }
+            out.writeLong(checksum.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int indexOf(String value, Map<String, Integer> indexes, List<String> byIndex) {
+        return indexes.computeIfAbsent(value, added -> {
+            byIndex.add(added);
+            return byIndex.size() - 1;
+        });
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            final byte[] raw = value.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(raw.length);
+            out.write(raw);
+        }
+    }
+
+    /**
+     * @return the snapshot or null if the file is missing, truncated or corrupted.
+     * */
+    static SubscriptionsSnapshot read(Path path) {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException ex) {
+            LOG.warn("Can't read the subscriptions snapshot {}", path, ex);
+            return null;
+        }
+    }
+
+    private static SubscriptionsSnapshot read(ByteBuffer buffer) {
+        if (buffer.remaining() < Long.BYTES * 2 + Integer.BYTES * 2) {
+            throw new IllegalArgumentException("Truncated snapshot of " + buffer.remaining() + " bytes");
+        }
+        final int checksumPosition = buffer.limit() - Long.BYTES;
+        final CRC32 checksum = new CRC32();
+        final ByteBuffer content = buffer.duplicate();
+        content.limit(checksumPosition);
+        checksum.update(content);
+        if (checksum.getValue() != buffer.getLong(checksumPosition)) {
+            throw new IllegalArgumentException("Snapshot checksum doesn't match");
+        }
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Not a subscriptions snapshot or unsupported format version");
+        }
+        final long sequence = buffer.getLong();
+        final String[] clients = readStrings(buffer);
+        final Topic[] filters = readFilters(readStrings(buffer));
+        final int count = buffer.getInt();
+        final List<Subscription> subscriptions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int filterAndQos = buffer.getInt();
+            final String clientId = clients[buffer.getInt()];
+            final MqttQoS qos = MqttQoS.valueOf(filterAndQos & QOS_MASK);
+            subscriptions.add(new Subscription(clientId, filters[filterAndQos >>> QOS_BITS], qos));
+        }
+        return new SubscriptionsSnapshot(sequence, subscriptions);
+    }
+
+    private static String[] readStrings(ByteBuffer buffer) {
+        final String[] values = new String[buffer.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            final byte[] raw = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(raw);
+            values[i] = new String(raw, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    private static Topic[] readFilters(String[] names) {
+        final Topic[] filters = new Topic[names.length];
+        for (int i = 0; i < names.length; i++) {
+            // the tokens are interned, filters sharing levels share their tokens
+            filters[i] = Topic.intern(names[i]);
+        }
+        return filters;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FlushConsolidatorTest {
+
+    private static final BrokerConfiguration CONFIG = new BrokerConfiguration(true, true, false, false);
+
+    private FlushConsolidator sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new FlushConsolidator(null, Long.MAX_VALUE);
+    }
+
+    private static MQTTConnection connection(AtomicInteger flushes) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(ChannelHandlerContext ctx) {
+                flushes.incrementAndGet();
+                ctx.flush();
+            }
+        });
+        return new MQTTConnection(channel, CONFIG, null, null, null);
+    }
+
+    @Test
+    public void testConnectionWrittenManyTimesIsFlushedOnce() {
+        final AtomicInteger flushes = new AtomicInteger();
+        final MQTTConnection connection = connection(flushes);
+
+        sut.add(connection);
+        sut.add(connection);
+        sut.add(connection);
+        assertEquals(0, flushes.get());
+
+        assertEquals(1, sut.flushAll());
+        assertEquals(1, flushes.get());
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void testEachWrittenConnectionIsFlushed() {
+        final AtomicInteger flushesA = new AtomicInteger();
+        final AtomicInteger flushesB = new AtomicInteger();
+        sut.add(connection(flushesA));
+        sut.add(connection(flushesB));
+
+        assertEquals(2, sut.flushAll());
+        assertEquals(1, flushesA.get());
+        assertEquals(1, flushesB.get());
+
+        assertEquals(0, sut.flushAll(), "Nothing written since the last flush");
+    }
+
+    @Test
+    public void testConnectionWrittenAfterTheFlushIsFlushedAgain() {
+        final AtomicInteger flushes = new AtomicInteger();
+        final MQTTConnection connection = connection(flushes);
+        sut.add(connection);
+        sut.flushAll();
+
+        sut.add(connection);
+        assertEquals(1, sut.flushAll());
+        assertEquals(2, flushes.get());
+    }
+
+    @Test
+    public void testConnectionWrittenByTwoLoopsIsFlushedByEach() {
+        final AtomicInteger flushes = new AtomicInteger();
+        final MQTTConnection connection = connection(flushes);
+        final FlushConsolidator other = new FlushConsolidator(null, Long.MAX_VALUE);
+        sut.add(connection);
+        other.add(connection);
+
+        assertEquals(1, sut.flushAll());
+        assertEquals(1, other.flushAll());
+        assertEquals(2, flushes.get());
+    }
+
+    @Test
+    public void testLongBatchIsFlushedOnceTheMaxDelayExpires() throws InterruptedException {
+        sut = new FlushConsolidator(null, 1);
+        final AtomicInteger flushesA = new AtomicInteger();
+        final AtomicInteger flushesB = new AtomicInteger();
+        sut.add(connection(flushesA));
+        Thread.sleep(2);
+
+        sut.add(connection(flushesB));
+        assertEquals(1, flushesA.get());
+        assertEquals(1, flushesB.get());
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void testConnectionWrittenAgainIsFlushedOnceTheMaxDelayExpires() throws InterruptedException {
+        sut = new FlushConsolidator(null, TimeUnit.MILLISECONDS.toNanos(1));
+        final AtomicInteger flushes = new AtomicInteger();
+        final MQTTConnection connection = connection(flushes);
+        sut.add(connection);
+        Thread.sleep(2);
+
+        sut.add(connection);
+        assertEquals(1, flushes.get(), "A batch writing a single connection must not hold it over the max delay");
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void testFirstConnectionIsFlushedWithoutDelayWhenThereIsNoMaxDelay() {
+        sut = new FlushConsolidator(null, 0);
+        final AtomicInteger flushes = new AtomicInteger();
+
+        sut.add(connection(flushes));
+
+        assertEquals(1, flushes.get());
+        assertTrue(sut.isEmpty());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InflightWindowLimitTest {
+
+    @Test
+    public void testFixedWindowNeverChanges() {
+        final InflightWindowLimit sut = InflightWindowLimit.fixed(10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, sut.acknowledged(true));
+        }
+        assertEquals(0, sut.retransmitted());
+        assertEquals(10, sut.size());
+    }
+
+    @Test
+    public void testGrowsByOneEveryWindowOfPromptAcks() {
+        final InflightWindowLimit sut = new InflightWindowLimit(4, 1, 100, true);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, sut.acknowledged(true));
+        }
+        assertEquals(1, sut.acknowledged(true));
+        assertEquals(5, sut.size());
+
+        // late acknowledges don't count
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, sut.acknowledged(false));
+        }
+        assertEquals(5, sut.size());
+    }
+
+    @Test
+    public void testDoesNotGrowOverMax() {
+        final InflightWindowLimit sut = new InflightWindowLimit(2, 1, 3, true);
+        for (int i = 0; i < 100; i++) {
+            sut.acknowledged(true);
+        }
+        assertEquals(3, sut.size());
+    }
+
+    @Test
+    public void testHalvesOnRetransmissionDownToMin() {
+        final InflightWindowLimit sut = new InflightWindowLimit(20, 4, 100, true);
+
+        assertEquals(-10, sut.retransmitted());
+        assertEquals(10, sut.size());
+        assertEquals(-5, sut.retransmitted());
+        assertEquals(-1, sut.retransmitted());
+        assertEquals(4, sut.size());
+        assertEquals(0, sut.retransmitted());
+    }
+
+    @Test
+    public void testPolicyAppliesTheSizeOfTheClient() {
+        final Map<String, Integer> sizeByClient = InflightWindowPolicy.parseSizeByClient("backend:500, mobile:2");
+        final InflightWindowPolicy policy = new InflightWindowPolicy(10, 4, 100, true, sizeByClient);
+
+        assertEquals(500, policy.limitFor("backend").size());
+        assertEquals(2, policy.limitFor("mobile").size());
+        assertEquals(10, policy.limitFor("other").size());
+
+        final InflightWindowLimit backend = policy.limitFor("backend");
+        backend.retransmitted();
+        assertEquals(250, backend.size());
+    }
+
+    @Test
+    public void testLimitsUpdateTheCountersOfTheirRegistryUntilClosed() {
+        final InflightWindowPolicy policy = new InflightWindowPolicy(10, 4, 100, true, Collections.emptyMap());
+        final InflightWindowLimit.Counters counters = new InflightWindowLimit.Counters();
+        final InflightWindowLimit first = policy.limitFor("first", counters);
+        final InflightWindowLimit second = policy.limitFor("second", counters);
+
+        first.retransmitted();
+        assertEquals(7.5, counters.averageSize());
+        assertEquals(1, counters.shrunk());
+
+        first.close();
+        first.close();
+        assertEquals(1, counters.open());
+        assertEquals(10.0, counters.averageSize());
+        second.close();
+        assertEquals(0, counters.open());
+        assertEquals(0, new InflightWindowLimit.Counters().shrunk(), "Counters aren't shared");
+    }
+
+    @Test
+    public void testParseSizeByClient() {
+        assertEquals(Collections.emptyMap(), InflightWindowPolicy.parseSizeByClient(null));
+        assertEquals(Collections.singletonMap("host:port", 7), InflightWindowPolicy.parseSizeByClient("host:port:7"));
+        assertThrows(IllegalArgumentException.class, () -> InflightWindowPolicy.parseSizeByClient("noSize"));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InflightWindowTest {
+
+    @Test
+    public void testPutGetAndRemove() {
+        final InflightWindow<String> window = new InflightWindow<>(4);
+
+        assertNull(window.put(1, "one"));
+        assertNull(window.put(2, "two"));
+
+        assertEquals("one", window.get(1));
+        assertTrue(window.contains(2));
+        assertFalse(window.contains(3));
+        assertEquals(2, window.size());
+
+        assertEquals("one", window.remove(1));
+        assertNull(window.get(1));
+        assertNull(window.remove(1));
+        assertEquals(1, window.size());
+    }
+
+    @Test
+    public void testPutOfAnIdInFlightReplacesIt() {
+        final InflightWindow<String> window = new InflightWindow<>(4);
+        window.put(7, "first");
+
+        assertEquals("first", window.put(7, "second"));
+        assertEquals("second", window.get(7));
+        assertEquals(1, window.size());
+    }
+
+    @Test
+    public void testRemoveKeepsReachableTheIdsThatCollided() {
+        final InflightWindow<String> window = new InflightWindow<>(4);
+        // 8 slots, all these ids have the same home slot
+        window.put(1, "a");
+        window.put(9, "b");
+        window.put(17, "c");
+        window.put(2, "d");
+
+        window.remove(9);
+
+        assertEquals("a", window.get(1));
+        assertEquals("c", window.get(17));
+        assertEquals("d", window.get(2));
+        assertFalse(window.contains(9));
+
+        window.remove(1);
+        assertEquals("c", window.get(17));
+        assertEquals("d", window.get(2));
+    }
+
+    @Test
+    public void testGrowsBeyondTheExpectedSize() {
+        final InflightWindow<Integer> window = new InflightWindow<>(2);
+        for (int id = 65_500; id <= 65_535; id++) {
+            window.put(id, id);
+        }
+        for (int id = 1; id <= 100; id++) {
+            window.put(id, id);
+        }
+
+        assertEquals(136, window.size());
+        for (int id = 65_500; id <= 65_535; id++) {
+            assertEquals(id, window.get(id));
+        }
+        for (int id = 1; id <= 100; id++) {
+            assertEquals(id, window.get(id));
+        }
+    }
+
+    @Test
+    public void testForEachAndClear() {
+        final InflightWindow<String> window = new InflightWindow<>(4);
+        window.put(3, "c");
+        window.put(5, "e");
+
+        final List<String> visited = new ArrayList<>();
+        window.forEach(visited::add);
+        assertEquals(2, visited.size());
+        assertTrue(visited.contains("c") && visited.contains("e"));
+
+        window.clear();
+        assertTrue(window.isEmpty());
+        assertNull(window.get(3));
+    }
+
+    @Test
+    public void testIdZeroIsRejected() {
+        final InflightWindow<String> window = new InflightWindow<>(4);
+        assertThrows(IllegalArgumentException.class, () -> window.put(0, "zero"));
+    }
+
+    @Test
+    public void testExpiredDeadlinesAreMovedForward() {
+        final InflightWindow<String> window = new InflightWindow<>(4);
+        window.put(1, "expired");
+        window.put(2, "pending");
+        window.put(3, "without deadline");
+        window.setDeadline(1, 100);
+        window.setDeadline(2, 300);
+
+        final List<String> expired = new ArrayList<>();
+        assertEquals(1, window.forEachExpired(200, 1_200, (packetId, value) -> expired.add(value)));
+
+        assertEquals(1, expired.size());
+        assertEquals("expired", expired.get(0));
+        assertEquals(300, window.earliestDeadline());
+
+        window.remove(2);
+        assertEquals(1_200, window.earliestDeadline());
+    }
+}
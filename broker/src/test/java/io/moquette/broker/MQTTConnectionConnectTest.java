@@ -331,4 +331,19 @@ public class MQTTConnectionConnectTest {
             assertTrue(nextPacketId <= 65_535, "Packet ID must be <= 65_535");
         }
     }
+
+    @Test
+    public void testMessageIdGenerationSkipsTheIdsInFlight() {
+        int first = sut.nextPacketId();
+        int skipped = first == 65_535 ? 1 : first + 1;
+
+        int next = sut.nextPacketId(packetId -> packetId == skipped);
+
+        assertEquals(skipped == 65_535 ? 1 : skipped + 1, next, "The id still in flight must be skipped");
+    }
+
+    @Test
+    public void testMessageIdGenerationFailsWhenAllIdsAreInFlight() {
+        assertThrows(IllegalStateException.class, () -> sut.nextPacketId(packetId -> true));
+    }
 }
@@ -17,12 +17,21 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -114,4 +123,154 @@ public class MemoryRetainedRepositoryTest {
         assertEquals(1, retainedMessages.size());
         assertEquals("foo/bar/baz", retainedMessages.get(0).getTopic().toString());
     }
+
+    @Test
+    public void testRetainedOnTopicWalksOnlyTheMatchingLevelsAndForgetsCleanedTopics() {
+        MemoryRetainedRepository repository = new MemoryRetainedRepository();
+        for (String topic : new String[] {"site/42/pump/status", "site/42/valve/status", "site/42/valve/level",
+                                          "site/43/pump/status", "site/42", "/site"}) {
+            repository.retain(new Topic(topic), MqttMessageBuilders
+                .publish()
+                .qos(MqttQoS.AT_MOST_ONCE)
+                .topicName(topic)
+                .retained(true)
+                .payload(Unpooled.buffer(0))
+                .build());
+        }
+
+        assertEquals(Arrays.asList("site/42/pump/status", "site/42/valve/status"),
+                     topicsOf(repository.retainedOnTopic("site/42/+/status")));
+        assertEquals(Arrays.asList("site/42", "site/42/pump/status", "site/42/valve/level", "site/42/valve/status"),
+                     topicsOf(repository.retainedOnTopic("site/42/#")));
+        assertEquals(Collections.singletonList("/site"), topicsOf(repository.retainedOnTopic("+/site")));
+        assertEquals(6, repository.retainedOnTopic("#").size());
+
+        repository.cleanRetained(new Topic("site/42/valve/status"));
+        repository.cleanRetained(new Topic("site/42/valve/level"));
+        repository.cleanRetained(new Topic("site/42"));
+
+        assertEquals(Arrays.asList("site/42/pump/status", "site/43/pump/status"),
+                     topicsOf(repository.retainedOnTopic("site/+/+/status")));
+        assertTrue(repository.retainedOnTopic("site/42").isEmpty());
+        assertTrue(repository.retainedOnTopic("site/42/valve/#").isEmpty());
+        assertEquals(Arrays.asList(new Topic("site/42/pump/status"), new Topic("site/43/pump/status")),
+                     repository.retainedTopics("site/+/+/status"));
+        assertTrue(repository.retainedTopics("site/42").isEmpty());
+        assertNull(repository.retainedOn(new Topic("site/42")));
+    }
+
+    @Test
+    public void testPayloadsAreKeptOffHeapWithinTheBudget() {
+        MemoryRetainedRepository repository = new MemoryRetainedRepository(new RetainedPayloads(10));
+        retain(repository, "sensors/a", "first!");
+        retain(repository, "sensors/b", "second");
+
+        RetainedMessage first = repository.retainedOnTopic("sensors/a").get(0);
+        RetainedMessage second = repository.retainedOnTopic("sensors/b").get(0);
+        assertTrue(first.isOffHeap());
+        assertFalse(second.isOffHeap(), "over the budget is kept on the heap");
+        assertEquals("first!", new String(first.getPayload(), StandardCharsets.UTF_8));
+        assertEquals("second", new String(second.getPayload(), StandardCharsets.UTF_8));
+
+        // a delivery in progress keeps its buffer when the message is replaced
+        ByteBuf delivering = first.payloadBuffer();
+        retain(repository, "sensors/a", "third!");
+        assertNull(first.payloadBuffer(), "the replaced payload is released");
+        assertEquals("first!", delivering.toString(StandardCharsets.UTF_8));
+        delivering.release();
+        assertEquals(0, delivering.refCnt());
+
+        // the budget released by the replaced payload is used again
+        retain(repository, "sensors/c", "fourth");
+        RetainedMessage fourth = repository.retainedOnTopic("sensors/c").get(0);
+        assertTrue(fourth.isOffHeap());
+        repository.cleanRetained(new Topic("sensors/c"));
+        assertNull(fourth.payloadBuffer());
+    }
+
+    @Test
+    public void testCloseReleasesTheOffHeapPayloadsOfAllTheStoredMessages() {
+        final RetainedPayloads payloads = new RetainedPayloads(12);
+        MemoryRetainedRepository repository = new MemoryRetainedRepository(payloads);
+        retain(repository, "sensors/a", "first!");
+        retain(repository, "sensors/b", "second");
+        retain(repository, "sensors/c", "third!");
+        RetainedMessage first = repository.retainedOnTopic("sensors/a").get(0);
+        assertEquals(12, payloads.offHeapBytes());
+        assertEquals(2, payloads.offHeapPayloads());
+        assertEquals(1, payloads.overBudget());
+
+        // Exercise
+        repository.close();
+
+        // Verify
+        assertTrue(repository.isEmpty());
+        assertNull(first.payloadBuffer(), "the payload of a stored message is released");
+        assertEquals(0, payloads.offHeapBytes());
+        assertEquals(0, payloads.offHeapPayloads());
+        assertEquals(0, new RetainedPayloads(12).offHeapBytes(), "the counters are of each storage");
+    }
+
+    @Test
+    public void testConcurrentChangesOfTopicsSharingTheLevelsKeepTheIndexComplete() throws InterruptedException {
+        MemoryRetainedRepository repository = new MemoryRetainedRepository();
+        final int threads = 4;
+        final int topicsPerThread = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int writer = t;
+            // the topics of all the writers share the first level, so its node is pruned and recreated concurrently
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < topicsPerThread; i++) {
+                        retain(repository, "sensors/" + writer + "/" + i, "value");
+                    }
+                    for (int i = 0; i < topicsPerThread; i++) {
+                        repository.cleanRetained(new Topic("sensors/" + writer + "/" + i));
+                    }
+                }
+                for (int i = 0; i < topicsPerThread; i += 2) {
+                    retain(repository, "sensors/" + writer + "/" + i, "value");
+                }
+            });
+            thread.start();
+            writers.add(thread);
+        }
+
+        // Exercise
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join(10_000);
+        }
+
+        // Verify
+        final Set<String> expected = new HashSet<>();
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < topicsPerThread; i += 2) {
+                expected.add("sensors/" + t + "/" + i);
+            }
+        }
+        assertEquals(expected, new HashSet<>(topicsOf(repository.retainedOnTopic("sensors/#"))));
+        assertEquals(expected.size(), repository.retainedOnTopic("sensors/+/+").size());
+    }
+
+    private static void retain(MemoryRetainedRepository repository, String topic, String payload) {
+        repository.retain(new Topic(topic), MqttMessageBuilders
+            .publish()
+            .qos(MqttQoS.AT_LEAST_ONCE)
+            .topicName(topic)
+            .retained(true)
+            .payload(Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8))
+            .build());
+    }
+
+    private static List<String> topicsOf(List<RetainedMessage> messages) {
+        return messages.stream().map(msg -> msg.getTopic().toString()).collect(Collectors.toList());
+    }
 }
@@ -0,0 +1,174 @@
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MpscRingBufferQueueTest {
+
+    @Test
+    public void testElementsAreReturnedInInsertionOrder() {
+        final MpscRingBufferQueue<Integer> sut = new MpscRingBufferQueue<>(4, MpscRingBufferQueue.WaitStrategy.PARK);
+
+        assertTrue(sut.offer(1));
+        assertTrue(sut.offer(2));
+        assertTrue(sut.offer(3));
+
+        assertEquals(3, sut.size());
+        assertEquals(1, sut.poll());
+        assertEquals(2, sut.poll());
+        assertEquals(3, sut.poll());
+        assertNull(sut.poll());
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void testOfferFailsWhenCapacityIsReached() {
+        // capacity not power of two, the bound must be exactly the requested one
+        final MpscRingBufferQueue<Integer> sut = new MpscRingBufferQueue<>(3, MpscRingBufferQueue.WaitStrategy.PARK);
+        assertTrue(sut.offer(1));
+        assertTrue(sut.offer(2));
+        assertTrue(sut.offer(3));
+
+        assertFalse(sut.offer(4), "Queue is full, offer must fail");
+        assertEquals(0, sut.remainingCapacity());
+
+        // Exercise, free a slot
+        sut.poll();
+
+        // Verify
+        assertTrue(sut.offer(4));
+        assertEquals(3, sut.size());
+    }
+
+    @Test
+    public void testDrainToRespectsTheBatchSize() {
+        final MpscRingBufferQueue<Integer> sut = new MpscRingBufferQueue<>(16, MpscRingBufferQueue.WaitStrategy.PARK);
+        for (int i = 0; i < 10; i++) {
+            sut.offer(i);
+        }
+
+        final List<Integer> batch = new ArrayList<>();
+        assertEquals(4, sut.drainTo(batch, 4));
+        assertEquals(6, sut.size());
+
+        assertEquals(6, sut.drainTo(batch));
+        assertEquals(10, batch.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, batch.get(i));
+        }
+    }
+
+    @Test
+    public void testIteratorReturnsTheQueuedElementsAcrossTheEndOfTheRing() {
+        final MpscRingBufferQueue<Integer> sut = new MpscRingBufferQueue<>(4, MpscRingBufferQueue.WaitStrategy.PARK);
+        for (int i = 0; i < 3; i++) {
+            sut.offer(i);
+        }
+        sut.poll();
+        sut.poll();
+        sut.offer(3);
+        sut.offer(4);
+
+        final List<Integer> iterated = new ArrayList<>();
+        sut.iterator().forEachRemaining(iterated::add);
+
+        assertEquals(Arrays.asList(2, 3, 4), iterated);
+        assertEquals("[2, 3, 4]", sut.toString());
+        assertTrue(sut.contains(3));
+        assertFalse(sut.contains(1));
+        assertEquals(3, sut.size(), "Iterating must not consume");
+    }
+
+    @Test
+    public void testIteratorSkipsTheElementsConsumedMeanwhile() {
+        final MpscRingBufferQueue<Integer> sut = new MpscRingBufferQueue<>(4, MpscRingBufferQueue.WaitStrategy.PARK);
+        for (int i = 0; i < 4; i++) {
+            sut.offer(i);
+        }
+        final Iterator<Integer> iterator = sut.iterator();
+        assertEquals(0, iterator.next());
+
+        // Exercise, consume and reuse the slots ahead of the iterator
+        sut.poll();
+        sut.poll();
+        sut.poll();
+        sut.offer(4);
+        sut.offer(5);
+
+        // Verify, the element already read by the iterator is returned anyway
+        assertEquals(1, iterator.next());
+        assertEquals(3, iterator.next());
+        assertFalse(iterator.hasNext());
+        assertThrows(UnsupportedOperationException.class, () -> sut.remove(3));
+    }
+
+    @Test
+    public void testTimedPollReturnsNullOnEmptyQueue() throws InterruptedException {
+        final MpscRingBufferQueue<Integer> sut = new MpscRingBufferQueue<>(4, MpscRingBufferQueue.WaitStrategy.PARK);
+
+        assertNull(sut.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @ParameterizedTest
+    @EnumSource(MpscRingBufferQueue.WaitStrategy.class)
+    public void testManyProducersSingleConsumer(MpscRingBufferQueue.WaitStrategy waitStrategy) throws Exception {
+        final int producers = 4;
+        final int messagesPerProducer = 20_000;
+        final MpscRingBufferQueue<int[]> sut = new MpscRingBufferQueue<>(64, waitStrategy);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        final List<Thread> producerThreads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producerId = p;
+            final Thread producer = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        sut.put(new int[] {producerId, i});
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producer.start();
+            producerThreads.add(producer);
+        }
+
+        // Exercise
+        startLatch.countDown();
+        final int[] lastSeen = new int[] {-1, -1, -1, -1};
+        final List<int[]> batch = new ArrayList<>();
+        int received = 0;
+        while (received < producers * messagesPerProducer) {
+            if (sut.drainTo(batch, 32) == 0) {
+                batch.add(sut.take());
+            }
+            for (int[] msg : batch) {
+                // Verify, per producer the order is preserved
+                assertEquals(lastSeen[msg[0]] + 1, msg[1], "Out of order message from producer " + msg[0]);
+                lastSeen[msg[0]] = msg[1];
+            }
+            received += batch.size();
+            batch.clear();
+        }
+
+        for (Thread producer : producerThreads) {
+            producer.join(5_000);
+        }
+        assertTrue(sut.isEmpty());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class NettySessionLoopsTest {
+
+    private DefaultEventLoopGroup eventLoops;
+    private NettySessionLoops sut;
+
+    @BeforeEach
+    public void setUp() {
+        eventLoops = new DefaultEventLoopGroup(4);
+        sut = new NettySessionLoops(eventLoops);
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        eventLoops.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSessionIsOwnedByThePreferredLoop() throws Exception {
+        final EventLoop preferred = eventLoops.next();
+        final AtomicReference<Thread> executor = new AtomicReference<>();
+        final CountDownLatch executed = new CountDownLatch(1);
+
+        // Exercise
+        assertTrue(sut.route(sessionAction("client", () -> {
+            executor.set(Thread.currentThread());
+            executed.countDown();
+        }), preferred));
+
+        // Verify
+        assertTrue(executed.await(5, TimeUnit.SECONDS));
+        final AtomicReference<Thread> loopThread = new AtomicReference<>();
+        preferred.submit(() -> loopThread.set(Thread.currentThread())).await();
+        assertSame(loopThread.get(), executor.get());
+    }
+
+    @Test
+    public void testPinningPreservesPerSessionOrderAndSingleThreadAccess() throws Exception {
+        final int sessions = 20;
+        final int rounds = 500;
+        final Map<String, List<Integer>> executed = new ConcurrentHashMap<>();
+        final Map<String, AtomicBoolean> running = new ConcurrentHashMap<>();
+        final AtomicInteger concurrentAccesses = new AtomicInteger();
+        final CountDownLatch allExecuted = new CountDownLatch(sessions * rounds);
+
+        final PostOffice postOffice = mock(PostOffice.class);
+        doAnswer(invocation -> {
+            final Topic topic = invocation.getArgument(2);
+            final Collection<Subscription> subscriptions = invocation.getArgument(3);
+            final String clientId = subscriptions.iterator().next().getClientId();
+            final AtomicBoolean busy = running.computeIfAbsent(clientId, k -> new AtomicBoolean());
+            if (!busy.compareAndSet(false, true)) {
+                concurrentAccesses.incrementAndGet();
+            }
+            final int seq = Integer.parseInt(topic.toString());
+            executed.computeIfAbsent(clientId, k -> Collections.synchronizedList(new ArrayList<>())).add(seq);
+            // move the session around like a client that reconnects on other channels
+            if (seq % 50 == 0) {
+                sut.pinSession(clientId, eventLoops.next());
+            } else if (seq % 77 == 0) {
+                sut.unpinSession(clientId);
+            }
+            busy.set(false);
+            allExecuted.countDown();
+            return null;
+        }).when(postOffice).publishToSession(any(), any(), any(), any(), any());
+
+        final List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 2; p++) {
+            final int producerId = p;
+            final Thread producer = new Thread(() -> {
+                for (int seq = 0; seq < rounds; seq++) {
+                    for (int s = producerId; s < sessions; s += 2) {
+                        final String clientId = "client-" + s;
+                        final Subscription sub = new Subscription(clientId, new Topic("a/b"), MqttQoS.AT_MOST_ONCE);
+                        sut.route(SessionCommand.routePublish(postOffice, clientId, Unpooled.EMPTY_BUFFER, null,
+                                                              new Topic(Integer.toString(seq)),
+                                                              MqttQoS.AT_MOST_ONCE,
+                                                              Collections.singletonList(sub)), null);
+                    }
+                }
+            });
+            producers.add(producer);
+        }
+
+        // Exercise
+        producers.forEach(Thread::start);
+        for (Thread producer : producers) {
+            producer.join(10_000);
+        }
+
+        // Verify
+        assertTrue(allExecuted.await(10, TimeUnit.SECONDS), "Not all the commands were executed");
+        assertEquals(0, concurrentAccesses.get(), "A session was accessed by two loops at the same time");
+        assertEquals(sessions, executed.size());
+        for (Map.Entry<String, List<Integer>> entry : executed.entrySet()) {
+            final List<Integer> sequence = entry.getValue();
+            assertEquals(rounds, sequence.size());
+            for (int i = 0; i < sequence.size(); i++) {
+                assertEquals(i, sequence.get(i), "Out of order command for " + entry.getKey());
+            }
+        }
+    }
+
+    private static SessionCommand sessionAction(String clientId, Runnable action) {
+        final PostOffice postOffice = mock(PostOffice.class);
+        doAnswer(invocation -> {
+            action.run();
+            return null;
+        }).when(postOffice).publishToSession(any(), any(), any(), any(), any());
+        final Subscription sub = new Subscription(clientId, new Topic("a/b"), MqttQoS.AT_MOST_ONCE);
+        return SessionCommand.routePublish(postOffice, clientId, Unpooled.EMPTY_BUFFER, null, new Topic("a/b"),
+                                           MqttQoS.AT_MOST_ONCE, Collections.singletonList(sub));
+    }
+}
@@ -232,6 +232,50 @@ public class PostOfficePublishTest {
         ConnectionTestUtils.verifyReceivePublish(channel2, NEWS_TOPIC, "Hello world!");
     }
 
+    @Test
+    public void testPublishToManySubscribersIsRoutedInChunks() throws ExecutionException, InterruptedException,
+        TimeoutException {
+        sut.configureChunkedFanout(4, 3);
+        final List<MQTTConnection> subscribers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final MQTTConnection subscriber = connectAs("subscriber" + i);
+            final MqttQoS qos = i % 2 == 0 ? AT_MOST_ONCE : AT_LEAST_ONCE;
+            final MqttSubscribeMessage subscribe = MqttMessageBuilders.subscribe()
+                .addSubscription(qos, NEWS_TOPIC)
+                .messageId(1)
+                .build();
+            sut.subscribeClientToTopics(subscribe, subscriber.getClientId(), null, subscriber);
+            final MqttSubAckMessage subAck = ((EmbeddedChannel) subscriber.channel).readOutbound();
+            assertEquals(qos.value(), (int) subAck.payload().grantedQoSLevels().get(0));
+            subscribers.add(subscriber);
+        }
+        final MQTTConnection publisher = connectAs("Publisher");
+
+        // Exercise
+        final ByteBuf anyPayload = Unpooled.copiedBuffer("Any payload", Charset.defaultCharset());
+        final RoutingResults routes = sut.receivedPublishQos1(publisher, new Topic(NEWS_TOPIC), TEST_USER, 1,
+            MqttMessageBuilders.publish()
+                .payload(anyPayload)
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .retained(false)
+                .topicName(NEWS_TOPIC).build());
+        routes.completableFuture().get(5, TimeUnit.SECONDS);
+
+        // Verify
+        assertTrue(routes.isAllSuccess());
+        assertEquals(10, routes.successedRoutings.size());
+        for (int i = 0; i < subscribers.size(); i++) {
+            // over the shared frames threshold the subscribers receive the encoded frames
+            final Object frame = ((EmbeddedChannel) subscribers.get(i).channel).flushOutbound().readOutbound();
+            final EmbeddedChannel decoder = new EmbeddedChannel(new MqttDecoder());
+            decoder.writeInbound(frame);
+            final MqttPublishMessage received = decoder.readInbound();
+            assertEquals(i % 2 == 0 ? AT_MOST_ONCE : AT_LEAST_ONCE, received.fixedHeader().qosLevel());
+            assertEquals("Any payload", received.payload().toString(Charset.defaultCharset()));
+            received.release();
+        }
+    }
+
     @Test
     public void testPublishWithEmptyPayloadClearRetainedStore() throws ExecutionException, InterruptedException {
         connection.processConnect(connectMessage).completableFuture().get();
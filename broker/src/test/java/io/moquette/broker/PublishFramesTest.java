@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PublishFramesTest {
+
+    private static final String TOPIC = "/sensors/temperature/°C";
+
+    @Test
+    public void testSharedFramesAreEncodedAsTheMqttEncoderDoes() {
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world MQTT!!", UTF_8);
+        final int allLevels = 1 | 1 << 1 | 1 << 2;
+        final PublishFrames sut = new PublishFrames(ByteBufAllocator.DEFAULT, TOPIC, payload, allLevels);
+
+        assertSameBytes(encode(MqttQoS.AT_MOST_ONCE, payload, 0), sut.retainedFrame(MqttQoS.AT_MOST_ONCE, 0));
+        assertSameBytes(encode(MqttQoS.AT_LEAST_ONCE, payload, 1), sut.retainedFrame(MqttQoS.AT_LEAST_ONCE, 1));
+        assertSameBytes(encode(MqttQoS.EXACTLY_ONCE, payload, 65535),
+                        sut.retainedFrame(MqttQoS.EXACTLY_ONCE, 65535));
+
+        // the payload is still readable by the other deliveries
+        assertEquals("Hello world MQTT!!", payload.toString(UTF_8));
+        sut.release();
+        assertEquals(1, payload.refCnt(), "Shared frames must give back the payload references they took");
+        payload.release();
+    }
+
+    @Test
+    public void testLongPayloadUsesMultiByteRemainingLength() {
+        final ByteBuf payload = Unpooled.buffer(20_000).writeZero(20_000);
+        final PublishFrames sut = new PublishFrames(ByteBufAllocator.DEFAULT, TOPIC, payload, 1 << 1);
+
+        assertTrue(sut.hasQos(MqttQoS.AT_LEAST_ONCE));
+        assertFalse(sut.hasQos(MqttQoS.AT_MOST_ONCE));
+        assertSameBytes(encode(MqttQoS.AT_LEAST_ONCE, payload, 42), sut.retainedFrame(MqttQoS.AT_LEAST_ONCE, 42));
+
+        sut.release();
+        payload.release();
+    }
+
+    private static ByteBuf encode(MqttQoS qos, ByteBuf payload, int packetId) {
+        final MqttPublishMessage msg = MQTTConnection.createNotRetainedPublishMessage(TOPIC, qos,
+                                                                                      payload.retainedDuplicate(),
+                                                                                      packetId);
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        channel.writeOutbound(msg);
+        final ByteBuf encoded = Unpooled.buffer();
+        ByteBuf chunk;
+        while ((chunk = channel.readOutbound()) != null) {
+            encoded.writeBytes(chunk);
+            chunk.release();
+        }
+        channel.finishAndReleaseAll();
+        return encoded;
+    }
+
+    private static void assertSameBytes(ByteBuf expected, ByteBuf actual) {
+        try {
+            assertEquals(ByteBufUtil.hexDump(expected), ByteBufUtil.hexDump(actual));
+        } finally {
+            expected.release();
+            actual.release();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetransmissionWheelTest {
+
+    private static final long TICK = 100;
+
+    private RetransmissionWheel sut;
+    private long start;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new RetransmissionWheel(TICK, 8, null);
+        start = RetransmissionWheel.now();
+    }
+
+    @Test
+    public void testDeadlineIsNotifiedOnlyOnceExpired() {
+        final AtomicInteger expiries = new AtomicInteger();
+        sut.schedule(expiries::incrementAndGet, start + 350);
+
+        assertEquals(0, sut.expire(start + 200));
+        assertEquals(0, expiries.get());
+
+        assertEquals(1, sut.expire(start + 500));
+        assertEquals(1, expiries.get());
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void testDeadlineBeyondARoundWaitsForItsRound() {
+        final AtomicInteger expiries = new AtomicInteger();
+        // the wheel spans 800 ms
+        sut.schedule(expiries::incrementAndGet, start + 1_000);
+
+        for (long time = start + TICK; time < start + 900; time += TICK) {
+            assertEquals(0, sut.expire(time));
+        }
+        assertEquals(0, expiries.get());
+
+        assertEquals(1, sut.expire(start + 1_200));
+        assertEquals(1, expiries.get());
+    }
+
+    @Test
+    public void testLateExpireNotifiesAllTheExpiredDeadlines() {
+        final AtomicInteger expired = new AtomicInteger();
+        final AtomicInteger notYet = new AtomicInteger();
+        sut.schedule(expired::incrementAndGet, start + 200);
+        sut.schedule(expired::incrementAndGet, start + 1_500);
+        sut.schedule(notYet::incrementAndGet, start + 5_000);
+
+        assertEquals(2, sut.expire(start + 3_000));
+
+        assertEquals(2, expired.get());
+        assertEquals(0, notYet.get());
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void testScheduleWhileNotifyingGoesToAFollowingTick() {
+        final AtomicInteger expiries = new AtomicInteger();
+        final Runnable rescheduling = new Runnable() {
+            @Override
+            public void run() {
+                if (expiries.incrementAndGet() == 1) {
+                    sut.schedule(this, start);
+                }
+            }
+        };
+        sut.schedule(rescheduling, start + 100);
+
+        assertEquals(1, sut.expire(start + 300));
+        assertEquals(1, sut.size(), "The deadline already passed is due at the next tick");
+
+        assertEquals(1, sut.expire(start + 400));
+        assertEquals(2, expiries.get());
+    }
+
+    @Test
+    public void testCloseNotifiesAllTheDeadlinesAlsoTheNotExpiredOnes() {
+        final AtomicInteger expiries = new AtomicInteger();
+        sut.schedule(expiries::incrementAndGet, start + 200);
+        sut.schedule(expiries::incrementAndGet, start + 5_000);
+
+        assertEquals(2, sut.close());
+
+        assertEquals(2, expiries.get());
+        assertTrue(sut.isEmpty());
+        assertTrue(sut.isClosed());
+    }
+
+    @Test
+    public void testWaitForTheNextTick() {
+        sut.expire(start);
+        final long wait = sut.millisToNextTick(start);
+        assertTrue(wait > 0 && wait <= TICK, "Waits at most a tick, was " + wait);
+    }
+}
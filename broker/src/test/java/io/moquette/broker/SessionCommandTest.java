@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class SessionCommandTest {
+
+    private static final String CLIENT_ID = "Subscriber";
+
+    @Test
+    public void testCompletionIsNotCreatedByDefault() {
+        final AtomicBoolean executed = new AtomicBoolean();
+        final SessionCommand cmd = SessionCommand.action(() -> executed.set(true));
+        assertNull(cmd.completion(), "The future is created only on request");
+
+        // Exercise
+        SessionEventLoop.executeCommand(cmd);
+
+        // Verify
+        assertTrue(executed.get());
+        assertNull(cmd.type(), "The command must be recycled after its execution");
+    }
+
+    @Test
+    public void testFailedExecutionCompletesExceptionallyAndRecyclesTheCommand() {
+        final IllegalStateException failure = new IllegalStateException("simulated failure");
+        final SessionCommand cmd = SessionCommand.action(() -> {
+            throw failure;
+        }).withCompletion();
+        final CompletableFuture<String> completion = cmd.completion();
+
+        // Exercise
+        SessionEventLoop.executeCommand(cmd);
+
+        // Verify
+        assertTrue(completion.isCompletedExceptionally());
+        final ExecutionException thrown = assertThrows(ExecutionException.class, completion::get);
+        assertSame(failure, thrown.getCause());
+        assertNull(cmd.type(), "The command must be recycled also when its execution fails");
+        assertNull(cmd.completion());
+    }
+
+    @Test
+    public void testRoutePublishReleasesPayloadAndFramesWhenThePublishFails() {
+        final PostOffice postOffice = mock(PostOffice.class);
+        doThrow(new IllegalStateException("simulated failure"))
+            .when(postOffice).publishToSession(any(), any(), any(), any(), any());
+        final ByteBuf payload = Unpooled.copiedBuffer("Hello world MQTT!!", UTF_8);
+        final PublishFrames frames = new PublishFrames(ByteBufAllocator.DEFAULT, "/news", payload, 1 << 1);
+        final Topic topic = new Topic("/news");
+        final SessionCommand cmd = SessionCommand.routePublish(postOffice, CLIENT_ID, payload, frames, topic,
+            MqttQoS.AT_LEAST_ONCE,
+            Collections.singletonList(new Subscription(CLIENT_ID, topic, MqttQoS.AT_LEAST_ONCE)));
+
+        // Exercise
+        SessionEventLoop.executeCommand(cmd);
+
+        // Verify
+        assertEquals(0, frames.refCnt(), "The frames owned by the command must be released");
+        assertEquals(0, payload.refCnt(), "The payload owned by the command must be released");
+        assertNull(cmd.type());
+    }
+}
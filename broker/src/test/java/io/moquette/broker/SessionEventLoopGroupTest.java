@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class SessionEventLoopGroupTest {
+
+    private SessionEventLoopGroup sut;
+
+    @AfterEach
+    public void tearDown() {
+        if (sut != null) {
+            sut.terminate();
+        }
+    }
+
+    @Test
+    public void testSessionWithMinimumHashCodeIsPlacedOnAValidLoop() {
+        final String clientId = "polygenelubricants";
+        assertEquals(Integer.MIN_VALUE, clientId.hashCode());
+
+        final SessionEventLoopGroup.Ring ring = new SessionEventLoopGroup.Ring(new SessionEventLoop[3]);
+
+        final int loopId = ring.loopFor(clientId);
+        assertTrue(loopId >= 0 && loopId < 3, "Loop id out of range: " + loopId);
+    }
+
+    @Test
+    public void testGrowingTheRingMovesSessionsOnlyToTheNewLoop() {
+        final SessionEventLoopGroup.Ring four = new SessionEventLoopGroup.Ring(new SessionEventLoop[4]);
+        final SessionEventLoopGroup.Ring five = new SessionEventLoopGroup.Ring(new SessionEventLoop[5]);
+
+        int moved = 0;
+        final int sessions = 10_000;
+        for (int i = 0; i < sessions; i++) {
+            final String clientId = "client-" + i;
+            final int before = four.loopFor(clientId);
+            final int after = five.loopFor(clientId);
+            if (before != after) {
+                assertEquals(4, after, "A session can move only to the new loop");
+                moved++;
+            }
+        }
+        // expected a fifth of the sessions
+        assertTrue(moved > sessions / 10 && moved < sessions * 3 / 10, "Moved sessions: " + moved);
+    }
+
+    @Test
+    public void testShrinkingTheRingDrainsOnlyTheRemovedLoop() {
+        final SessionEventLoopGroup.Ring five = new SessionEventLoopGroup.Ring(new SessionEventLoop[5]);
+        final SessionEventLoopGroup.Ring four = new SessionEventLoopGroup.Ring(new SessionEventLoop[4]);
+
+        assertArrayEquals(new boolean[] {false, false, false, false, true}, five.losingLoops(four));
+    }
+
+    @Test
+    public void testResizePreservesPerSessionOrderAndSingleThreadAccess() throws Exception {
+        sut = new SessionEventLoopGroup(2, () -> new ArrayBlockingQueue<>(1024));
+        final int sessions = 50;
+        final int rounds = 400;
+        final Map<String, List<Integer>> executed = new ConcurrentHashMap<>();
+        final Map<String, AtomicBoolean> running = new ConcurrentHashMap<>();
+        final AtomicInteger concurrentAccesses = new AtomicInteger();
+        final AtomicInteger executedCount = new AtomicInteger();
+
+        final PostOffice postOffice = mock(PostOffice.class);
+        doAnswer(invocation -> {
+            final Topic topic = invocation.getArgument(2);
+            final Collection<Subscription> subscriptions = invocation.getArgument(3);
+            final String clientId = subscriptions.iterator().next().getClientId();
+            final AtomicBoolean busy = running.computeIfAbsent(clientId, k -> new AtomicBoolean());
+            if (!busy.compareAndSet(false, true)) {
+                concurrentAccesses.incrementAndGet();
+            }
+            executed.computeIfAbsent(clientId, k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(Integer.parseInt(topic.toString()));
+            busy.set(false);
+            executedCount.incrementAndGet();
+            return null;
+        }).when(postOffice).publishToSession(any(), any(), any(), any(), any());
+
+        final Thread producer = new Thread(() -> {
+            for (int seq = 0; seq < rounds; seq++) {
+                for (int s = 0; s < sessions; s++) {
+                    final String clientId = "client-" + s;
+                    final Subscription sub = new Subscription(clientId, new Topic("a/b"), MqttQoS.AT_MOST_ONCE);
+                    route(SessionCommand.routePublish(postOffice, clientId, Unpooled.EMPTY_BUFFER, null,
+                                                      new Topic(Integer.toString(seq)), MqttQoS.AT_MOST_ONCE,
+                                                      Collections.singletonList(sub)));
+                }
+            }
+        });
+
+        // Exercise
+        producer.start();
+        sut.resize(5);
+        sut.resize(3);
+        sut.resize(4);
+        producer.join(10_000);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (executedCount.get() < sessions * rounds && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // Verify
+        assertEquals(4, sut.loopsCount());
+        assertEquals(sessions * rounds, executedCount.get());
+        assertEquals(0, concurrentAccesses.get(), "A session was accessed by two loops at the same time");
+        for (Map.Entry<String, List<Integer>> entry : executed.entrySet()) {
+            final List<Integer> sequence = entry.getValue();
+            for (int i = 0; i < sequence.size(); i++) {
+                assertEquals(i, sequence.get(i), "Out of order command for " + entry.getKey());
+            }
+        }
+        assertFalse(executed.isEmpty());
+    }
+
+    @Test
+    public void testShrinkingRoutesTheRetransmissionsOfTheRemovedLoopToTheNewOwner() throws Exception {
+        sut = new SessionEventLoopGroup(2, () -> new ArrayBlockingQueue<>(1024));
+        final SessionEventLoopGroup.Ring two = new SessionEventLoopGroup.Ring(new SessionEventLoop[2]);
+        int i = 0;
+        while (two.loopFor("client-" + i) != 1) {
+            i++;
+        }
+        final String clientId = "client-" + i;
+        final CountDownLatch resent = new CountDownLatch(1);
+        final PostOffice postOffice = mock(PostOffice.class);
+        doAnswer(invocation -> {
+            resent.countDown();
+            return null;
+        }).when(postOffice).publishToSession(any(), any(), any(), any(), any());
+        final Subscription sub = new Subscription(clientId, new Topic("a/b"), MqttQoS.AT_MOST_ONCE);
+        // a message in flight of the session, its check is due well after the resize
+        final CountDownLatch scheduled = new CountDownLatch(1);
+        final SessionEventLoopGroup.Ring ring = sut.enterRing();
+        ring.loop(1).enqueue(SessionCommand.action(() -> {
+            RetransmissionWheel.current().schedule(
+                () -> route(SessionCommand.routePublish(postOffice, clientId, Unpooled.EMPTY_BUFFER, null,
+                                                        new Topic("a/b"), MqttQoS.AT_MOST_ONCE,
+                                                        Collections.singletonList(sub))),
+                RetransmissionWheel.now() + TimeUnit.MINUTES.toMillis(1));
+            scheduled.countDown();
+        }));
+        sut.exitRing(ring);
+        assertTrue(scheduled.await(5, TimeUnit.SECONDS));
+
+        // Exercise
+        sut.resize(1);
+
+        // Verify
+        assertTrue(resent.await(5, TimeUnit.SECONDS), "The session's check must not be lost with its loop");
+    }
+
+    private void route(SessionCommand cmd) {
+        final SessionEventLoopGroup.Ring ring = sut.enterRing();
+        try {
+            final SessionEventLoop loop = ring.loop(ring.loopFor(cmd.getSessionId()));
+            while (!loop.offer(cmd)) {
+                Thread.yield();
+            }
+        } finally {
+            sut.exitRing(ring);
+        }
+    }
+}
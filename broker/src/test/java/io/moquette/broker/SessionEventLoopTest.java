@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionEventLoopTest {
+
+    private static final int QUEUE_SIZE = 8;
+
+    private SessionEventLoopGroup group;
+    private SessionEventLoop sut;
+    private SessionEventLoop other;
+
+    @AfterEach
+    public void tearDown() {
+        if (sut != null) {
+            sut.stop();
+        }
+        if (other != null) {
+            other.stop();
+        }
+        if (group != null) {
+            group.terminate();
+        }
+    }
+
+    @Test
+    public void testPublisherIsSuspendedOverHighWatermarkAndResumedUnderLowWatermark() {
+        group = new SessionEventLoopGroup(1, () -> new ArrayBlockingQueue<>(QUEUE_SIZE));
+        sut = new SessionEventLoop(group, 0, new ArrayBlockingQueue<>(QUEUE_SIZE), 75, 25, true);
+        final EmbeddedChannel publisher = new EmbeddedChannel();
+
+        // under the high watermark of 6 commands nothing happens
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sut.offer(SessionCommand.action(() -> {})));
+        }
+        sut.throttleIfCongested(publisher);
+        assertTrue(publisher.config().isAutoRead(), "Publisher must not be suspended under the high watermark");
+
+        // Exercise
+        assertTrue(sut.offer(SessionCommand.action(() -> {})));
+        sut.throttleIfCongested(publisher);
+
+        // Verify
+        assertFalse(publisher.config().isAutoRead(), "Publisher must be suspended over the high watermark");
+
+        // drain the queue, the publisher has to be resumed
+        final Thread thread = new Thread(sut);
+        thread.setName("Session Executor test");
+        sut.start(thread);
+        Awaitility.await("Waiting for the publisher to be resumed")
+            .atMost(5, TimeUnit.SECONDS)
+            .until(() -> publisher.config().isAutoRead());
+    }
+
+    @Test
+    public void testPublisherThrottledByTwoLoopsIsResumedOnlyWhenBothDrained() {
+        group = new SessionEventLoopGroup(1, () -> new ArrayBlockingQueue<>(QUEUE_SIZE));
+        sut = new SessionEventLoop(group, 0, new ArrayBlockingQueue<>(QUEUE_SIZE), 75, 25, true);
+        other = new SessionEventLoop(group, 1, new ArrayBlockingQueue<>(QUEUE_SIZE), 75, 25, true);
+        final EmbeddedChannel publisher = new EmbeddedChannel();
+        fillOverHighWatermark(sut);
+        fillOverHighWatermark(other);
+
+        // Exercise
+        sut.throttleIfCongested(publisher);
+        other.throttleIfCongested(publisher);
+        assertFalse(publisher.config().isAutoRead(), "Publisher must be suspended over the high watermark");
+
+        // Verify, the first loop drains while the second is still congested
+        startLoop(sut, "Session Executor test 0");
+        Awaitility.await("Waiting for the first loop to drain")
+            .atMost(5, TimeUnit.SECONDS)
+            .until(() -> !sut.isThrottling(publisher));
+        assertFalse(publisher.config().isAutoRead(), "Publisher must stay suspended while a loop is congested");
+
+        startLoop(other, "Session Executor test 1");
+        Awaitility.await("Waiting for the publisher to be resumed")
+            .atMost(5, TimeUnit.SECONDS)
+            .until(() -> publisher.config().isAutoRead());
+    }
+
+    @Test
+    public void testClosedPublisherIsForgottenByTheThrottlingLoop() {
+        group = new SessionEventLoopGroup(1, () -> new ArrayBlockingQueue<>(QUEUE_SIZE));
+        // never started, nothing but the close can remove the publisher
+        final SessionEventLoop loop = new SessionEventLoop(group, 0, new ArrayBlockingQueue<>(QUEUE_SIZE), 75, 25,
+                                                           true);
+        final EmbeddedChannel publisher = new EmbeddedChannel();
+        fillOverHighWatermark(loop);
+        loop.throttleIfCongested(publisher);
+        assertTrue(loop.isThrottling(publisher));
+
+        // Exercise
+        publisher.close();
+
+        // Verify
+        assertFalse(loop.isThrottling(publisher), "Closed publisher must be removed from the throttled ones");
+    }
+
+    private static void fillOverHighWatermark(SessionEventLoop loop) {
+        for (int i = 0; i < 6; i++) {
+            assertTrue(loop.offer(SessionCommand.action(() -> {})));
+        }
+    }
+
+    private static void startLoop(SessionEventLoop loop, String name) {
+        final Thread thread = new Thread(loop);
+        thread.setName(name);
+        loop.start(thread);
+    }
+}
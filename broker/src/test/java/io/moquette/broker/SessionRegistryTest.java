@@ -19,8 +19,10 @@ import io.moquette.BrokerConstants;
 import io.moquette.persistence.EnqueuedMessageValueType;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.ClientHandles;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.security.IAuthenticator;
+import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.netty.buffer.ByteBuf;
@@ -40,12 +42,16 @@ import java.io.File;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutionException;
 
+import static io.moquette.BrokerConstants.INFLIGHT_WINDOW_SIZE;
 import static io.moquette.broker.NettyChannelAssertions.assertEqualsConnAck;
 import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.CONNECTION_ACCEPTED;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonMap;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SessionRegistryTest {
@@ -142,6 +148,47 @@ public class SessionRegistryTest {
         assertFalse(session.isClean());
     }
 
+    @Test
+    public void testSessionTakesAClientHandleWhenCreatedAndGivesItBackWhenRemoved() {
+        final Session session = sut.createOrReopenSession(connMsg.clientId(FAKE_CLIENT_ID).build(), FAKE_CLIENT_ID,
+                                                          null).session;
+        final int handle = session.clientHandle;
+        assertNotEquals(ClientHandles.NO_HANDLE, handle);
+        assertEquals(1, sut.clientHandles());
+        final Subscription subscription = new Subscription(FAKE_CLIENT_ID, new Topic("a/b"), MqttQoS.AT_MOST_ONCE,
+                                                           handle);
+        assertSame(session, sut.retrieve(subscription));
+
+        // Exercise
+        sut.remove(FAKE_CLIENT_ID);
+
+        // Verify
+        assertEquals(0, sut.clientHandles());
+        assertEquals(ClientHandles.NO_HANDLE, session.clientHandle);
+        final Session other = sut.createOrReopenSession(connMsg.clientId("other").build(), "other", null).session;
+        assertEquals(handle, other.clientHandle, "The released handle goes to the next session");
+        assertNull(sut.retrieve(subscription), "A stale subscription mustn't find the new owner of its handle");
+    }
+
+    @Test
+    public void testInflightWindowsOfDiscardedSessionsAreNotCounted() {
+        sut.createOrReopenSession(connMsg.clientId(FAKE_CLIENT_ID).build(), FAKE_CLIENT_ID, null);
+        sut.createOrReopenSession(connMsg.clientId("other").build(), "other", null);
+        assertEquals(2, sut.inflightWindows().open());
+
+        // Exercise, a clean reconnect discards the previous session of the client
+        assertTrue(sut.retrieve(FAKE_CLIENT_ID).assignState(Session.SessionStatus.CONNECTING,
+                                                            Session.SessionStatus.DISCONNECTED));
+        sut.createOrReopenSession(connMsg.clientId(FAKE_CLIENT_ID).build(), FAKE_CLIENT_ID, null);
+        sut.remove("other");
+
+        // Verify
+        assertEquals(1, sut.inflightWindows().open());
+        assertEquals(INFLIGHT_WINDOW_SIZE, sut.inflightWindows().averageSize());
+        sut.remove(FAKE_CLIENT_ID);
+        assertEquals(0, sut.inflightWindows().open());
+    }
+
     @Test
     public void testSerializabilityOfPublishedMessage() {
         MVStore mvStore = new MVStore.Builder()
@@ -3,15 +3,22 @@ package io.moquette.broker;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
 import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import static io.moquette.BrokerConstants.FLIGHT_BEFORE_RESEND_MS;
 import io.moquette.broker.subscriptions.Subscription;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import org.assertj.core.api.Assertions;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -22,15 +29,23 @@ public class SessionTest {
     private EmbeddedChannel testChannel;
     private Session client;
     private SessionMessageQueue<SessionRegistry.EnqueuedMessage> queuedMessages;
+    // the test thread writes as a session loop does
+    private final FlushConsolidator flushes = new FlushConsolidator(null, Long.MAX_VALUE);
 
     @BeforeEach
     public void setUp() {
+        flushes.bind();
         testChannel = new EmbeddedChannel();
         queuedMessages = new InMemoryQueue();
         client = new Session(CLIENT_ID, true, null, queuedMessages);
         createConnection(client);
     }
 
+    @AfterEach
+    public void tearDown() {
+        flushes.unbind();
+    }
+
     @Test
     public void testPubAckDrainMessagesRemainingInQueue() {
         final Topic destinationTopic = new Topic("/a/b");
@@ -55,6 +70,42 @@ public class SessionTest {
         testChannel.close();
     }
 
+    @Test
+    public void testConfiguredInflightWindowLimitsTheMessagesInFlight() {
+        client.configureInflightWindow(InflightWindowLimit.fixed(2));
+        final Topic destinationTopic = new Topic("/a/b");
+        sendQoS1To(client, destinationTopic, "first");
+        sendQoS1To(client, destinationTopic, "second");
+        assertTrue(queuedMessages.isEmpty(), "Two messages fit in the inflight window");
+
+        sendQoS1To(client, destinationTopic, "third");
+
+        assertFalse(queuedMessages.isEmpty(), "The third message must be queued");
+        assertEquals(2, client.inflightMessages());
+
+        client.pubAckReceived(1);
+        assertTrue(queuedMessages.isEmpty(), "The acknowledge makes room for the queued message");
+
+        client.pubAckReceived(2);
+        client.pubAckReceived(3);
+        client.closeImmediately();
+        testChannel.close();
+    }
+
+    @Test
+    public void testAdaptiveInflightWindowShrinksOnRetransmission() throws InterruptedException {
+        client.configureInflightWindow(new InflightWindowLimit(8, 2, 16, true));
+        final Topic destinationTopic = new Topic("/a/b");
+        sendQoS1To(client, destinationTopic, "Message not ACK-ed at first send!");
+        ConnectionTestUtils.verifyReceivePublish(testChannel, destinationTopic.toString(), "Message not ACK-ed at first send!");
+
+        Thread.sleep(FLIGHT_BEFORE_RESEND_MS + 1_000);
+        client.resendInflightNotAcked();
+
+        assertEquals(4, client.inflightWindowSize(), "The retransmission halves the window");
+        assertEquals(1, client.inflightMessages());
+    }
+
     private void sendQoS1To(Session client, Topic destinationTopic, String message) {
         final ByteBuf payload = ByteBufUtil.writeUtf8(UnpooledByteBufAllocator.DEFAULT, message);
         client.sendNotRetainedPublishOnSessionAtQos(destinationTopic, MqttQoS.AT_LEAST_ONCE, payload);
@@ -113,6 +164,98 @@ public class SessionTest {
         Assertions.assertThat(client.getSubscriptions()).isEmpty();
     }
 
+    @Test
+    public void testRetainedDeliveryPausesWhenNotWritableAndResumes() {
+        testChannel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(100, 150));
+        final MemoryRetainedRepository retained = new MemoryRetainedRepository();
+        for (int i = 0; i < 5; i++) {
+            retain(retained, "sensors/" + i, MqttQoS.AT_MOST_ONCE, "retained payload " + i);
+        }
+
+        // Exercise
+        client.deliverRetained(new Subscription(CLIENT_ID, new Topic("sensors/+"), MqttQoS.AT_MOST_ONCE), retained,
+                               retained.retainedTopics("sensors/+"));
+
+        // Verify, a write counts its payload plus the entry in the outbound buffer, the second crosses the high mark
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/0", "retained payload 0");
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/1", "retained payload 1");
+        assertNull(testChannel.readOutbound(), "Nothing must be sent while the channel isn't writable");
+
+        client.writabilityChanged();
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/2", "retained payload 2");
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/3", "retained payload 3");
+        client.writabilityChanged();
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/4", "retained payload 4");
+        assertNull(testChannel.readOutbound());
+    }
+
+    @Test
+    public void testRetainedDeliveryRespectsTheInflightWindow() {
+        final MemoryRetainedRepository retained = new MemoryRetainedRepository();
+        final List<Topic> topics = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            retain(retained, "sensors/" + i, MqttQoS.AT_LEAST_ONCE, "payload " + i);
+            topics.add(new Topic("sensors/" + i));
+        }
+
+        // Exercise
+        client.deliverRetained(new Subscription(CLIENT_ID, new Topic("sensors/#"), MqttQoS.AT_LEAST_ONCE), retained,
+                               topics);
+
+        // Verify
+        for (int i = 0; i < 10; i++) {
+            ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/" + i, "payload " + i);
+        }
+        assertNull(testChannel.readOutbound(), "The inflight window is full");
+        assertTrue(queuedMessages.isEmpty(), "The retained messages wait in the cursor, not in the session queue");
+
+        client.pubAckReceived(1);
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/10", "payload 10");
+        assertNull(testChannel.readOutbound());
+        client.pubAckReceived(2);
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/11", "payload 11");
+
+        for (int i = 3; i <= 12; i++) {
+            client.pubAckReceived(i);
+        }
+        client.closeImmediately();
+        testChannel.close();
+    }
+
+    @Test
+    public void testRetainedDeliveryReadsTheMessagesAsItResumes() {
+        testChannel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(100, 150));
+        final MemoryRetainedRepository retained = new MemoryRetainedRepository();
+        final List<Topic> topics = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            retain(retained, "sensors/" + i, MqttQoS.AT_MOST_ONCE, "retained payload " + i);
+            topics.add(new Topic("sensors/" + i));
+        }
+        client.deliverRetained(new Subscription(CLIENT_ID, new Topic("sensors/+"), MqttQoS.AT_MOST_ONCE), retained,
+                               topics);
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/0", "retained payload 0");
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/1", "retained payload 1");
+        assertNull(testChannel.readOutbound(), "Nothing must be sent while the channel isn't writable");
+
+        // Exercise, change the messages not yet reached by the paused delivery
+        retained.cleanRetained(new Topic("sensors/2"));
+        retain(retained, "sensors/3", MqttQoS.AT_MOST_ONCE, "updated payload 3");
+        client.writabilityChanged();
+
+        // Verify
+        ConnectionTestUtils.verifyReceivePublish(testChannel, "sensors/3", "updated payload 3");
+        assertNull(testChannel.readOutbound());
+    }
+
+    private static void retain(MemoryRetainedRepository repository, String topic, MqttQoS qos, String payload) {
+        repository.retain(new Topic(topic), MqttMessageBuilders.publish()
+            .qos(qos)
+            .topicName(topic)
+            .retained(true)
+            .payload(Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8))
+            .build());
+    }
+
     private void createConnection(Session client) {
         BrokerConfiguration brokerConfiguration = new BrokerConfiguration(true, false, false, false);
         MQTTConnection mqttConnection = new MQTTConnection(testChannel, brokerConfiguration, null, null, null);
@@ -22,14 +22,20 @@ import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
 import static io.moquette.broker.subscriptions.CTrieTest.clientSubOnTopic;
 import static io.moquette.broker.subscriptions.Topic.asTopic;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.tuple;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class CTrieSubscriptionDirectoryMatchingTest {
 
@@ -268,4 +274,328 @@ public class CTrieSubscriptionDirectoryMatchingTest {
         // client1SubQoS2 should override client1SubQoS0
         assertThat(client1Sub.getRequestedQos()).isEqualTo(client1SubQoS2.getRequestedQos());
     }
+
+    @Test
+    public void testLiteralAndWildcardSubscriptionsAreMatchedTogether() {
+        sut = new CTrieSubscriptionDirectory(0);
+        sut.init(new MemorySubscriptionsRepository());
+        Subscription deviceSub = new Subscription("device1", asTopic("cmd/device1"), MqttQoS.AT_LEAST_ONCE);
+        sut.add(deviceSub);
+        Subscription sameClientWildcardSub = new Subscription("device1", asTopic("cmd/+"), MqttQoS.AT_MOST_ONCE);
+        sut.add(sameClientWildcardSub);
+        Subscription monitorSub = new Subscription("monitor", asTopic("cmd/+"), MqttQoS.AT_MOST_ONCE);
+        sut.add(monitorSub);
+
+        // Verify
+        assertEquals(3, sut.size());
+        assertThat(sut.matchWithoutQosSharpening(asTopic("cmd/device1")))
+            .containsExactlyInAnyOrder(deviceSub, sameClientWildcardSub, monitorSub);
+        assertThat(sut.matchQosSharpening(asTopic("cmd/device1")))
+            .extracting("clientId", "requestedQos")
+            .containsExactlyInAnyOrder(tuple("device1", MqttQoS.AT_LEAST_ONCE), tuple("monitor", MqttQoS.AT_MOST_ONCE));
+        assertThat(sut.matchQosSharpening(asTopic("cmd/device2")))
+            .extracting("clientId", "requestedQos")
+            .containsExactlyInAnyOrder(tuple("device1", MqttQoS.AT_MOST_ONCE), tuple("monitor", MqttQoS.AT_MOST_ONCE));
+
+        // Exercise
+        sut.removeSubscription(asTopic("cmd/device1"), "device1");
+
+        // Verify
+        assertEquals(2, sut.size());
+        assertThat(sut.matchQosSharpening(asTopic("cmd/device1")))
+            .extracting("clientId", "requestedQos")
+            .containsExactlyInAnyOrder(tuple("device1", MqttQoS.AT_MOST_ONCE), tuple("monitor", MqttQoS.AT_MOST_ONCE));
+    }
+
+    @Test
+    public void testRemoveAllSubscriptionsOfAClient() {
+        sut.add(new Subscription("device1", asTopic("cmd/device1"), MqttQoS.AT_LEAST_ONCE));
+        sut.add(new Subscription("device1", asTopic("cmd/+/reboot"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("device1", asTopic("#"), MqttQoS.AT_MOST_ONCE));
+        Subscription monitorSub = new Subscription("monitor", asTopic("cmd/+/reboot"), MqttQoS.AT_MOST_ONCE);
+        sut.add(monitorSub);
+        assertThat(sut.listAllSessionIds()).containsExactlyInAnyOrder("device1", "monitor");
+
+        // Exercise
+        sut.removeAllSubscriptions("device1");
+
+        // Verify
+        assertThat(sut.listAllSessionIds()).containsExactly("monitor");
+        assertEquals(1, sut.size());
+        assertThat(sut.matchWithoutQosSharpening(asTopic("cmd/device1"))).isEmpty();
+        assertThat(sut.matchWithoutQosSharpening(asTopic("cmd/device1/reboot"))).containsExactly(monitorSub);
+        assertThat(sessionsRepository.listAllSubscriptions()).containsExactly(monitorSub);
+
+        // the session ids are rebuilt from the stored subscriptions
+        final CTrieSubscriptionDirectory reloaded = new CTrieSubscriptionDirectory();
+        reloaded.init(sessionsRepository);
+        assertThat(reloaded.listAllSessionIds()).containsExactly("monitor");
+    }
+
+    @Test
+    public void testCachedMatchIsInvalidatedBySubscriptionChanges() {
+        Subscription sensorSub = new Subscription("client1", asTopic("sensors/+/temp"), MqttQoS.AT_MOST_ONCE);
+        sut.add(sensorSub);
+        assertThat(sut.matchQosSharpening(asTopic("sensors/kitchen/temp"))).containsExactly(sensorSub);
+        assertThat(sut.matchQosSharpening(asTopic("sensors/kitchen/temp"))).containsExactly(sensorSub);
+        assertEquals(1, sut.matchCacheHits());
+        assertEquals(1, sut.matchCacheMisses());
+
+        // Exercise
+        Subscription anySub = new Subscription("client2", asTopic("#"), MqttQoS.AT_LEAST_ONCE);
+        sut.add(anySub);
+
+        // Verify
+        assertThat(sut.matchQosSharpening(asTopic("sensors/kitchen/temp")))
+            .containsExactlyInAnyOrder(sensorSub, anySub);
+        assertEquals(2, sut.matchCacheMisses());
+
+        sut.removeSubscription(asTopic("sensors/+/temp"), "client1");
+        assertThat(sut.matchQosSharpening(asTopic("sensors/kitchen/temp"))).containsExactly(anySub);
+        assertEquals(3, sut.matchCacheMisses());
+    }
+
+    @Test
+    public void testCachedMatchIsKeptWhenTheChangedFilterDoesNotMatchItsTopic() {
+        Subscription sensorSub = new Subscription("client1", asTopic("sensors/+/temp"), MqttQoS.AT_MOST_ONCE);
+        sut.add(sensorSub);
+        sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+
+        // Exercise
+        sut.add(new Subscription("client2", asTopic("lights/#"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("client2", asTopic("sensors/+/humidity"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("client2", asTopic("sensors/kitchen/pressure"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("client2", asTopic("+/garage/temp"), MqttQoS.AT_MOST_ONCE));
+
+        // Verify
+        assertThat(sut.matchQosSharpening(asTopic("sensors/kitchen/temp"))).containsExactly(sensorSub);
+        assertEquals(1, sut.matchCacheHits());
+        assertEquals(1, sut.matchCacheMisses());
+
+        Subscription kitchenSub = new Subscription("client3", asTopic("+/kitchen/temp"), MqttQoS.AT_MOST_ONCE);
+        sut.add(kitchenSub);
+        assertThat(sut.matchQosSharpening(asTopic("sensors/kitchen/temp")))
+            .containsExactlyInAnyOrder(sensorSub, kitchenSub);
+        assertEquals(2, sut.matchCacheMisses());
+    }
+
+    @Test
+    public void testRemovingAllTheSubscriptionsOfAClientInvalidatesTheirTopics() {
+        Subscription sensorSub = new Subscription("client1", asTopic("sensors/kitchen/temp"), MqttQoS.AT_MOST_ONCE);
+        sut.add(sensorSub);
+        sut.add(new Subscription("client2", asTopic("sensors/#"), MqttQoS.AT_MOST_ONCE));
+        assertEquals(2, sut.matchQosSharpening(asTopic("sensors/kitchen/temp")).size());
+
+        // Exercise
+        sut.removeAllSubscriptions("client2");
+
+        // Verify
+        assertThat(sut.matchQosSharpening(asTopic("sensors/kitchen/temp"))).containsExactly(sensorSub);
+        assertEquals(2, sut.matchCacheMisses());
+    }
+
+    @Test
+    public void testMatchCacheEvictsLeastRecentlyUsedTopics() {
+        sut = new CTrieSubscriptionDirectory(16);
+        sut.init(new MemorySubscriptionsRepository());
+        sut.add(new Subscription("client1", asTopic("#"), MqttQoS.AT_MOST_ONCE));
+
+        for (int i = 0; i < 100; i++) {
+            sut.matchQosSharpening(asTopic("topic/" + i));
+        }
+
+        assertThat(sut.matchCacheEvictions()).isGreaterThan(0);
+        assertEquals(100, sut.matchCacheMisses());
+    }
+
+    @Test
+    public void testDisabledMatchCache() {
+        sut = new CTrieSubscriptionDirectory(0);
+        sut.init(new MemorySubscriptionsRepository());
+        Subscription anySub = new Subscription("client1", asTopic("#"), MqttQoS.AT_MOST_ONCE);
+        sut.add(anySub);
+
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(anySub);
+        assertThat(sut.matchQosSharpening(asTopic("a/b"))).containsExactly(anySub);
+        assertEquals(0, sut.matchCacheHits());
+    }
+
+    @Test
+    public void testMatchIntoReusableCollectorKeepsTheGreaterQosPerClient() {
+        sut = new CTrieSubscriptionDirectory(0);
+        sut.init(new MemorySubscriptionsRepository());
+        sut.add(new Subscription("client1", asTopic("a/+"), MqttQoS.AT_MOST_ONCE));
+        final Subscription client1AnySub = new Subscription("client1", asTopic("a/#"), MqttQoS.EXACTLY_ONCE);
+        sut.add(client1AnySub);
+        final Subscription client2Sub = new Subscription("client2", asTopic("a/b"), MqttQoS.AT_LEAST_ONCE);
+        sut.add(client2Sub);
+        final SubscriptionsCollector collector = new SubscriptionsCollector();
+
+        //Exercise
+        sut.matchQosSharpening(asTopic("a/b"), collector);
+
+        //Verify
+        assertEquals(2, collector.size());
+        assertThat(new Subscription[] {collector.get(0), collector.get(1)})
+            .extracting("clientId", "requestedQos")
+            .containsExactlyInAnyOrder(tuple("client1", MqttQoS.EXACTLY_ONCE), tuple("client2", MqttQoS.AT_LEAST_ONCE));
+
+        collector.clear();
+        sut.matchQosSharpening(asTopic("a"), collector);
+        assertEquals(1, collector.size());
+        assertEquals(client1AnySub, collector.get(0));
+    }
+
+    @Test
+    public void testStaleSubscriptionWithAHandleReassignedToAnotherClientIsKeptApart() {
+        final int handle = 7;
+        final Subscription staleSub = new Subscription("leaving", asTopic("a/+"), MqttQoS.AT_MOST_ONCE, handle);
+        final Subscription newcomerSub = new Subscription("newcomer", asTopic("a/b"), MqttQoS.AT_LEAST_ONCE, handle);
+        final SubscriptionsCollector collector = new SubscriptionsCollector();
+
+        //Exercise
+        collector.accept(staleSub);
+        collector.accept(newcomerSub);
+        collector.accept(new Subscription("newcomer", asTopic("a/#"), MqttQoS.EXACTLY_ONCE, handle));
+
+        //Verify
+        assertEquals(2, collector.size());
+        assertThat(new Subscription[] {collector.get(0), collector.get(1)})
+            .extracting("clientId", "requestedQos")
+            .containsExactly(tuple("leaving", MqttQoS.AT_MOST_ONCE), tuple("newcomer", MqttQoS.EXACTLY_ONCE));
+    }
+
+    @Test
+    public void testClientMatchedWithAndWithoutAHandleIsCollectedOnce() {
+        // reloaded from the store, without handle
+        final Subscription storedSub = new Subscription("client1", asTopic("a/b"), MqttQoS.AT_MOST_ONCE);
+        final Subscription newSub = new Subscription("client1", asTopic("a/#"), MqttQoS.AT_LEAST_ONCE, 3);
+        final Subscription otherSub = new Subscription("client2", asTopic("a/+"), MqttQoS.AT_MOST_ONCE, 4);
+        final SubscriptionsCollector collector = new SubscriptionsCollector();
+
+        //Exercise
+        collector.accept(storedSub);
+        collector.accept(newSub);
+        collector.accept(otherSub);
+
+        //Verify
+        assertEquals(2, collector.size());
+        assertThat(new Subscription[] {collector.get(0), collector.get(1)})
+            .extracting("clientId", "requestedQos")
+            .containsExactly(tuple("client1", MqttQoS.AT_LEAST_ONCE), tuple("client2", MqttQoS.AT_MOST_ONCE));
+
+        // the other way round, the handle first
+        collector.clear();
+        collector.accept(newSub);
+        collector.accept(new Subscription("client1", asTopic("a/b"), MqttQoS.EXACTLY_ONCE));
+        assertEquals(1, collector.size());
+        assertEquals(MqttQoS.EXACTLY_ONCE, collector.get(0).getRequestedQos());
+    }
+
+    @Test
+    public void testSharedSubscriptionDeliversEachMessageToOneMemberInTurn() {
+        sut.add(new Subscription("worker1", asTopic("$share/workers/jobs/+"), MqttQoS.AT_LEAST_ONCE));
+        sut.add(new Subscription("worker2", asTopic("$share/workers/jobs/+"), MqttQoS.AT_LEAST_ONCE));
+        sut.add(new Subscription("worker3", asTopic("$share/workers/jobs/+"), MqttQoS.AT_LEAST_ONCE));
+        sut.add(new Subscription("auditor", asTopic("$share/audit/jobs/#"), MqttQoS.AT_MOST_ONCE));
+        sut.add(new Subscription("listener", asTopic("jobs/+"), MqttQoS.AT_MOST_ONCE));
+        final Topic topic = asTopic("jobs/build");
+
+        //Exercise
+        final Map<String, Integer> received = new HashMap<>();
+        for (int i = 0; i < 9; i++) {
+            for (Subscription sub : sut.matchQosSharpening(topic)) {
+                received.merge(sub.getClientId(), 1, Integer::sum);
+            }
+        }
+
+        //Verify
+        assertThat(received).containsOnly(entry("worker1", 3), entry("worker2", 3), entry("worker3", 3),
+                                          entry("auditor", 9), entry("listener", 9));
+        assertEquals(5, sut.size());
+
+        // a member that leaves is dropped from the group, the last one removes the group
+        sut.removeAllSubscriptions("worker2");
+        sut.removeSubscription(asTopic("$share/audit/jobs/#"), "auditor");
+        final SubscriptionsCollector collector = new SubscriptionsCollector();
+        final Map<String, Integer> afterLeaving = new HashMap<>();
+        for (int i = 0; i < 4; i++) {
+            sut.matchQosSharpening(topic, collector);
+            for (int j = 0; j < collector.size(); j++) {
+                afterLeaving.merge(collector.get(j).getClientId(), 1, Integer::sum);
+            }
+            collector.clear();
+        }
+        assertThat(afterLeaving).containsOnly(entry("worker1", 2), entry("worker3", 2), entry("listener", 4));
+        assertThat(sut.matchQosSharpening(asTopic("jobs/build/logs"))).isEmpty();
+    }
+
+    @Test
+    public void testSharedSubscriptionStrategiesSkipDisconnectedMembers() {
+        final Map<String, Integer> loads = new HashMap<>();
+        loads.put("worker1", 5);
+        loads.put("worker2", 1);
+        loads.put("worker3", SharedSubscriptionStrategy.DISCONNECTED);
+        sut.configureSharedSubscriptions(SharedSubscriptionStrategies.LEAST_INFLIGHT, loads::get);
+        for (int i = 1; i <= 3; i++) {
+            sut.add(new Subscription("worker" + i, asTopic("$share/workers/jobs/#"), MqttQoS.AT_LEAST_ONCE));
+        }
+
+        //Verify
+        for (int i = 0; i < 3; i++) {
+            assertThat(sut.matchQosSharpening(asTopic("jobs/build"))).extracting("clientId").containsExactly("worker2");
+        }
+
+        sut.configureSharedSubscriptions(SharedSubscriptionStrategies.TOPIC_HASH, loads::get);
+        final Set<Subscription> first = sut.matchQosSharpening(asTopic("jobs/deploy"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(first, sut.matchQosSharpening(asTopic("jobs/deploy")));
+        }
+        assertThat(first).extracting("clientId").doesNotContain("worker3");
+
+        loads.put("worker1", SharedSubscriptionStrategy.DISCONNECTED);
+        loads.put("worker2", SharedSubscriptionStrategy.DISCONNECTED);
+        sut.configureSharedSubscriptions(SharedSubscriptionStrategies.ROUND_ROBIN, loads::get);
+        // nobody is connected, the message is queued to a member anyway
+        assertThat(sut.matchQosSharpening(asTopic("jobs/build"))).hasSize(1);
+    }
+
+    @Test
+    public void testMatchIntoCollectorDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        sut = new CTrieSubscriptionDirectory(0);
+        sut.init(new MemorySubscriptionsRepository());
+        for (int i = 0; i < 100; i++) {
+            sut.add(new Subscription("device" + i, asTopic("tenant/device" + i + "/sensors/+/temp/#"),
+                                     MqttQoS.AT_MOST_ONCE));
+            sut.add(new Subscription("monitor" + i, asTopic("tenant/+/sensors/kitchen/temp/celsius/raw"),
+                                     MqttQoS.AT_LEAST_ONCE));
+        }
+        sut.add(new Subscription("auditor", asTopic("tenant/#"), MqttQoS.AT_MOST_ONCE));
+        final Topic topic = asTopic("tenant/device42/sensors/kitchen/temp/celsius/raw");
+        final SubscriptionsCollector collector = new SubscriptionsCollector();
+        for (int i = 0; i < 10_000; i++) {
+            sut.matchQosSharpening(topic, collector);
+            collector.clear();
+        }
+
+        //Exercise
+        final long threadId = Thread.currentThread().getId();
+        final long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            sut.matchQosSharpening(topic, collector);
+            collector.clear();
+        }
+        final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        //Verify
+        sut.matchQosSharpening(topic, collector);
+        assertEquals(102, collector.size());
+        // leave room for the measurement itself, a single object per match would exceed it
+        assertThat(allocated).isLessThan(10_000);
+    }
 }
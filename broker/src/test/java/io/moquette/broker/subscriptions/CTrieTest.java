@@ -20,8 +20,13 @@ import io.netty.handler.codec.mqtt.MqttQoS;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static io.moquette.broker.subscriptions.Topic.asTopic;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -302,4 +307,113 @@ public class CTrieTest {
         assertThat(matchingSubs3).contains(expectedMatchingsub1);
         assertThat(matchingSubs4).doesNotContain(expectedMatchingsub2);
     }
+
+    @Test
+    public void givenWideTopicLevelWhenChildrenAreIndexedThenMatchAndRemoveStillWork() {
+        final int devices = CNode.INDEXED_CHILDREN_THRESHOLD * 4;
+        for (int i = 0; i < devices; i++) {
+            sut.addToTree(clientSubOnTopic("Device" + i, "tenant/device" + i + "/status"));
+        }
+        sut.addToTree(clientSubOnTopic("Monitor", "tenant/+/status"));
+        sut.addToTree(clientSubOnTopic("Auditor", "tenant/#"));
+
+        //Exercise
+        final Set<Subscription> matchingSubs = sut.recursiveMatch(asTopic("tenant/device42/status"));
+
+        //Verify
+        assertThat(matchingSubs).extracting("clientId").containsExactlyInAnyOrder("Device42", "Monitor", "Auditor");
+        assertTrue(sut.lookup(asTopic("tenant/device" + (devices - 1) + "/status")).isPresent());
+        assertFalse(sut.lookup(asTopic("tenant/device" + devices + "/status")).isPresent());
+        final INode tenant = this.sut.root.mainNode().childOf(new Token("tenant"));
+        assertEquals(devices + 2, tenant.mainNode().allChildren().size());
+
+        //Exercise
+        sut.removeFromTree(asTopic("tenant/device42/status"), "Device42");
+
+        //Verify
+        assertThat(sut.recursiveMatch(asTopic("tenant/device42/status")))
+            .extracting("clientId").containsExactlyInAnyOrder("Monitor", "Auditor");
+        assertThat(sut.recursiveMatch(asTopic("tenant/device43/status")))
+            .extracting("clientId").containsExactlyInAnyOrder("Device43", "Monitor", "Auditor");
+    }
+
+    @Test
+    public void givenWideTopicLevelWhenALeafIsRemovedThenItsTombIsCleanedFromTheIndex() {
+        final int devices = CNode.INDEXED_CHILDREN_THRESHOLD * 4;
+        for (int i = 0; i < devices; i++) {
+            sut.addToTree(clientSubOnTopic("Device" + i, "tenant/device" + i));
+        }
+
+        //Exercise
+        sut.removeFromTree(asTopic("tenant/device42"), "Device42");
+
+        //Verify
+        final INode tenant = this.sut.root.mainNode().childOf(new Token("tenant"));
+        assertEquals(devices - 1, tenant.mainNode().allChildren().size());
+        assertFalse(sut.lookup(asTopic("tenant/device42")).isPresent());
+        assertTrue(sut.recursiveMatch(asTopic("tenant/device42")).isEmpty());
+
+        //Exercise, the level is subscribed again
+        sut.addToTree(clientSubOnTopic("Device42", "tenant/device42"));
+        assertThat(sut.recursiveMatch(asTopic("tenant/device42"))).extracting("clientId").containsExactly("Device42");
+    }
+
+    @Test
+    public void givenTopicLevelNamedAsTheRootThenItIsMatchedAsAnyOtherLevel() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "root/temp"));
+
+        assertThat(sut.recursiveMatch(asTopic("root/temp"))).hasSize(1);
+        assertThat(sut.recursiveMatch(asTopic("root/root/temp"))).isEmpty();
+    }
+
+    @Test
+    public void givenStoredSubscriptionsWhenBulkLoadedThenTheTreeMatchesAsIfBuiltOneByOne() {
+        final Random random = new Random(42);
+        final String[] levels = {"sensors", "device1", "device2", "temp", "sensors-eu", "+", "", "#"};
+        final List<Subscription> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            final StringBuilder filter = new StringBuilder(levels[random.nextInt(levels.length - 2)]);
+            final int depth = random.nextInt(4);
+            for (int level = 0; level < depth && !filter.toString().endsWith("#"); level++) {
+                filter.append('/').append(levels[random.nextInt(levels.length)]);
+            }
+            subscriptions.add(new Subscription("client" + random.nextInt(50), asTopic(filter.toString()),
+                                               MqttQoS.valueOf(random.nextInt(3))));
+        }
+        // the same client on the same filter with a lower QoS afterwards doesn't downgrade it
+        subscriptions.add(new Subscription("client1", asTopic("sensors/+"), MqttQoS.EXACTLY_ONCE));
+        subscriptions.add(new Subscription("client1", asTopic("sensors/+"), MqttQoS.AT_MOST_ONCE));
+        subscriptions.forEach(sut::addToTree);
+        Collections.shuffle(subscriptions, random);
+
+        //Exercise
+        final CTrie sequential = new CTrie();
+        sequential.bulkLoad(subscriptions, null);
+        final CTrie parallel = new CTrie();
+        parallel.bulkLoad(subscriptions, ForkJoinPool.commonPool());
+
+        //Verify
+        assertEquals(sut.size(), sequential.size());
+        assertEquals(sut.size(), parallel.size());
+        final String[] topics = {"sensors", "sensors/device1", "sensors/device1/temp", "/temp", "device2//temp",
+            "sensors-eu/device2", "temp/sensors/device1/temp", "root"};
+        for (String topic : topics) {
+            final Set<Subscription> expected = sut.recursiveMatch(asTopic(topic));
+            assertThat(sequential.recursiveMatch(asTopic(topic))).as(topic).isEqualTo(expected);
+            assertThat(parallel.recursiveMatch(asTopic(topic))).as(topic).isEqualTo(expected);
+        }
+        final Subscription client1OnSensors = new Subscription("client1", asTopic("sensors/+"), MqttQoS.AT_MOST_ONCE);
+        final Subscription upgraded = sequential.recursiveMatch(asTopic("sensors/x")).stream()
+            .filter(client1OnSensors::equals)
+            .findFirst().get();
+        assertEquals(MqttQoS.EXACTLY_ONCE, upgraded.getRequestedQos());
+
+        //Exercise, the loaded tree accepts the usual changes
+        sequential.addToTree(clientSubOnTopic("Late", "sensors/device1/temp"));
+        sequential.removeFromTree(asTopic("sensors/+"), "client1");
+
+        //Verify
+        assertThat(sequential.recursiveMatch(asTopic("sensors/device1/temp"))).extracting("clientId").contains("Late");
+        assertThat(sequential.recursiveMatch(asTopic("sensors/x"))).doesNotContain(client1OnSensors);
+    }
 }
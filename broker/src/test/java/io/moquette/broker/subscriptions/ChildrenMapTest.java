@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ChildrenMapTest {
+
+    @Test
+    public void testChangesDoNotAffectTheOriginalMap() {
+        final INode device1 = child("device1");
+        final ChildrenMap original = ChildrenMap.EMPTY.plus(new Token("device1"), device1);
+
+        //Exercise
+        final ChildrenMap added = original.plus(new Token("device2"), child("device2"));
+        final INode replacement = child("device1");
+        final ChildrenMap replaced = added.plus(new Token("device1"), replacement);
+        final ChildrenMap removed = replaced.minus(new Token("device2"));
+
+        //Verify
+        assertEquals(1, original.size());
+        assertSame(device1, original.get(new Token("device1")));
+        assertEquals(2, added.size());
+        assertEquals(2, replaced.size());
+        assertSame(replacement, replaced.get(new Token("device1")));
+        assertEquals(1, removed.size());
+        assertNull(removed.get(new Token("device2")));
+        assertSame(removed, removed.minus(new Token("not_present")));
+        assertSame(ChildrenMap.EMPTY, removed.minus(new Token("device1")));
+    }
+
+    @Test
+    public void testTokensWithSameHashAreKeptApart() {
+        // "Aa" and "BB" have the same String hash
+        final INode aa = child("Aa");
+        final INode bb = child("BB");
+        final ChildrenMap map = ChildrenMap.EMPTY.plus(new Token("Aa"), aa).plus(new Token("BB"), bb);
+
+        assertEquals(2, map.size());
+        assertSame(aa, map.get(new Token("Aa")));
+        assertSame(bb, map.get(new Token("BB")));
+        final ChildrenMap withoutAa = map.minus(new Token("Aa"));
+        assertNull(withoutAa.get(new Token("Aa")));
+        assertSame(bb, withoutAa.get(new Token("BB")));
+    }
+
+    @Test
+    public void testManyChildrenAreAllFoundAndVisited() {
+        final int count = 10_000;
+        ChildrenMap map = ChildrenMap.EMPTY;
+        for (int i = 0; i < count; i++) {
+            map = map.plus(new Token("device" + i), child("device" + i));
+        }
+        for (int i = 0; i < count; i += 2) {
+            map = map.minus(new Token("device" + i));
+        }
+
+        //Verify
+        assertEquals(count / 2, map.size());
+        for (int i = 1; i < count; i += 2) {
+            assertEquals(new Token("device" + i), map.get(new Token("device" + i)).mainNode().getToken());
+        }
+        final List<INode> visited = new ArrayList<>();
+        map.forEach(visited::add);
+        assertEquals(count / 2, visited.size());
+        assertSame(map, map.minus(new Token("device0")));
+    }
+
+    private static INode child(String token) {
+        final CNode cnode = new CNode();
+        cnode.setToken(new Token(token));
+        return new INode(cnode);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SubscriptionsSetTest {
+
+    private static final Topic FILTER = asTopic("alerts/#");
+
+    @Test
+    public void testChangesDoNotAffectTheOriginalSet() {
+        final SubscriptionsSet original = SubscriptionsSet.EMPTY.plus(sub("client1", MqttQoS.AT_MOST_ONCE));
+
+        //Exercise
+        final SubscriptionsSet added = original.plus(sub("client2", MqttQoS.AT_MOST_ONCE));
+        final SubscriptionsSet upgraded = added.plus(sub("client1", MqttQoS.EXACTLY_ONCE));
+        final SubscriptionsSet removed = upgraded.minus("client2");
+
+        //Verify
+        assertThat(original).containsExactly(sub("client1", MqttQoS.AT_MOST_ONCE));
+        assertEquals(MqttQoS.AT_MOST_ONCE, original.get("client1").getRequestedQos());
+        assertEquals(2, added.size());
+        assertEquals(2, upgraded.size());
+        assertEquals(MqttQoS.EXACTLY_ONCE, upgraded.get("client1").getRequestedQos());
+        assertEquals(1, removed.size());
+        assertNull(removed.get("client2"));
+        assertSame(removed, removed.minus("not_present"));
+        assertSame(SubscriptionsSet.EMPTY, removed.minus("client1"));
+    }
+
+    @Test
+    public void testClientIdsWithSameHashAreKeptApart() {
+        // "Aa" and "BB" have the same String hash code
+        final SubscriptionsSet sut = SubscriptionsSet.EMPTY
+            .plus(sub("Aa", MqttQoS.AT_MOST_ONCE))
+            .plus(sub("BB", MqttQoS.AT_LEAST_ONCE))
+            .plus(sub("C", MqttQoS.AT_MOST_ONCE));
+
+        assertEquals(3, sut.size());
+        assertEquals(MqttQoS.AT_LEAST_ONCE, sut.get("BB").getRequestedQos());
+        assertTrue(sut.contains(sub("Aa", MqttQoS.AT_MOST_ONCE)));
+
+        final SubscriptionsSet withoutAa = sut.minus("Aa");
+        assertThat(withoutAa)
+            .containsExactlyInAnyOrder(sub("BB", MqttQoS.AT_LEAST_ONCE), sub("C", MqttQoS.AT_MOST_ONCE));
+    }
+
+    @Test
+    public void testBehavesAsAMapByClientId() {
+        final Random random = new Random(42);
+        final Map<String, Subscription> model = new HashMap<>();
+        SubscriptionsSet sut = SubscriptionsSet.EMPTY;
+
+        for (int i = 0; i < 20_000; i++) {
+            final String clientId = "client" + random.nextInt(3_000);
+            if (random.nextInt(3) == 0) {
+                model.remove(clientId);
+                sut = sut.minus(clientId);
+            } else {
+                final Subscription sub = sub(clientId, MqttQoS.valueOf(random.nextInt(3)));
+                model.put(clientId, sub);
+                sut = sut.plus(sub);
+            }
+        }
+
+        assertEquals(model.size(), sut.size());
+        assertEquals(new HashSet<>(model.values()), new HashSet<>(sut));
+        for (Subscription sub : model.values()) {
+            assertSame(sub, sut.get(sub.getClientId()));
+        }
+    }
+
+    private static Subscription sub(String clientId, MqttQoS qos) {
+        return new Subscription(clientId, FILTER, qos);
+    }
+}
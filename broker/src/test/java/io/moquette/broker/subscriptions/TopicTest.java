@@ -20,6 +20,7 @@ import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 public class TopicTest {
 
@@ -122,6 +123,22 @@ public class TopicTest {
         assertEquals(Topic.asTopic("a/b"), Topic.asTopic("/a/b").exceptHeadToken());
     }
 
+    @Test
+    public void testInternedTopicsAndTokensAreShared() {
+        final long hitsBefore = Topic.interned().hits();
+
+        final Topic topic = Topic.intern("tenant/device42/status");
+
+        assertSame(topic, Topic.intern("tenant/device42/status"));
+        assertEquals(hitsBefore + 1, Topic.interned().hits());
+        assertThat(topic).containsToken("tenant", "device42", "status").isValid();
+        assertEquals(new Topic("tenant/device42/status"), topic);
+        // the same level in different topics is the same token
+        assertSame(topic.getTokens().get(0), Topic.intern("tenant/device43/status").getTokens().get(0));
+        assertEquals(topic.getTokens().get(1), new Token("device42"));
+        assertEquals(new Token("device42").hashCode(), topic.getTokens().get(1).hashCode());
+    }
+
     public static TopicAssert assertThat(Topic topic) {
         return new TopicAssert(topic);
     }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeakInternerTest {
+
+    private final WeakInterner<Token> sut = new WeakInterner<>(WeakInterner.WAYS, Token::new, Token::name);
+
+    @Test
+    public void testNamesOfTheSameSetDoNotEvictEachOther() {
+        final List<Token> tokens = new ArrayList<>();
+        for (int i = 0; i < WeakInterner.WAYS; i++) {
+            tokens.add(sut.intern("level" + i));
+        }
+
+        for (int i = 0; i < WeakInterner.WAYS; i++) {
+            assertSame(tokens.get(i), sut.intern("level" + i));
+        }
+        assertEquals(WeakInterner.WAYS, sut.hits());
+        assertEquals(0, sut.replaced());
+        assertEquals(WeakInterner.WAYS, sut.size());
+    }
+
+    @Test
+    public void testFullSetReplacesOneOfItsInstances() {
+        final List<Token> tokens = new ArrayList<>();
+        for (int i = 0; i <= WeakInterner.WAYS; i++) {
+            tokens.add(sut.intern("level" + i));
+        }
+
+        assertEquals(1, sut.replaced());
+        assertEquals(WeakInterner.WAYS, sut.size());
+        assertSame(tokens.get(WeakInterner.WAYS), sut.intern("level" + WeakInterner.WAYS));
+    }
+
+    @Test
+    public void testResizeEmptiesTheTable() {
+        final Token token = sut.intern("level");
+        final long emptyBytes = new WeakInterner<>(64, Token::new, Token::name).retainedBytes();
+
+        assertTrue(sut.resize(64));
+
+        assertEquals(64, sut.capacity());
+        assertEquals(0, sut.size());
+        assertEquals(emptyBytes, sut.retainedBytes());
+        final Token reinterned = sut.intern("level");
+        assertNotSame(token, reinterned);
+        assertEquals(token, reinterned);
+        assertThat(sut.retainedBytes()).isGreaterThan(emptyBytes);
+    }
+
+    @Test
+    public void testResizeToTheSameCapacityKeepsTheTable() {
+        final Token token = sut.intern("level");
+
+        assertFalse(sut.resize(WeakInterner.WAYS));
+        assertFalse(sut.resize(WeakInterner.WAYS - 1), "Rounded up to the current capacity");
+
+        assertSame(token, sut.intern("level"));
+        assertEquals(1, sut.hits());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.RetainedMessage;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class H2RetainedRepositoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MVStore mvStore;
+    private H2RetainedRepository sut;
+
+    @BeforeEach
+    public void setUp() {
+        reopen();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mvStore.close();
+    }
+
+    private void reopen() {
+        if (mvStore != null) {
+            mvStore.close();
+        }
+        mvStore = new MVStore.Builder()
+            .fileName(tempDir.resolve("moquette_store.h2").toString())
+            .autoCommitDisabled()
+            .open();
+        sut = new H2RetainedRepository(mvStore);
+    }
+
+    @Test
+    public void givenStoredRetainedMessagesWhenReopenedThenTheIndexIsRebuilt() {
+        retain("site/42/pump/status");
+        retain("site/42/valve/status");
+        retain("site/43/pump/status");
+        sut.cleanRetained(new Topic("site/42/valve/status"));
+        mvStore.commit();
+
+        //Exercise
+        reopen();
+        retain("site/44/pump/status");
+
+        //Verify
+        assertThat(topicsOf(sut.retainedOnTopic("site/+/pump/status")))
+            .containsExactly("site/42/pump/status", "site/43/pump/status", "site/44/pump/status");
+        assertThat(topicsOf(sut.retainedOnTopic("site/42/#"))).containsExactly("site/42/pump/status");
+        assertThat(topicsOf(sut.retainedOnTopic("site/43/pump/status"))).containsExactly("site/43/pump/status");
+    }
+
+    private void retain(String topic) {
+        sut.retain(new Topic(topic), MqttMessageBuilders.publish()
+            .qos(MqttQoS.AT_LEAST_ONCE)
+            .topicName(topic)
+            .retained(true)
+            .payload(Unpooled.wrappedBuffer(topic.getBytes()))
+            .build());
+    }
+
+    private static List<String> topicsOf(List<RetainedMessage> messages) {
+        return messages.stream().map(msg -> msg.getTopic().toString()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.subscriptions.Subscription;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.h2.mvstore.MVStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class H2SubscriptionsRepositoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path storePath;
+    private Path snapshotPath;
+    private MVStore mvStore;
+    private H2SubscriptionsRepository sut;
+
+    @BeforeEach
+    public void setUp() {
+        storePath = tempDir.resolve("moquette_store.h2");
+        snapshotPath = tempDir.resolve("moquette_store.h2.subscriptions");
+        reopen();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mvStore.close();
+    }
+
+    private void reopen() {
+        if (mvStore != null) {
+            mvStore.close();
+        }
+        mvStore = new MVStore.Builder()
+            .fileName(storePath.toString())
+            .autoCommitDisabled()
+            .open();
+        sut = new H2SubscriptionsRepository(mvStore, snapshotPath);
+    }
+
+    @Test
+    public void givenSnapshotWhenReopenedThenLaterChangesAreReplayedOnTop() {
+        sut.addNewSubscription(sub("client1", "sensors/+", MqttQoS.AT_LEAST_ONCE));
+        sut.addNewSubscription(sub("client2", "sensors/temp", MqttQoS.AT_MOST_ONCE));
+        sut.addNewSubscription(sub("client3", "#", MqttQoS.EXACTLY_ONCE));
+        sut.writeSnapshot();
+        // changes after the snapshot
+        sut.removeSubscription("#", "client3");
+        sut.addNewSubscription(sub("client2", "sensors/temp", MqttQoS.EXACTLY_ONCE));
+        sut.addNewSubscription(sub("client4", "alerts/#", MqttQoS.AT_MOST_ONCE));
+
+        //Exercise
+        reopen();
+        final Set<Subscription> loaded = sut.listAllSubscriptions();
+
+        //Verify
+        assertThat(loaded).containsExactlyInAnyOrder(sub("client1", "sensors/+", MqttQoS.AT_LEAST_ONCE),
+            sub("client2", "sensors/temp", MqttQoS.EXACTLY_ONCE), sub("client4", "alerts/#", MqttQoS.AT_MOST_ONCE));
+        final Subscription upgraded = loaded.stream().filter(s -> s.getClientId().equals("client2")).findFirst().get();
+        assertEquals(MqttQoS.EXACTLY_ONCE, upgraded.getRequestedQos());
+        final Subscription fromSnapshot = loaded.stream()
+            .filter(s -> s.getClientId().equals("client1")).findFirst().get();
+        assertEquals(MqttQoS.AT_LEAST_ONCE, fromSnapshot.getRequestedQos());
+    }
+
+    @Test
+    public void givenCorruptedSnapshotWhenReopenedThenAllStoredSubscriptionsAreLoaded() throws IOException {
+        sut.addNewSubscription(sub("client1", "sensors/+", MqttQoS.AT_LEAST_ONCE));
+        sut.writeSnapshot();
+        sut.addNewSubscription(sub("client2", "sensors/temp", MqttQoS.AT_MOST_ONCE));
+        final byte[] raw = Files.readAllBytes(snapshotPath);
+        raw[raw.length / 2] ^= 0x7F;
+        Files.write(snapshotPath, raw);
+
+        //Exercise
+        reopen();
+
+        //Verify
+        assertThat(sut.listAllSubscriptions()).containsExactlyInAnyOrder(
+            sub("client1", "sensors/+", MqttQoS.AT_LEAST_ONCE), sub("client2", "sensors/temp", MqttQoS.AT_MOST_ONCE));
+    }
+
+    @Test
+    public void givenSnapshotOfAnotherStoreWhenReopenedThenItIsIgnored() throws IOException {
+        sut.addNewSubscription(sub("client1", "sensors/+", MqttQoS.AT_LEAST_ONCE));
+        sut.writeSnapshot();
+        mvStore.close();
+        Files.delete(storePath);
+        mvStore = null;
+
+        //Exercise
+        reopen();
+        sut.addNewSubscription(sub("client2", "sensors/temp", MqttQoS.AT_MOST_ONCE));
+
+        //Verify
+        assertThat(sut.listAllSubscriptions()).containsExactly(sub("client2", "sensors/temp", MqttQoS.AT_MOST_ONCE));
+    }
+
+    private static Subscription sub(String clientId, String filter, MqttQoS qos) {
+        return new Subscription(clientId, asTopic(filter), qos);
+    }
+}